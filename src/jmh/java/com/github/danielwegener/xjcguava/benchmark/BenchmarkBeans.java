@@ -0,0 +1,128 @@
+package com.github.danielwegener.xjcguava.benchmark;
+
+import com.github.danielwegener.xjcguava.benchmark.baseline.BaselineLevels;
+import com.github.danielwegener.xjcguava.benchmark.baseline.BaselineRecord;
+import com.github.danielwegener.xjcguava.benchmark.beans.Level7;
+import com.github.danielwegener.xjcguava.benchmark.beans.Record;
+import com.github.danielwegener.xjcguava.wide.Wide;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Pairs of equal but distinct beans, generated and hand-written ones with the same fields and values. Every field
+ * is set, so that equals has to compare all of them.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkBeans {
+
+  private static final int LIST_SIZE = 3;
+  private static final int PAYLOAD_SIZE = 256;
+
+  Record record;
+  Record recordCopy;
+  BaselineRecord baselineRecord;
+  BaselineRecord baselineRecordCopy;
+
+  Level7 deep;
+  Level7 deepCopy;
+  BaselineLevels.Level7 baselineDeep;
+  BaselineLevels.Level7 baselineDeepCopy;
+
+  Wide wide;
+  Wide wideCopy;
+
+  @Setup
+  public void setUp() throws Exception {
+    final DatatypeFactory datatypeFactory = DatatypeFactory.newInstance();
+    record = filled(Record.class, datatypeFactory);
+    recordCopy = filled(Record.class, datatypeFactory);
+    baselineRecord = filled(BaselineRecord.class, datatypeFactory);
+    baselineRecordCopy = filled(BaselineRecord.class, datatypeFactory);
+    deep = filled(Level7.class, datatypeFactory);
+    deepCopy = filled(Level7.class, datatypeFactory);
+    baselineDeep = filled(BaselineLevels.Level7.class, datatypeFactory);
+    baselineDeepCopy = filled(BaselineLevels.Level7.class, datatypeFactory);
+    wide = filled(Wide.class, datatypeFactory);
+    wideCopy = filled(Wide.class, datatypeFactory);
+    if (!record.equals(recordCopy) || !baselineRecord.equals(baselineRecordCopy) || !deep.equals(deepCopy)
+        || !baselineDeep.equals(baselineDeepCopy) || !wide.equals(wideCopy)) {
+      throw new IllegalStateException("The beans of a pair differ");
+    }
+  }
+
+  /**
+   * Returns a new instance with every field of the class and its superclasses set to a value derived from its
+   * position, so that two instances are equal but share no mutable values.
+   */
+  static <T> T filled(Class<T> type, DatatypeFactory datatypeFactory) throws ReflectiveOperationException {
+    final T bean = type.getDeclaredConstructor().newInstance();
+    int index = 0;
+    for (Class<?> clazz = type; clazz != Object.class; clazz = clazz.getSuperclass()) {
+      for (Field field : clazz.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+          continue;
+        }
+        field.setAccessible(true);
+        if (List.class.equals(field.getType())) {
+          final Class<?> elementType =
+              (Class<?>) ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+          final List<Object> list = new ArrayList<Object>();
+          for (int i = 0; i < LIST_SIZE; i++) {
+            list.add(value(elementType, index + i, datatypeFactory));
+          }
+          field.set(bean, list);
+        } else {
+          field.set(bean, value(field.getType(), index, datatypeFactory));
+        }
+        index++;
+      }
+    }
+    return bean;
+  }
+
+  private static Object value(Class<?> type, int index, DatatypeFactory datatypeFactory) {
+    if (type == String.class) {
+      return "value " + index;
+    }
+    if (type == int.class || type == Integer.class) {
+      return index;
+    }
+    if (type == long.class || type == Long.class) {
+      return (long) index;
+    }
+    if (type == double.class || type == Double.class) {
+      return index + 0.5;
+    }
+    if (type == float.class || type == Float.class) {
+      return index + 0.5f;
+    }
+    if (type == boolean.class || type == Boolean.class) {
+      return index % 2 == 0;
+    }
+    if (type == BigDecimal.class) {
+      return new BigDecimal(index + ".50");
+    }
+    if (type == byte[].class) {
+      final byte[] bytes = new byte[PAYLOAD_SIZE];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = (byte) (index + i);
+      }
+      return bytes;
+    }
+    if (type == XMLGregorianCalendar.class) {
+      return datatypeFactory.newXMLGregorianCalendar(2015, 11, 12, 11, 47, index % 60, 123, 60);
+    }
+    throw new IllegalArgumentException("No value for " + type);
+  }
+}
@@ -0,0 +1,47 @@
+package com.github.danielwegener.xjcguava.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The generated equals of equal but distinct beans, which has to compare every field, against hand-written ones.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EqualsBenchmark {
+
+  @Benchmark
+  public boolean record(BenchmarkBeans beans) {
+    return beans.record.equals(beans.recordCopy);
+  }
+
+  @Benchmark
+  public boolean baselineRecord(BenchmarkBeans beans) {
+    return beans.baselineRecord.equals(beans.baselineRecordCopy);
+  }
+
+  @Benchmark
+  public boolean deep(BenchmarkBeans beans) {
+    return beans.deep.equals(beans.deepCopy);
+  }
+
+  @Benchmark
+  public boolean baselineDeep(BenchmarkBeans beans) {
+    return beans.baselineDeep.equals(beans.baselineDeepCopy);
+  }
+
+  @Benchmark
+  public boolean wide(BenchmarkBeans beans) {
+    return beans.wide.equals(beans.wideCopy);
+  }
+}
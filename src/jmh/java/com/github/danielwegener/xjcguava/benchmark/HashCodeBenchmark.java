@@ -0,0 +1,47 @@
+package com.github.danielwegener.xjcguava.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The generated hashCode, which is not cached by default, against hand-written ones.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashCodeBenchmark {
+
+  @Benchmark
+  public int record(BenchmarkBeans beans) {
+    return beans.record.hashCode();
+  }
+
+  @Benchmark
+  public int baselineRecord(BenchmarkBeans beans) {
+    return beans.baselineRecord.hashCode();
+  }
+
+  @Benchmark
+  public int deep(BenchmarkBeans beans) {
+    return beans.deep.hashCode();
+  }
+
+  @Benchmark
+  public int baselineDeep(BenchmarkBeans beans) {
+    return beans.baselineDeep.hashCode();
+  }
+
+  @Benchmark
+  public int wide(BenchmarkBeans beans) {
+    return beans.wide.hashCode();
+  }
+}
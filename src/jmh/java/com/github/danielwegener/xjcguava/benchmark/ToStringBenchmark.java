@@ -0,0 +1,47 @@
+package com.github.danielwegener.xjcguava.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The generated toString, whose allocations dominate its cost, against hand-written ones.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ToStringBenchmark {
+
+  @Benchmark
+  public String record(BenchmarkBeans beans) {
+    return beans.record.toString();
+  }
+
+  @Benchmark
+  public String baselineRecord(BenchmarkBeans beans) {
+    return beans.baselineRecord.toString();
+  }
+
+  @Benchmark
+  public String deep(BenchmarkBeans beans) {
+    return beans.deep.toString();
+  }
+
+  @Benchmark
+  public String baselineDeep(BenchmarkBeans beans) {
+    return beans.baselineDeep.toString();
+  }
+
+  @Benchmark
+  public String wide(BenchmarkBeans beans) {
+    return beans.wide.toString();
+  }
+}
@@ -0,0 +1,222 @@
+package com.github.danielwegener.xjcguava.benchmark.baseline;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * The deep hierarchy of benchmark.xsd with equals, hashCode and toString written the way they usually are by hand,
+ * every level calling the implementation of its superclass.
+ */
+public final class BaselineLevels {
+
+  private BaselineLevels() {
+  }
+
+  public static class Level0 {
+
+    protected String name0;
+    protected int value0;
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (other == null || getClass() != other.getClass()) {
+        return false;
+      }
+      final Level0 that = (Level0) other;
+      return value0 == that.value0 && Objects.equals(name0, that.name0);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(name0, value0);
+    }
+
+    @Override
+    public String toString() {
+      return toStringHelper().toString();
+    }
+
+    protected MoreObjects.ToStringHelper toStringHelper() {
+      return MoreObjects.toStringHelper(this).add("name0", name0).add("value0", value0);
+    }
+  }
+
+  public static class Level1 extends Level0 {
+
+    protected String name1;
+    protected int value1;
+
+    @Override
+    public boolean equals(Object other) {
+      if (!super.equals(other)) {
+        return false;
+      }
+      final Level1 that = (Level1) other;
+      return value1 == that.value1 && Objects.equals(name1, that.name1);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + Objects.hash(name1, value1);
+    }
+
+    @Override
+    protected MoreObjects.ToStringHelper toStringHelper() {
+      return super.toStringHelper().add("name1", name1).add("value1", value1);
+    }
+  }
+
+  public static class Level2 extends Level1 {
+
+    protected String name2;
+    protected int value2;
+
+    @Override
+    public boolean equals(Object other) {
+      if (!super.equals(other)) {
+        return false;
+      }
+      final Level2 that = (Level2) other;
+      return value2 == that.value2 && Objects.equals(name2, that.name2);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + Objects.hash(name2, value2);
+    }
+
+    @Override
+    protected MoreObjects.ToStringHelper toStringHelper() {
+      return super.toStringHelper().add("name2", name2).add("value2", value2);
+    }
+  }
+
+  public static class Level3 extends Level2 {
+
+    protected String name3;
+    protected int value3;
+
+    @Override
+    public boolean equals(Object other) {
+      if (!super.equals(other)) {
+        return false;
+      }
+      final Level3 that = (Level3) other;
+      return value3 == that.value3 && Objects.equals(name3, that.name3);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + Objects.hash(name3, value3);
+    }
+
+    @Override
+    protected MoreObjects.ToStringHelper toStringHelper() {
+      return super.toStringHelper().add("name3", name3).add("value3", value3);
+    }
+  }
+
+  public static class Level4 extends Level3 {
+
+    protected String name4;
+    protected int value4;
+
+    @Override
+    public boolean equals(Object other) {
+      if (!super.equals(other)) {
+        return false;
+      }
+      final Level4 that = (Level4) other;
+      return value4 == that.value4 && Objects.equals(name4, that.name4);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + Objects.hash(name4, value4);
+    }
+
+    @Override
+    protected MoreObjects.ToStringHelper toStringHelper() {
+      return super.toStringHelper().add("name4", name4).add("value4", value4);
+    }
+  }
+
+  public static class Level5 extends Level4 {
+
+    protected String name5;
+    protected int value5;
+
+    @Override
+    public boolean equals(Object other) {
+      if (!super.equals(other)) {
+        return false;
+      }
+      final Level5 that = (Level5) other;
+      return value5 == that.value5 && Objects.equals(name5, that.name5);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + Objects.hash(name5, value5);
+    }
+
+    @Override
+    protected MoreObjects.ToStringHelper toStringHelper() {
+      return super.toStringHelper().add("name5", name5).add("value5", value5);
+    }
+  }
+
+  public static class Level6 extends Level5 {
+
+    protected String name6;
+    protected int value6;
+
+    @Override
+    public boolean equals(Object other) {
+      if (!super.equals(other)) {
+        return false;
+      }
+      final Level6 that = (Level6) other;
+      return value6 == that.value6 && Objects.equals(name6, that.name6);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + Objects.hash(name6, value6);
+    }
+
+    @Override
+    protected MoreObjects.ToStringHelper toStringHelper() {
+      return super.toStringHelper().add("name6", name6).add("value6", value6);
+    }
+  }
+
+  public static class Level7 extends Level6 {
+
+    protected String name7;
+    protected int value7;
+
+    @Override
+    public boolean equals(Object other) {
+      if (!super.equals(other)) {
+        return false;
+      }
+      final Level7 that = (Level7) other;
+      return value7 == that.value7 && Objects.equals(name7, that.name7);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + Objects.hash(name7, value7);
+    }
+
+    @Override
+    protected MoreObjects.ToStringHelper toStringHelper() {
+      return super.toStringHelper().add("name7", name7).add("value7", value7);
+    }
+  }
+}
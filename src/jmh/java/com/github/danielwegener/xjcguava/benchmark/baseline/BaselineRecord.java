@@ -0,0 +1,63 @@
+package com.github.danielwegener.xjcguava.benchmark.baseline;
+
+import com.google.common.base.MoreObjects;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * The record type of benchmark.xsd with equals, hashCode and toString written the way they usually are by hand.
+ */
+public class BaselineRecord {
+
+  protected long id;
+  protected String name;
+  protected XMLGregorianCalendar created;
+  protected XMLGregorianCalendar modified;
+  protected BigDecimal amount;
+  protected Integer quantity;
+  protected List<String> tags;
+  protected byte[] payload;
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (other == null || getClass() != other.getClass()) {
+      return false;
+    }
+    final BaselineRecord that = (BaselineRecord) other;
+    return id == that.id
+        && Objects.equals(name, that.name)
+        && Objects.equals(created, that.created)
+        && Objects.equals(modified, that.modified)
+        && Objects.equals(amount, that.amount)
+        && Objects.equals(quantity, that.quantity)
+        && Objects.equals(tags, that.tags)
+        && Arrays.equals(payload, that.payload);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(id, name, created, modified, amount, quantity, tags, Arrays.hashCode(payload));
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("id", id)
+        .add("name", name)
+        .add("created", created)
+        .add("modified", modified)
+        .add("amount", amount)
+        .add("quantity", quantity)
+        .add("tags", tags)
+        .add("payload", payload)
+        .toString();
+  }
+}
@@ -17,36 +17,98 @@ package com.github.danielwegener.xjcguava;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import com.sun.codemodel.ClassType;
 import com.sun.codemodel.JBlock;
+import com.sun.codemodel.JCatchBlock;
 import com.sun.codemodel.JClass;
+import com.sun.codemodel.JClassAlreadyExistsException;
 import com.sun.codemodel.JCodeModel;
 import com.sun.codemodel.JConditional;
 import com.sun.codemodel.JDefinedClass;
 import com.sun.codemodel.JExpr;
 import com.sun.codemodel.JExpression;
+import com.sun.codemodel.JFieldRef;
 import com.sun.codemodel.JFieldVar;
+import com.sun.codemodel.JForEach;
+import com.sun.codemodel.JForLoop;
 import com.sun.codemodel.JInvocation;
 import com.sun.codemodel.JMethod;
 import com.sun.codemodel.JMod;
 import com.sun.codemodel.JMods;
+import com.sun.codemodel.JOp;
+import com.sun.codemodel.JPackage;
+import com.sun.codemodel.JSwitch;
+import com.sun.codemodel.JTryBlock;
 import com.sun.codemodel.JType;
 import com.sun.codemodel.JVar;
+import com.sun.codemodel.JWhileLoop;
+import com.sun.codemodel.fmt.JTextFile;
 import com.sun.tools.xjc.BadCommandLineException;
 import com.sun.tools.xjc.Options;
 import com.sun.tools.xjc.Plugin;
+import com.sun.tools.xjc.model.CPluginCustomization;
 import com.sun.tools.xjc.outline.ClassOutline;
+import com.sun.tools.xjc.outline.EnumConstantOutline;
+import com.sun.tools.xjc.outline.EnumOutline;
+import com.sun.tools.xjc.outline.FieldOutline;
 import com.sun.tools.xjc.outline.Outline;
 import org.xml.sax.ErrorHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
 import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
+import javax.xml.datatype.XMLGregorianCalendar;
 
-import static com.google.common.base.Preconditions.checkElementIndex;
 
 /**
  * <p>Generates hashCode, equals and toString methods using Guavas Objects helper class.</p>
@@ -57,174 +119,4259 @@ public class XjcGuavaPlugin extends Plugin {
 
     public static final String OPTION_NAME = "Xguava";
     public static final String SKIP_TOSTRING_PARAM = "-"+OPTION_NAME + ":skipToString";
+    public static final String UNROLLED_HASHCODE_PARAM = "-"+OPTION_NAME + ":unrolledHashCode";
+    public static final String CACHE_HASHCODE_PARAM = "-"+OPTION_NAME + ":cacheHashCode";
+
+    public static final String APPEND_TO_STRING_PARAM = "-"+OPTION_NAME + ":appendToString";
+    public static final String TOSTRING_MAX_ELEMENTS_PARAM = "-"+OPTION_NAME + ":toStringMaxElements";
+    public static final String TOSTRING_MAX_DEPTH_PARAM = "-"+OPTION_NAME + ":toStringMaxDepth";
+    public static final String DELEGATE_TO_SUPER_PARAM = "-"+OPTION_NAME + ":delegateToSuper";
+    public static final String MAX_METHOD_SIZE_PARAM = "-"+OPTION_NAME + ":maxMethodSize";
+    public static final String MAX_ARRAY_HASH_LENGTH_PARAM = "-"+OPTION_NAME + ":maxArrayHashLength";
+    public static final String FUNNEL_PARAM = "-"+OPTION_NAME + ":funnel";
+    public static final String COPY_PARAM = "-"+OPTION_NAME + ":copy";
+    public static final String INTERN_PARAM = "-"+OPTION_NAME + ":intern";
+    public static final String INTERN_FIELDS_PARAM = "-"+OPTION_NAME + ":internFields";
+    public static final String FREEZE_PARAM = "-"+OPTION_NAME + ":freeze";
+    public static final String FIELD_VISITOR_PARAM = "-"+OPTION_NAME + ":fieldVisitor";
+    public static final String COMPARATOR_PARAM = "-"+OPTION_NAME + ":comparator";
+    public static final String JDK_ONLY_PARAM = "-"+OPTION_NAME + ":jdkOnly";
+    public static final String EXTERNALIZABLE_PARAM = "-"+OPTION_NAME + ":externalizable";
+    public static final String DIFF_PARAM = "-"+OPTION_NAME + ":diff";
+    public static final String INSTRUMENT_PARAM = "-"+OPTION_NAME + ":instrument";
+    public static final String REPORT_PARAM = "-"+OPTION_NAME + ":report";
+    public static final String NULL_AS_EMPTY_PARAM = "-"+OPTION_NAME + ":nullAsEmpty";
+
+    /** HotSpot does not compile methods with more bytecode than this (-XX:HugeMethodLimit) */
+    static final int DEFAULT_MAX_METHOD_SIZE = 8000;
+    /** HotSpot inlines hot methods up to this bytecode size (-XX:FreqInlineSize) */
+    static final int CHUNK_SIZE = 325;
+    /** estimated bytecode size of a helper method without any field */
+    private static final int CHUNK_OVERHEAD = 8;
+    /** the longest byte array or list the generated codec reads, a longer length prefix means a corrupt stream */
+    static final int MAX_ENCODED_LENGTH = 1 << 24;
+
+    /** namespace of the binding customizations, requires {@code jaxb:extensionBindingPrefixes} and -extension */
+    public static final String CUSTOMIZATION_NS = "http://danielwegener.github.com/xjcguava";
+    /** leaves a field out of the generated methods: {@code <guava:ignore methods="hashCode toString"/>} */
+    public static final String IGNORE_CUSTOMIZATION = "ignore";
+    /** generates no methods for a type: {@code <guava:skip methods="toString"/>} */
+    public static final String SKIP_CUSTOMIZATION = "skip";
+    /** whitespace separated methods a customization applies to, all of them by default */
+    public static final String METHODS_ATTRIBUTE = "methods";
+    /** generates a COMPARATOR for a type ordering by the given fields first: {@code <guava:compare fields="id"/>} */
+    public static final String COMPARE_CUSTOMIZATION = "compare";
+    /** whitespace separated key fields of a comparator, in their order */
+    public static final String FIELDS_ATTRIBUTE = "fields";
+    private static final Set<String> CUSTOMIZABLE_METHODS =
+            Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList("equals", "hashCode", "toString")));
+    // referenced by name, XJC needs Guava and JSR-305 on its classpath only for the features built on Guava
+    private static final String MORE_OBJECTS = "com.google.common.base.MoreObjects";
+    private static final String TO_STRING_HELPER = MORE_OBJECTS + "$ToStringHelper";
+    private static final String IMMUTABLE_LIST = "com.google.common.collect.ImmutableList";
+    private static final String INTERNER = "com.google.common.collect.Interner";
+    private static final String INTERNERS = "com.google.common.collect.Interners";
+    private static final String FUNNEL = "com.google.common.hash.Funnel";
+    private static final String PRIMITIVE_SINK = "com.google.common.hash.PrimitiveSink";
+    private static final String NULLABLE = "javax.annotation.Nullable";
+    // Java 8, only the generated code of -Xguava:instrument needs it
+    private static final String LONG_ADDER = "java.util.concurrent.atomic.LongAdder";
+
+    static final String HASH_CODE_CACHE_FIELD = "cachedHashCode";
+    static final String FUNNEL_FIELD = "FUNNEL";
+    static final String INTERNER_FIELD = "INTERNER";
+    static final String FROZEN_FIELD = "frozen";
+    static final String FIELD_VISITOR_INTERFACE = "FieldVisitor";
+    static final String FIELD_VISITABLE_INTERFACE = "FieldVisitable";
+    static final String COMPARATOR_FIELD = "COMPARATOR";
+    static final String BEAN_CODEC_CLASS = "BeanCodec";
+    static final String SCHEMA_HASH_FIELD = "SCHEMA_HASH";
+    static final String DIFF_SINK_INTERFACE = "DiffSink";
+    static final String BEAN_STATS_CLASS = "BeanStats";
+    static final String STATS_FIELD = "STATS";
+    static final String REPORT_FILE = "xjc-guava-report.json";
+    /** buckets of the hash code histograms, a power of two */
+    private static final int HASH_BUCKETS = 64;
+    /** one in SAMPLE_MASK + 1 hash codes is added to the histogram */
+    private static final int SAMPLE_MASK = 63;
+    /** separator, '=' and a short value */
+    private static final int ESTIMATED_VALUE_LENGTH = 16;
 
     private boolean skipToString = false;
+    private boolean unrolledHashCode = false;
+    private boolean cacheHashCode = false;
+    private boolean appendToString = false;
+    private int toStringMaxElements = -1;
+    private int toStringMaxDepth = -1;
+    private boolean delegateToSuper = false;
+    private int maxMethodSize = DEFAULT_MAX_METHOD_SIZE;
+    private int maxArrayHashLength = -1;
+    private boolean funnel = false;
+    private boolean copy = false;
+    private boolean intern = false;
+    private boolean internFields = false;
+    private boolean freeze = false;
+    private boolean fieldVisitor = false;
+    private boolean comparator = false;
+    private boolean jdkOnly = false;
+    private boolean externalizable = false;
+    private boolean diff = false;
+    private boolean instrument = false;
+    private boolean report = false;
+    private boolean nullAsEmpty = false;
+
+    private final Set<JDefinedClass> hashCodeCacheInvalidated = new HashSet<JDefinedClass>();
+    private final Map<JDefinedClass, Boolean> hashCodeCacheable = new HashMap<JDefinedClass, Boolean>();
+    private final Set<JDefinedClass> appendToClasses = new HashSet<JDefinedClass>();
+    private final Set<JDefinedClass> funnelClasses = new HashSet<JDefinedClass>();
+    private final Set<JDefinedClass> copyClasses = new HashSet<JDefinedClass>();
+    private final Set<JDefinedClass> internClasses = new HashSet<JDefinedClass>();
+    private final Set<JDefinedClass> freezeClasses = new HashSet<JDefinedClass>();
+    private final Set<JDefinedClass> frozenGuarded = new HashSet<JDefinedClass>();
+    private final Set<JDefinedClass> acceptClasses = new HashSet<JDefinedClass>();
+    private JDefinedClass fieldVisitorInterface;
+    private JDefinedClass fieldVisitableInterface;
+    private final Set<JDefinedClass> externalizableClasses = new HashSet<JDefinedClass>();
+    private JDefinedClass beanCodecClass;
+    private final Map<JClass, JMethod> enumReaders = new HashMap<JClass, JMethod>();
+    private final Map<JDefinedClass, List<JDefinedClass>> subclasses = new HashMap<JDefinedClass, List<JDefinedClass>>();
+    private final Map<JDefinedClass, List<String>> enumConstants = new HashMap<JDefinedClass, List<String>>();
+    private final Map<JDefinedClass, List<JDefinedClass>> concreteClasses =
+            new HashMap<JDefinedClass, List<JDefinedClass>>();
+    private final Map<JDefinedClass, Set<JDefinedClass>> fieldClasses =
+            new HashMap<JDefinedClass, Set<JDefinedClass>>();
+    private final Map<JDefinedClass, String> layoutDigests = new HashMap<JDefinedClass, String>();
+    private final Map<JDefinedClass, Long> schemaHashes = new HashMap<JDefinedClass, Long>();
+    private JDefinedClass diffSinkInterface;
+    private final Set<JDefinedClass> diffClasses = new HashSet<JDefinedClass>();
+    private final Map<JFieldVar, JFieldVar> fieldIndexConstants = new HashMap<JFieldVar, JFieldVar>();
+    private JDefinedClass beanStatsClass;
+    // the state of -Xguava:report, the estimates are those of the class being generated
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+    private final List<ClassReport> classReports = new ArrayList<ClassReport>();
+    @Nullable
+    private Map<GeneratedMethod, Integer> estimatedSizes;
+    private final Map<JFieldVar, Set<String>> ignoredFields = new HashMap<JFieldVar, Set<String>>();
+    private final Map<JDefinedClass, Set<String>> skippedMethods = new HashMap<JDefinedClass, Set<String>>();
+    private final Map<JDefinedClass, CPluginCustomization> compareCustomizations =
+            new HashMap<JDefinedClass, CPluginCustomization>();
+    // memoized per class, the plugin only adds static or transient fields, which are not part of the bound state
+    private final Map<JDefinedClass, List<JFieldVar>> superclassFields = new HashMap<JDefinedClass, List<JFieldVar>>();
+    private final Map<JDefinedClass, List<JFieldVar>> inheritedInstanceFields =
+            new HashMap<JDefinedClass, List<JFieldVar>>();
+    private final Map<JType, ComparisonCost> comparisonCosts = new HashMap<JType, ComparisonCost>();
+    private final Map<JDefinedClass, List<JDefinedClass>> directSubclasses =
+            new HashMap<JDefinedClass, List<JDefinedClass>>();
+    private final Map<JDefinedClass, List<String>> unorderedSubclassFields = new HashMap<JDefinedClass, List<String>>();
+
+    @Override
+    public String getOptionName() {
+        return OPTION_NAME;
+    }
+
+    @Override
+    public String getUsage() {
+        return "  -" + OPTION_NAME + "\t:  enable generation of guava toString, equals and hashCode methods"
+             + "\n    -" + SKIP_TOSTRING_PARAM + "\t:  dont wrap collection parameters with Collections.unmodifiable..."
+             + "\n    -" + UNROLLED_HASHCODE_PARAM + "\t:  generate an allocation free hashCode instead of Objects.hash(...)"
+             + "\n    -" + CACHE_HASHCODE_PARAM + "\t:  cache the hashCode of beans that hash immutable values only (or "
+             + "frozen ones, see " + FREEZE_PARAM + ") in a transient field that is reset by the setters, and warn "
+             + "about the beans that hash calendars, arrays, JAXBElements, lists or nested beans and are not cached"
+             + "\n    -" + APPEND_TO_STRING_PARAM + "\t:  generate appendTo(StringBuilder) and let toString delegate to it"
+             + "\n    -" + TOSTRING_MAX_ELEMENTS_PARAM + "=N\t:  print at most N elements of each list in toString (implies "
+             + APPEND_TO_STRING_PARAM + ")"
+             + "\n    -" + TOSTRING_MAX_DEPTH_PARAM + "=N\t:  print nested beans up to depth N in toString (implies "
+             + APPEND_TO_STRING_PARAM + ")"
+             + "\n    -" + DELEGATE_TO_SUPER_PARAM + "\t:  let subclasses call super.equals/hashCode instead of repeating "
+             + "the inherited fields"
+             + "\n    -" + MAX_METHOD_SIZE_PARAM + "=N\t:  split generated methods estimated larger than N bytes of "
+             + "bytecode into helpers (default " + DEFAULT_MAX_METHOD_SIZE + ")"
+             + "\n    -" + MAX_ARRAY_HASH_LENGTH_PARAM + "=N\t:  hash primitive arrays longer than N by their length and "
+             + "their first and last N/2 elements"
+             + "\n    -" + FUNNEL_PARAM + "\t:  generate a static Funnel FUNNEL writing the fields into a PrimitiveSink"
+             + "\n    -" + COPY_PARAM + "\t:  generate a deep copy constructor and copy()"
+             + "\n    -" + INTERN_PARAM + "\t:  generate intern() returning a canonical instance from a weak Interner"
+             + "\n    -" + INTERN_FIELDS_PARAM + "\t:  let intern() intern nested beans and strings first (implies "
+             + INTERN_PARAM + ")"
+             + "\n    -" + FREEZE_PARAM + "\t:  generate freeze(), which makes lists immutable and setters fail, and a "
+             + "Builder"
+             + "\n    -" + FIELD_VISITOR_PARAM + "\t:  generate accept(FieldVisitor) with a typed callback per field"
+             + "\n    -" + COMPARATOR_PARAM
+             + "\t:  generate a static COMPARATOR consistent with equals for types whose fields can all be ordered"
+             + "\n    -" + JDK_ONLY_PARAM + "\t:  generate code depending on the JDK only, without Guava and JSR-305 "
+             + "annotations (excludes " + FUNNEL_PARAM + ", " + INTERN_PARAM + " and " + FREEZE_PARAM + ")"
+             + "\n    -" + EXTERNALIZABLE_PARAM + "\t:  implement Externalizable with a compact binary encoding checked by "
+             + "a schema hash"
+             + "\n    -" + DIFF_PARAM + "\t:  generate diff(Object, DiffSink) reporting the paths of the fields that differ"
+             + "\n    -" + INSTRUMENT_PARAM + "\t:  count the calls of equals, hashCode and toString in a BeanStats "
+             + "registry (needs Java 8)"
+             + "\n    -" + REPORT_PARAM + "\t:  write the fields, generated methods, their estimated sizes and the time "
+             + "per phase of every class into " + REPORT_FILE
+             + "\n    -" + NULL_AS_EMPTY_PARAM + "\t:  let equals, hashCode and toString treat a null list like an "
+             + "empty one";
+
+    }
+
+    @Override
+    public List<String> getCustomizationURIs() {
+        return Collections.singletonList(CUSTOMIZATION_NS);
+    }
+
+    @Override
+    public boolean isCustomizationTagName(String nsUri, String localName) {
+        return CUSTOMIZATION_NS.equals(nsUri) && (IGNORE_CUSTOMIZATION.equals(localName)
+                || SKIP_CUSTOMIZATION.equals(localName) || COMPARE_CUSTOMIZATION.equals(localName));
+    }
+
+    @VisibleForTesting
+    boolean isSkipToStringEnabled() {
+        return skipToString;
+    }
+
+    @VisibleForTesting
+    boolean isUnrolledHashCodeEnabled() {
+        return unrolledHashCode;
+    }
+
+    @VisibleForTesting
+    boolean isCacheHashCodeEnabled() {
+        return cacheHashCode;
+    }
+
+    @VisibleForTesting
+    boolean isAppendToStringEnabled() {
+        return appendToString;
+    }
+
+    @VisibleForTesting
+    int getToStringMaxElements() {
+        return toStringMaxElements;
+    }
+
+    @VisibleForTesting
+    int getToStringMaxDepth() {
+        return toStringMaxDepth;
+    }
+
+    @VisibleForTesting
+    boolean isDelegateToSuperEnabled() {
+        return delegateToSuper;
+    }
+
+    @VisibleForTesting
+    int getMaxMethodSize() {
+        return maxMethodSize;
+    }
+
+    @VisibleForTesting
+    int getMaxArrayHashLength() {
+        return maxArrayHashLength;
+    }
+
+    @VisibleForTesting
+    boolean isFunnelEnabled() {
+        return funnel;
+    }
+
+    @VisibleForTesting
+    boolean isCopyEnabled() {
+        return copy;
+    }
+
+    @VisibleForTesting
+    boolean isInternEnabled() {
+        return intern;
+    }
+
+    @VisibleForTesting
+    boolean isInternFieldsEnabled() {
+        return internFields;
+    }
+
+    @VisibleForTesting
+    boolean isFreezeEnabled() {
+        return freeze;
+    }
+
+    @VisibleForTesting
+    boolean isFieldVisitorEnabled() {
+        return fieldVisitor;
+    }
+
+    @VisibleForTesting
+    boolean isComparatorEnabled() {
+        return comparator;
+    }
+
+    @VisibleForTesting
+    boolean isJdkOnlyEnabled() {
+        return jdkOnly;
+    }
+
+    @VisibleForTesting
+    boolean isExternalizableEnabled() {
+        return externalizable;
+    }
+
+    @VisibleForTesting
+    boolean isDiffEnabled() {
+        return diff;
+    }
+
+    @VisibleForTesting
+    boolean isInstrumentEnabled() {
+        return instrument;
+    }
+
+    @VisibleForTesting
+    boolean isReportEnabled() {
+        return report;
+    }
+
+    @VisibleForTesting
+    boolean isNullAsEmptyEnabled() {
+        return nullAsEmpty;
+    }
+
+    @Override
+    public int parseArgument(@Nullable Options opt, String[] args, int i) throws BadCommandLineException, IOException {
+        if (i < 0 || i >= args.length) {
+            throw new IndexOutOfBoundsException(i < 0 ? "index (" + i + ") must not be negative"
+                    : "index (" + i + ") must be less than size (" + args.length + ")");
+        }
+        final String arg = args[i].trim();
+        if (SKIP_TOSTRING_PARAM.equals(arg)) {
+            skipToString = true;
+            return 1;
+        }
+        if (UNROLLED_HASHCODE_PARAM.equals(arg)) {
+            unrolledHashCode = true;
+            return 1;
+        }
+        if (CACHE_HASHCODE_PARAM.equals(arg)) {
+            cacheHashCode = true;
+            return 1;
+        }
+        if (APPEND_TO_STRING_PARAM.equals(arg)) {
+            appendToString = true;
+            return 1;
+        }
+        if (DELEGATE_TO_SUPER_PARAM.equals(arg)) {
+            delegateToSuper = true;
+            return 1;
+        }
+        if (FUNNEL_PARAM.equals(arg)) {
+            funnel = true;
+            checkJdkOnly();
+            return 1;
+        }
+        if (COPY_PARAM.equals(arg)) {
+            copy = true;
+            return 1;
+        }
+        if (INTERN_PARAM.equals(arg)) {
+            intern = true;
+            checkJdkOnly();
+            return 1;
+        }
+        if (INTERN_FIELDS_PARAM.equals(arg)) {
+            intern = true;
+            internFields = true;
+            checkJdkOnly();
+            return 1;
+        }
+        if (FREEZE_PARAM.equals(arg)) {
+            freeze = true;
+            checkJdkOnly();
+            return 1;
+        }
+        if (FIELD_VISITOR_PARAM.equals(arg)) {
+            fieldVisitor = true;
+            return 1;
+        }
+        if (COMPARATOR_PARAM.equals(arg)) {
+            comparator = true;
+            return 1;
+        }
+        if (JDK_ONLY_PARAM.equals(arg)) {
+            jdkOnly = true;
+            checkJdkOnly();
+            return 1;
+        }
+        if (EXTERNALIZABLE_PARAM.equals(arg)) {
+            externalizable = true;
+            return 1;
+        }
+        if (DIFF_PARAM.equals(arg)) {
+            diff = true;
+            return 1;
+        }
+        if (INSTRUMENT_PARAM.equals(arg)) {
+            instrument = true;
+            return 1;
+        }
+        if (REPORT_PARAM.equals(arg)) {
+            report = true;
+            return 1;
+        }
+        if (NULL_AS_EMPTY_PARAM.equals(arg)) {
+            nullAsEmpty = true;
+            return 1;
+        }
+        if (arg.startsWith(TOSTRING_MAX_ELEMENTS_PARAM + "=")) {
+            toStringMaxElements = parseNonNegativeInt(TOSTRING_MAX_ELEMENTS_PARAM, arg);
+            appendToString = true;
+            return 1;
+        }
+        if (arg.startsWith(TOSTRING_MAX_DEPTH_PARAM + "=")) {
+            toStringMaxDepth = parseNonNegativeInt(TOSTRING_MAX_DEPTH_PARAM, arg);
+            appendToString = true;
+            return 1;
+        }
+        if (arg.startsWith(MAX_METHOD_SIZE_PARAM + "=")) {
+            maxMethodSize = parseNonNegativeInt(MAX_METHOD_SIZE_PARAM, arg);
+            return 1;
+        }
+        if (arg.startsWith(MAX_ARRAY_HASH_LENGTH_PARAM + "=")) {
+            maxArrayHashLength = parseNonNegativeInt(MAX_ARRAY_HASH_LENGTH_PARAM, arg);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Fails if a feature built on Guava types is requested together with {@link #JDK_ONLY_PARAM}. The plugin refers to
+     * the Guava and JSR-305 types of the generated code by name, so that XJC runs without them on its classpath with
+     * {@link #JDK_ONLY_PARAM}; the only Guava annotation of the plugin, VisibleForTesting, is not retained at runtime.
+     */
+    private void checkJdkOnly() throws BadCommandLineException {
+        if (jdkOnly && (funnel || intern || freeze)) {
+            throw new BadCommandLineException(JDK_ONLY_PARAM + " cannot be combined with " + FUNNEL_PARAM + ", "
+                    + INTERN_PARAM + " or " + FREEZE_PARAM + ", they generate Guava types");
+        }
+    }
+
+    private static int parseNonNegativeInt(String param, String arg) throws BadCommandLineException {
+        final String value = arg.substring(param.length() + 1);
+        try {
+            final int parsed = Integer.parseInt(value);
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new BadCommandLineException(param + " expects a non-negative number but was: " + value);
+    }
+
+    @Override
+    public boolean run(final Outline outline, final Options options, final ErrorHandler errorHandler) {
+        final long start = System.nanoTime();
+        // For each defined class
+        final JCodeModel model = outline.getCodeModel();
+        for (final ClassOutline classOutline : outline.getClasses()) {
+            readCustomizations(classOutline, errorHandler);
+        }
+        if (comparator || !compareCustomizations.isEmpty()) {
+            // comparators of base types delegate to those of their subclasses
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                final JClass superclass = classOutline.implClass._extends();
+                if (superclass instanceof JDefinedClass) {
+                    List<JDefinedClass> children = directSubclasses.get(superclass);
+                    if (children == null) {
+                        children = new ArrayList<JDefinedClass>();
+                        directSubclasses.put((JDefinedClass) superclass, children);
+                    }
+                    children.add(classOutline.implClass);
+                }
+            }
+        }
+        if (appendToString && !skipToString) {
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                if (classOutline.implClass.getMethod("toString", new JType[0]) == null
+                        && !isSkipped(classOutline.implClass, "toString")) {
+                    appendToClasses.add(classOutline.implClass);
+                }
+            }
+        }
+        if (funnel) {
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                if (!isSkipped(classOutline.implClass, "hashCode")) {
+                    funnelClasses.add(classOutline.implClass);
+                }
+            }
+        }
+        if (copy) {
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                copyClasses.add(classOutline.implClass);
+            }
+        }
+        if (intern) {
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                internClasses.add(classOutline.implClass);
+            }
+        }
+        if (freeze) {
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                freezeClasses.add(classOutline.implClass);
+            }
+        }
+        if (fieldVisitor && !outline.getClasses().isEmpty()) {
+            // one pair of interfaces for all packages, in the first of them
+            generateFieldVisitorInterfaces(model, getFirstPackage(outline));
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                acceptClasses.add(classOutline.implClass);
+            }
+        }
+        if (instrument && !outline.getClasses().isEmpty()) {
+            generateBeanStats(model, getFirstPackage(outline));
+        }
+        if (diff && !outline.getClasses().isEmpty()) {
+            generateDiffSinkInterface(model, getFirstPackage(outline));
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                diffClasses.add(classOutline.implClass);
+            }
+        }
+        if (externalizable && !outline.getClasses().isEmpty()) {
+            generateBeanCodec(model, getFirstPackage(outline));
+            for (final EnumOutline enumOutline : outline.getEnums()) {
+                final List<String> names = new ArrayList<String>();
+                for (EnumConstantOutline constant : enumOutline.constants) {
+                    names.add(constant.constRef.getName());
+                }
+                enumConstants.put(enumOutline.clazz, names);
+            }
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                externalizableClasses.add(classOutline.implClass);
+                for (JClass superclass = classOutline.implClass._extends(); superclass instanceof JDefinedClass;
+                     superclass = superclass._extends()) {
+                    List<JDefinedClass> descendants = subclasses.get(superclass);
+                    if (descendants == null) {
+                        descendants = new ArrayList<JDefinedClass>();
+                        subclasses.put((JDefinedClass) superclass, descendants);
+                    }
+                    descendants.add(classOutline.implClass);
+                }
+            }
+            removeUnencodableClasses(model, outline, errorHandler);
+        }
+        long phaseStart = endPhase("prepare", start);
+        for (final ClassOutline classOutline : outline.getClasses()) {
+
+            final JDefinedClass implClass = classOutline.implClass;
+            final Set<JMethod> existingMethods = report ? new HashSet<JMethod>(implClass.methods()) : null;
+            if (report) {
+                estimatedSizes = new EnumMap<GeneratedMethod, Integer>(GeneratedMethod.class);
+            }
+
+            if (!skipToString && implClass.getMethod("toString",new JType[0]) == null
+                    && !isSkipped(implClass, "toString")) {
+                // abstract classes get appendTo too, fields may be declared with their type
+                if (appendToString) {
+                    generateAppendToMethod(model, implClass);
+                }
+                if (!implClass.isAbstract()) {
+                    generateToStringMethod(model, implClass);
+                }
+            }
+            phaseStart = endPhase("toString", phaseStart);
+
+            // subclasses delegating to super need the methods on abstract classes too
+            if (!implClass.isAbstract() || delegateToSuper) {
+                if (implClass.getMethod("hashCode",new JType[0]) == null && !isSkipped(implClass, "hashCode"))
+                    generateHashCodeMethod(model, implClass);
+                if (cacheHashCode && !implClass.isAbstract() && !isSkipped(implClass, "hashCode")
+                        && !isHashCodeCached(model, implClass)) {
+                    reportUncachedHashCode(model, classOutline, errorHandler);
+                }
+                phaseStart = endPhase("hashCode", phaseStart);
+                if (implClass.getMethod("equals",new JType[]{model._ref(Object.class)}) == null
+                        && !isSkipped(implClass, "equals")) {
+                    generateEqualsMethod(model,implClass);
+                }
+                phaseStart = endPhase("equals", phaseStart);
+            }
+
+            // abstract classes too, fields may be declared with their type
+            if (funnelClasses.contains(implClass)) {
+                generateFunnel(model, implClass);
+                phaseStart = endPhase("funnel", phaseStart);
+            }
+            if (copy) {
+                generateCopyMethods(model, implClass);
+                phaseStart = endPhase("copy", phaseStart);
+            }
+            if (intern) {
+                generateInternMethod(model, implClass);
+                phaseStart = endPhase("intern", phaseStart);
+            }
+            if (freeze) {
+                generateFreezeMethods(model, implClass);
+                phaseStart = endPhase("freeze", phaseStart);
+            }
+            if (fieldVisitorInterface != null) {
+                generateAcceptMethod(model, implClass);
+                phaseStart = endPhase("accept", phaseStart);
+            }
+            if (externalizableClasses.contains(implClass)) {
+                generateExternalizableMethods(model, implClass);
+                phaseStart = endPhase("externalizable", phaseStart);
+            }
+            if (diffSinkInterface != null) {
+                generateDiffMethod(model, implClass);
+                phaseStart = endPhase("diff", phaseStart);
+            }
+            final CPluginCustomization compare = compareCustomizations.get(implClass);
+            if (compare != null) {
+                final List<JFieldVar> keys = readComparatorKeys(model, implClass, compare, errorHandler);
+                final List<String> unordered = getUnorderedFieldNames(model, implClass);
+                if (!unordered.isEmpty()) {
+                    reportWarning(errorHandler, compare, "The comparator of " + implClass.name()
+                            + " is not consistent with equals, it cannot order " + unordered);
+                }
+                generateComparator(model, implClass, keys);
+            } else if (hasComparator(model, implClass)) {
+                generateComparator(model, implClass, Collections.<JFieldVar>emptyList());
+            }
+            phaseStart = endPhase("comparator", phaseStart);
+            if (report) {
+                final List<String> generatedMethods = new ArrayList<String>();
+                for (JMethod method : implClass.methods()) {
+                    if (!existingMethods.contains(method)) {
+                        generatedMethods.add(method.name());
+                    }
+                }
+                classReports.add(new ClassReport(implClass.fullName(),
+                        getInstanceFields(implClass.fields().values()).size(),
+                        getInheritedInstanceFields(implClass).size(), generatedMethods, estimatedSizes));
+                estimatedSizes = null;
+            }
+        }
+        if (report) {
+            final JTextFile reportFile = new JTextFile(REPORT_FILE);
+            reportFile.setContents(generateReport(System.nanoTime() - start));
+            model.rootPackage().addResourceFile(reportFile);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the time since the start of a phase to its total, if the report is enabled, and returns the current time.
+     */
+    private long endPhase(String phase, long phaseStart) {
+        final long now = System.nanoTime();
+        if (report) {
+            final Long total = phaseNanos.get(phase);
+            phaseNanos.put(phase, (total != null ? total : 0L) + now - phaseStart);
+        }
+        return now;
+    }
+
+    /**
+     * Returns the JSON report of the generated classes. A method is inlinable if its estimated size does not
+     * exceed the FreqInlineSize of HotSpot, and huge if it exceeds its HugeMethodLimit. Methods estimated larger
+     * than {@link #MAX_METHOD_SIZE_PARAM} are split into helpers, their estimate is that of the unsplit method.
+     */
+    private String generateReport(long totalNanos) {
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"maxMethodSize\": ").append(maxMethodSize).append(",\n");
+        json.append("  \"inlineLimit\": ").append(CHUNK_SIZE).append(",\n");
+        json.append("  \"hugeMethodLimit\": ").append(DEFAULT_MAX_METHOD_SIZE).append(",\n");
+        json.append("  \"totalMicros\": ").append(TimeUnit.NANOSECONDS.toMicros(totalNanos)).append(",\n");
+        json.append("  \"phaseMicros\": {");
+        String separator = "";
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            json.append(separator).append(jsonString(phase.getKey())).append(": ")
+                    .append(TimeUnit.NANOSECONDS.toMicros(phase.getValue()));
+            separator = ", ";
+        }
+        json.append("},\n");
+        json.append("  \"classes\": [");
+        separator = "\n";
+        for (ClassReport classReport : classReports) {
+            json.append(separator).append("    {\"name\": ").append(jsonString(classReport.name))
+                    .append(", \"fields\": ").append(classReport.fields)
+                    .append(", \"inheritedFields\": ").append(classReport.inheritedFields)
+                    .append(", \"methods\": [");
+            String methodSeparator = "";
+            for (String method : classReport.methods) {
+                json.append(methodSeparator).append(jsonString(method));
+                methodSeparator = ", ";
+            }
+            json.append("],\n      \"estimates\": [");
+            methodSeparator = "";
+            for (Map.Entry<GeneratedMethod, Integer> estimate : classReport.estimatedSizes.entrySet()) {
+                final int size = estimate.getValue();
+                json.append(methodSeparator).append("{\"method\": ").append(jsonString(estimate.getKey().methodName))
+                        .append(", \"estimatedBytes\": ").append(size)
+                        .append(", \"split\": ").append(size > maxMethodSize)
+                        .append(", \"inlinable\": ").append(size <= CHUNK_SIZE)
+                        .append(", \"huge\": ").append(size > DEFAULT_MAX_METHOD_SIZE).append('}');
+                methodSeparator = ", ";
+            }
+            json.append("]}");
+            separator = ",\n";
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    /**
+     * Returns the given text as a JSON string literal, with the characters outside of ASCII escaped.
+     */
+    private static String jsonString(String text) {
+        final StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7E) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * The fields, generated methods and estimated method sizes of a class, for the report.
+     */
+    private static final class ClassReport {
+        final String name;
+        final int fields;
+        final int inheritedFields;
+        final List<String> methods;
+        final Map<GeneratedMethod, Integer> estimatedSizes;
+
+        ClassReport(String name, int fields, int inheritedFields, List<String> methods,
+                    Map<GeneratedMethod, Integer> estimatedSizes) {
+            this.name = name;
+            this.fields = fields;
+            this.inheritedFields = inheritedFields;
+            this.methods = methods;
+            this.estimatedSizes = estimatedSizes;
+        }
+    }
+
+    /**
+     * Returns the package that comes first by name, which holds the classes generated once for all packages.
+     */
+    private static JPackage getFirstPackage(Outline outline) {
+        JPackage first = null;
+        for (final ClassOutline classOutline : outline.getClasses()) {
+            final JPackage classPackage = classOutline.implClass._package();
+            if (first == null || classPackage.name().compareTo(first.name()) < 0) {
+                first = classPackage;
+            }
+        }
+        return first;
+    }
+
+    private void readCustomizations(ClassOutline classOutline, ErrorHandler errorHandler) {
+        final CPluginCustomization skip = classOutline.target.getCustomizations()
+                .find(CUSTOMIZATION_NS, SKIP_CUSTOMIZATION);
+        if (skip != null) {
+            skip.markAsAcknowledged();
+            skipMethods(classOutline.implClass, readMethods(skip, errorHandler));
+        }
+        final CPluginCustomization compare = classOutline.target.getCustomizations()
+                .find(CUSTOMIZATION_NS, COMPARE_CUSTOMIZATION);
+        if (compare != null) {
+            compare.markAsAcknowledged();
+            compareCustomizations.put(classOutline.implClass, compare);
+        }
+        for (FieldOutline fieldOutline : classOutline.getDeclaredFields()) {
+            final CPluginCustomization ignore = fieldOutline.getPropertyInfo().getCustomizations()
+                    .find(CUSTOMIZATION_NS, IGNORE_CUSTOMIZATION);
+            if (ignore != null) {
+                ignore.markAsAcknowledged();
+                final String name = fieldOutline.getPropertyInfo().getName(false);
+                final JFieldVar field = classOutline.implClass.fields().get(name);
+                if (field == null) {
+                    reportError(errorHandler, ignore, "No field " + name + " in " + classOutline.implClass.name());
+                } else {
+                    ignoreField(field, readMethods(ignore, errorHandler));
+                }
+            }
+        }
+    }
+
+    private Set<String> readMethods(CPluginCustomization customization, ErrorHandler errorHandler) {
+        final String methods = customization.element.getAttribute(METHODS_ATTRIBUTE).trim();
+        if (methods.isEmpty()) {
+            return CUSTOMIZABLE_METHODS;
+        }
+        final Set<String> result = new HashSet<String>();
+        for (String method : methods.split("\\s+")) {
+            if (CUSTOMIZABLE_METHODS.contains(method)) {
+                result.add(method);
+            } else {
+                reportError(errorHandler, customization, "Unknown method '" + method + "' in guava:"
+                        + customization.element.getLocalName() + ", expected any of " + CUSTOMIZABLE_METHODS);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the fields named by the {@code fields} attribute of a compare customization, including inherited ones.
+     */
+    private List<JFieldVar> readComparatorKeys(JCodeModel model, JDefinedClass clazz,
+                                               CPluginCustomization customization, ErrorHandler errorHandler) {
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>(getInheritedInstanceFields(clazz));
+        fields.addAll(getInstanceFields(clazz.fields().values()));
+        final List<JFieldVar> keys = new ArrayList<JFieldVar>();
+        final String names = customization.element.getAttribute(FIELDS_ATTRIBUTE).trim();
+        for (String name : names.isEmpty() ? new String[0] : names.split("\\s+")) {
+            JFieldVar key = null;
+            for (JFieldVar field : fields) {
+                if (field.name().equals(name)) {
+                    key = field;
+                }
+            }
+            if (key == null) {
+                reportError(errorHandler, customization, "No field " + name + " in " + clazz.name());
+            } else if (!isOrderable(model, key.type())) {
+                reportError(errorHandler, customization, "The field " + name + " of " + clazz.name()
+                        + " cannot be ordered");
+            } else {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static void reportWarning(ErrorHandler errorHandler, CPluginCustomization customization, String message) {
+        reportWarning(errorHandler, customization.locator, message);
+    }
+
+    private static void reportWarning(ErrorHandler errorHandler, Locator locator, String message) {
+        try {
+            errorHandler.warning(new SAXParseException(message, locator));
+        } catch (SAXException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void reportError(ErrorHandler errorHandler, CPluginCustomization customization, String message) {
+        try {
+            errorHandler.error(new SAXParseException(message, customization.locator));
+        } catch (SAXException e) {
+            // the error handler aborts the compilation
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Leaves the field out of the given generated methods. A field left out of equals is left out of hashCode as
+     * well, equal objects must have equal hash codes.
+     */
+    protected void ignoreField(JFieldVar field, Collection<String> methods) {
+        Set<String> ignored = ignoredFields.get(field);
+        if (ignored == null) {
+            ignored = new HashSet<String>();
+            ignoredFields.put(field, ignored);
+        }
+        ignored.addAll(methods);
+        if (ignored.contains("equals")) {
+            ignored.add("hashCode");
+        }
+    }
+
+    /**
+     * Generates none of the given methods for the class. Skipping hashCode skips equals as well, equal objects
+     * must have equal hash codes.
+     */
+    protected void skipMethods(JDefinedClass clazz, Collection<String> methods) {
+        Set<String> skipped = skippedMethods.get(clazz);
+        if (skipped == null) {
+            skipped = new HashSet<String>();
+            skippedMethods.put(clazz, skipped);
+        }
+        skipped.addAll(methods);
+        if (skipped.contains("hashCode")) {
+            skipped.add("equals");
+        }
+    }
+
+    protected boolean isSkipped(JDefinedClass clazz, String method) {
+        final Set<String> skipped = skippedMethods.get(clazz);
+        return skipped != null && skipped.contains(method);
+    }
+
+    /**
+     * Returns the fields that take part in the given generated method.
+     */
+    protected List<JFieldVar> withoutIgnored(Collection<JFieldVar> fields, String method) {
+        final List<JFieldVar> result = new ArrayList<JFieldVar>(fields.size());
+        for (JFieldVar field : fields) {
+            final Set<String> ignored = ignoredFields.get(field);
+            if (ignored == null || !ignored.contains(method)) {
+                result.add(field);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the generated method may leave the inherited fields to the implementation of the superclass,
+     * which is not the case if the superclass skips the method.
+     */
+    private boolean delegatesToSuper(JDefinedClass clazz, String method) {
+        return delegateToSuper
+                && !(clazz._extends() instanceof JDefinedClass && isSkipped((JDefinedClass) clazz._extends(), method));
+    }
+
+    /**
+     * Returns the class of the given binary name, which the generated code needs at compile time only. Unless XJC runs
+     * with the class on its classpath it is referred to by name.
+     */
+    private static JClass refByName(JCodeModel model, String className) {
+        try {
+            return model.ref(Class.forName(className, false, XjcGuavaPlugin.class.getClassLoader()));
+        } catch (ClassNotFoundException e) {
+            return model.ref(className.replace('$', '.'));
+        }
+    }
+
+    private void annotateNullable(JCodeModel model, JVar var) {
+        if (!jdkOnly) {
+            var.annotate(refByName(model, NULLABLE));
+        }
+    }
+
+    protected void generateToStringMethod(JCodeModel model, JDefinedClass clazz) {
+        final JMethod toStringMethod = clazz.method(JMod.PUBLIC, String.class,"toString");
+        toStringMethod.annotate(Override.class);
+        if (appendToString) {
+            final JClass stringBuilder = model.ref(StringBuilder.class);
+            final JBlock body = toStringMethod.body();
+            final JVar sb = body.decl(JMod.FINAL, stringBuilder, "sb",
+                    JExpr._new(stringBuilder).arg(JExpr.lit(estimateToStringLength(clazz))));
+            body.invoke("appendTo").arg(sb);
+            body._return(recordToString(model, clazz, sb.invoke("toString")));
+            return;
+        }
+        final Collection<JFieldVar> superClassInstanceFields =
+                withoutIgnored(getInheritedInstanceFields(clazz), "toString");
+        final Collection<JFieldVar> thisClassInstanceFields =
+                withoutIgnored(getInstanceFields(clazz.fields().values()), "toString");
+
+        final JBlock content = toStringMethod.body();
+        if (jdkOnly) {
+            // the format of MoreObjects.toStringHelper(this).add(...).toString()
+            final List<JFieldVar> fields = new ArrayList<JFieldVar>(superClassInstanceFields);
+            fields.addAll(thisClassInstanceFields);
+            final JClass stringBuilder = model.ref(StringBuilder.class);
+            final JVar sb = content.decl(JMod.FINAL, stringBuilder, "sb",
+                    JExpr._new(stringBuilder).arg(JExpr.lit(estimateToStringLength(clazz))));
+            content.add(sb.invoke("append").arg(JExpr.invoke("getClass").invoke("getSimpleName"))
+                    .invoke("append").arg(JExpr.lit('{')));
+            generateAppendFields(model, clazz, content, new AppendContext(sb, null, null), fields, "");
+            content._return(recordToString(model, clazz, sb.invoke("append").arg(JExpr.lit('}')).invoke("toString")));
+            return;
+        }
+        final JClass objects = refByName(model, MORE_OBJECTS);
+
+        final JInvocation toStringHelperCall = objects.staticInvoke("toStringHelper");
+        toStringHelperCall.arg(JExpr._this());
+
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>(superClassInstanceFields);
+        fields.addAll(thisClassInstanceFields);
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.TO_STRING, fields);
+        recordEstimatedSize(GeneratedMethod.TO_STRING, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            final JClass toStringHelper = refByName(model, TO_STRING_HELPER);
+            final JVar helper = content.decl(JMod.FINAL, toStringHelper, "helper", toStringHelperCall);
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.TO_STRING, fields)) {
+                final JMethod chunkMethod = clazz.method(JMod.PRIVATE, model.VOID, "toString$" + chunkIndex++);
+                final JVar chunkHelper = chunkMethod.param(JMod.FINAL, toStringHelper, "helper");
+                JInvocation chunkCall = null;
+                for (JFieldVar field : chunk) {
+                    chunkCall = (chunkCall == null ? chunkHelper : chunkCall).invoke("add")
+                            .arg(JExpr.lit(field.name()))
+                            .arg(toStringValue(model, field.type(), JExpr._this().ref(field)));
+                }
+                chunkMethod.body().add(chunkCall);
+                content.invoke(chunkMethod).arg(helper);
+            }
+            content._return(recordToString(model, clazz, helper.invoke("toString")));
+            return;
+        }
+
+        JInvocation fluentCall = toStringHelperCall;
+
+        fluentCall.invoke("omitNullValues");
+
+        for (JFieldVar superField : superClassInstanceFields) {
+            fluentCall = fluentCall.invoke("add");
+            fluentCall.arg(JExpr.lit(superField.name()));
+            fluentCall.arg(toStringValue(model, superField.type(), superField));
+        }
+
+        for (JFieldVar thisField : thisClassInstanceFields) {
+            fluentCall = fluentCall.invoke("add");
+            fluentCall.arg(JExpr.lit(thisField.name()));
+            fluentCall.arg(toStringValue(model, thisField.type(), thisField));
+        }
+
+        fluentCall = fluentCall.invoke("toString");
+
+        content._return(recordToString(model, clazz, fluentCall));
+
+    }
+
+    /**
+     * Returns the value to print for a field, with {@link #NULL_AS_EMPTY_PARAM} the shared empty list instead of a
+     * null list.
+     */
+    private JExpression toStringValue(JCodeModel model, JType type, JExpression value) {
+        if (nullAsEmpty && getListElementType(model, type) != null) {
+            return JOp.cond(value.eq(JExpr._null()), model.ref(Collections.class).staticInvoke("emptyList"), value);
+        }
+        return value;
+    }
+
+    /**
+     * Generates {@code appendTo(StringBuilder)} that writes the same representation as
+     * {@code MoreObjects.toStringHelper(this).add(...).toString()} into the given buffer. Nested beans and lists
+     * of beans that have an appendTo method themselves are written into the same buffer.
+     * <p>
+     * With {@link #TOSTRING_MAX_ELEMENTS_PARAM} or {@link #TOSTRING_MAX_DEPTH_PARAM} the work is delegated to
+     * {@code appendTo(StringBuilder, Object[], int)}, which tracks the beans on the current path to cut cycles and
+     * the configured depth, and lists are truncated with a {@code ...(N more)} suffix.</p>
+     */
+    protected void generateAppendToMethod(JCodeModel model, JDefinedClass clazz) {
+        appendToClasses.add(clazz);
+        // with -Xguava:delegateToSuper subclasses only override appendFieldsTo
+        final boolean inheritsAppendTo = delegateToSuper && hasAppendTo(clazz._extends());
+        final Collection<JFieldVar> superClassInstanceFields =
+                withoutIgnored(getInheritedInstanceFields(clazz), "toString");
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>();
+        if (!inheritsAppendTo) {
+            fields.addAll(superClassInstanceFields);
+        }
+        fields.addAll(withoutIgnored(getInstanceFields(clazz.fields().values()), "toString"));
+
+        if (!inheritsAppendTo) {
+            final JMethod appendToMethod = clazz.method(JMod.PUBLIC, model.VOID, "appendTo");
+            final JVar sb = appendToMethod.param(JMod.FINAL, StringBuilder.class, "sb");
+            final JBlock content;
+            final AppendContext context;
+            if (isToStringBounded()) {
+                final JMethod boundedMethod = clazz.method(JMod.PUBLIC, model.VOID, "appendTo");
+                final JVar boundedSb = boundedMethod.param(JMod.FINAL, StringBuilder.class, "sb");
+                final JVar path = boundedMethod.param(model.ref(Object.class).array(), "path");
+                final JVar depth = boundedMethod.param(JMod.FINAL, model.INT, "depth");
+                final int initialPathLength = toStringMaxDepth >= 0 ? Math.min(toStringMaxDepth, 8) : 8;
+                appendToMethod.body().invoke(boundedMethod).arg(sb)
+                        .arg(JExpr.newArray(model.ref(Object.class), initialPathLength)).arg(JExpr.lit(0));
+
+                content = boundedMethod.body();
+                content.add(boundedSb.invoke("append").arg(JExpr.invoke("getClass").invoke("getSimpleName"))
+                        .invoke("append").arg(JExpr.lit('{')));
+                if (toStringMaxDepth >= 0) {
+                    final JBlock tooDeep = content._if(depth.gte(JExpr.lit(toStringMaxDepth)))._then();
+                    tooDeep.add(boundedSb.invoke("append").arg(JExpr.lit("...}")));
+                    tooDeep._return();
+                }
+                // the beans from the root down to this one, compared by identity
+                final JForLoop findCycle = content._for();
+                final JVar i = findCycle.init(model.INT, "i", JExpr.lit(0));
+                findCycle.test(i.lt(depth));
+                findCycle.update(i.incr());
+                final JBlock isCycle = findCycle.body()._if(JOp.eq(path.component(i), JExpr._this()))._then();
+                isCycle.add(boundedSb.invoke("append").arg(JExpr.lit("(cycle)}")));
+                isCycle._return();
+                content._if(depth.eq(path.ref("length")))._then().assign(path,
+                        model.ref(Arrays.class).staticInvoke("copyOf").arg(path).arg(depth.mul(JExpr.lit(2))));
+                content.assign(path.component(depth), JExpr._this());
+                context = new AppendContext(boundedSb, path, depth);
+            } else {
+                content = appendToMethod.body();
+                content.add(sb.invoke("append").arg(JExpr.invoke("getClass").invoke("getSimpleName"))
+                        .invoke("append").arg(JExpr.lit('{')));
+                context = new AppendContext(sb, null, null);
+            }
+            if (delegateToSuper) {
+                content.add(context.pass(JExpr.invoke("appendFieldsTo")));
+            } else {
+                generateAppendFields(model, clazz, content, context, fields, "");
+            }
+            content.add(context.sb.invoke("append").arg(JExpr.lit('}')));
+        }
+
+        if (delegateToSuper) {
+            final JMethod appendFieldsMethod = clazz.method(JMod.PROTECTED, model.VOID, "appendFieldsTo");
+            final AppendContext context = AppendContext.declare(model, appendFieldsMethod, isToStringBounded());
+            final JBlock content = appendFieldsMethod.body();
+            if (inheritsAppendTo) {
+                appendFieldsMethod.annotate(Override.class);
+                content.add(context.pass(JExpr._super().invoke("appendFieldsTo")));
+            }
+            generateAppendFields(model, clazz, content, context, fields,
+                    inheritsAppendTo && !superClassInstanceFields.isEmpty() ? ", " : "");
+        }
+    }
+
+    private void generateAppendFields(JCodeModel model, JDefinedClass clazz, JBlock content, AppendContext context,
+                                      List<JFieldVar> fields, String separator) {
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.APPEND_TO, fields);
+        recordEstimatedSize(GeneratedMethod.APPEND_TO, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.APPEND_TO, fields)) {
+                final JMethod chunkMethod = clazz.method(JMod.PRIVATE, model.VOID, "appendTo$" + chunkIndex++);
+                final AppendContext chunkContext = context.declareParams(model, chunkMethod);
+                generateAppendFieldsInline(model, chunkMethod.body(), chunkContext, chunk, separator);
+                content.add(context.pass(JExpr.invoke(chunkMethod)));
+                separator = ", ";
+            }
+        } else {
+            generateAppendFieldsInline(model, content, context, fields, separator);
+        }
+    }
+
+    private void generateAppendFieldsInline(JCodeModel model, JBlock content, AppendContext context,
+                                            List<JFieldVar> fields, String separator) {
+        for (JFieldVar field : fields) {
+            generateAppendValue(model, content, context, separator + field.name() + "=", field.type(),
+                    JExpr._this().ref(field));
+            separator = ", ";
+        }
+    }
+
+    private void generateAppendValue(JCodeModel model, JBlock block, AppendContext context, String prefix,
+                                     JType type, JExpression value) {
+        final JVar sb = context.sb;
+        final JInvocation appendPrefix = sb.invoke("append").arg(JExpr.lit(prefix));
+        final JType elementType = getListElementType(model, type);
+        final boolean appendElements = elementType != null && (hasAppendTo(elementType) || toStringMaxElements >= 0);
+        if (hasAppendTo(type) || appendElements) {
+            block.add(appendPrefix);
+            final JConditional isNull = block._if(value.eq(JExpr._null()));
+            isNull._then().add(sb.invoke("append").arg(JExpr.lit(nullAsEmpty && elementType != null ? "[]" : "null")));
+            if (elementType == null) {
+                isNull._else().add(context.appendTo(value));
+            } else {
+                // same format as AbstractCollection.toString()
+                final JBlock elements = isNull._else();
+                elements.add(sb.invoke("append").arg(JExpr.lit('[')));
+                final JVar size = toStringMaxElements >= 0
+                        ? elements.decl(JMod.FINAL, model.INT, "size", value.invoke("size")) : null;
+                final JForLoop loop = elements._for();
+                final JVar i = loop.init(model.INT, "i", JExpr.lit(0));
+                if (size != null) {
+                    loop.test(i.lt(size).cand(i.lt(JExpr.lit(toStringMaxElements))));
+                } else {
+                    loop.test(i.lt(value.invoke("size")));
+                }
+                loop.update(i.incr());
+                loop.body()._if(i.gt(JExpr.lit(0)))._then().add(sb.invoke("append").arg(JExpr.lit(", ")));
+                final JVar element = loop.body().decl(JMod.FINAL, elementType, "e", value.invoke("get").arg(i));
+                if (hasAppendTo(elementType)) {
+                    final JConditional isElementNull = loop.body()._if(element.eq(JExpr._null()));
+                    isElementNull._then().add(sb.invoke("append").arg(JExpr.lit("null")));
+                    isElementNull._else().add(context.appendTo(element));
+                } else {
+                    loop.body().add(sb.invoke("append").arg(element));
+                }
+                if (size != null) {
+                    elements._if(size.gt(JExpr.lit(toStringMaxElements)))._then().add(sb.invoke("append")
+                            .arg(JExpr.lit(toStringMaxElements == 0 ? "...(" : ", ...("))
+                            .invoke("append").arg(size.minus(JExpr.lit(toStringMaxElements)))
+                            .invoke("append").arg(JExpr.lit(" more)")));
+                }
+                elements.add(sb.invoke("append").arg(JExpr.lit(']')));
+            }
+        } else if (nullAsEmpty && elementType != null) {
+            block.add(appendPrefix.invoke("append").arg(JOp.cond(value.eq(JExpr._null()), JExpr.lit("[]"), value)));
+        } else {
+            block.add(appendPrefix.invoke("append").arg(value));
+        }
+    }
+
+    private boolean isToStringBounded() {
+        return toStringMaxElements >= 0 || toStringMaxDepth >= 0;
+    }
+
+    /**
+     * The buffer and, if toString is bounded, the path and depth of the bean being appended.
+     */
+    private static final class AppendContext {
+        final JVar sb;
+        @Nullable final JVar path;
+        @Nullable final JVar depth;
+
+        AppendContext(JVar sb, @Nullable JVar path, @Nullable JVar depth) {
+            this.sb = sb;
+            this.path = path;
+            this.depth = depth;
+        }
+
+        /** Declares the state as parameters of the given method. */
+        static AppendContext declare(JCodeModel model, JMethod method, boolean bounded) {
+            final JVar sb = method.param(JMod.FINAL, StringBuilder.class, "sb");
+            return !bounded ? new AppendContext(sb, null, null) : new AppendContext(sb,
+                    method.param(JMod.FINAL, model.ref(Object.class).array(), "path"),
+                    method.param(JMod.FINAL, model.INT, "depth"));
+        }
+
+        /** Declares the same state as parameters of another method of the bean. */
+        AppendContext declareParams(JCodeModel model, JMethod method) {
+            return declare(model, method, path != null);
+        }
+
+        /** Passes the state of this bean on to another method of the same bean. */
+        JInvocation pass(JInvocation invocation) {
+            invocation.arg(sb);
+            return path == null ? invocation : invocation.arg(path).arg(depth);
+        }
+
+        /** Appends a nested bean one level deeper. */
+        JInvocation appendTo(JExpression bean) {
+            final JInvocation invocation = bean.invoke("appendTo").arg(sb);
+            return path == null ? invocation : invocation.arg(path).arg(depth.plus(JExpr.lit(1)));
+        }
+    }
+
+    /**
+     * Returns whether values of the given type can write themselves with a generated {@code appendTo} method.
+     */
+    protected boolean hasAppendTo(JType type) {
+        return type instanceof JDefinedClass && (appendToClasses.contains(type)
+                || ((JDefinedClass) type).getMethod("appendTo", new JType[]{type.owner().ref(StringBuilder.class)}) != null);
+    }
+
+    /**
+     * Returns the element type if the given type is a {@link List}, {@code null} otherwise.
+     */
+    @Nullable
+    protected JType getListElementType(JCodeModel model, JType type) {
+        if (type instanceof JClass && ((JClass) type).erasure() == model.ref(List.class)) {
+            final List<JClass> typeParameters = ((JClass) type).getTypeParameters();
+            return typeParameters.size() == 1 ? typeParameters.get(0) : null;
+        }
+        return null;
+    }
+
+    private int estimateToStringLength(JDefinedClass clazz) {
+        int length = clazz.name().length() + 2;
+        for (JFieldVar field : withoutIgnored(getInheritedInstanceFields(clazz), "toString")) {
+            length += field.name().length() + ESTIMATED_VALUE_LENGTH;
+        }
+        for (JFieldVar field : withoutIgnored(getInstanceFields(clazz.fields().values()), "toString")) {
+            length += field.name().length() + ESTIMATED_VALUE_LENGTH;
+        }
+        return length;
+    }
+
+    protected void generateHashCodeMethod(JCodeModel model, JDefinedClass clazz) {
+
+        final Collection<JFieldVar> thisClassInstanceFields =
+                withoutIgnored(getInstanceFields(clazz.fields().values()), "hashCode");
+        final Collection<JFieldVar> superClassInstanceFields =
+                withoutIgnored(getInheritedInstanceFields(clazz), "hashCode");
+        final boolean delegates = delegatesToSuper(clazz, "hashCode");
+        // Dont create hashCode for empty classes, or for classes that can inherit it
+        if (thisClassInstanceFields.isEmpty() && (delegates || superClassInstanceFields.isEmpty())) return;
+
+        final boolean callSuper = delegates && !superClassInstanceFields.isEmpty();
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>();
+        if (!callSuper) {
+            fields.addAll(superClassInstanceFields);
+        }
+        fields.addAll(thisClassInstanceFields);
+
+        final boolean cached = isHashCodeCached(model, clazz);
+        if (delegateToSuper && (cached || countsOutermostCallsOnly())) {
+            // super.hashCode() would cache the hash of the superclass fields in the shared field and count the call
+            // for the superclass too. Every level contributes through computeHashCode() instead and only hashCode()
+            // caches and counts, declared on the root of the hierarchy or, if instrumented, on every class.
+            if (!callSuper || countsOutermostCallsOnly()) {
+                final JMethod hashCodeMethod = clazz.method(JMod.PUBLIC, model.INT, "hashCode");
+                hashCodeMethod.annotate(Override.class);
+                if (cached) {
+                    generateHashCodeCacheCheck(model, clazz, hashCodeMethod.body());
+                    generateHashCodeCacheStore(model, clazz, hashCodeMethod.body(), JExpr.invoke("computeHashCode"));
+                } else {
+                    hashCodeMethod.body()._return(recordHashCode(model, clazz, JExpr.invoke("computeHashCode")));
+                }
+            }
+            final JMethod computeMethod = clazz.method(JMod.PROTECTED, model.INT, "computeHashCode");
+            if (callSuper) {
+                computeMethod.annotate(Override.class);
+            }
+            computeMethod.body()._return(generateHashCodeComputation(model, clazz, computeMethod.body(),
+                    callSuper ? JExpr._super().invoke("computeHashCode") : null, fields, false));
+            return;
+        }
+
+        final JMethod hashCodeMethod = clazz.method(JMod.PUBLIC, model.INT ,"hashCode");
+        final JBlock content = hashCodeMethod.body();
+        hashCodeMethod.annotate(Override.class);
+
+        if (cached) {
+            generateHashCodeCacheCheck(model, clazz, content);
+            generateHashCodeCacheStore(model, clazz, content, generateHashCodeComputation(model, clazz, content,
+                    callSuper ? JExpr._super().invoke("hashCode") : null, fields, true));
+        } else {
+            content._return(recordHashCode(model, clazz, generateHashCodeComputation(model, clazz, content,
+                    callSuper ? JExpr._super().invoke("hashCode") : null, fields, false)));
+        }
+    }
+
+    /**
+     * Returns an int expression computing the hash code of the given fields, possibly declaring locals in the block.
+     *
+     * @param superHashCode the hash code of the superclass fields if they are hashed by the superclass
+     * @param qualify whether fields must be accessed through {@code this}, because locals might shadow them
+     */
+    private JExpression generateHashCodeComputation(JCodeModel model, JDefinedClass clazz, JBlock content,
+                                                    @Nullable JExpression superHashCode,
+                                                    List<JFieldVar> fields, boolean qualify) {
+        // Objects.hash(superHashCode, ...) starts with 31 * 1 + superHashCode
+        final JExpression initial = superHashCode != null ? JExpr.lit(31).plus(superHashCode) : JExpr.lit(1);
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.HASH_CODE, fields);
+        recordEstimatedSize(GeneratedMethod.HASH_CODE, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            // the unrolled computation yields the same values as Objects.hash(...) and can be split
+            final JVar hash = content.decl(model.INT, "h", initial);
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.HASH_CODE, fields)) {
+                final JMethod chunkMethod = clazz.method(JMod.PRIVATE, model.INT, "hashCode$" + chunkIndex++);
+                final JVar chunkHash = chunkMethod.param(model.INT, "h");
+                generateUnrolledHashCodeSteps(model, clazz, chunkMethod.body(), chunkHash, chunk);
+                chunkMethod.body()._return(chunkHash);
+                content.assign(hash, JExpr.invoke(chunkMethod).arg(hash));
+            }
+            return hash;
+        }
+        if (unrolledHashCode) {
+            return generateUnrolledHashCode(model, clazz, content, initial, fields);
+        }
+        final JInvocation hashCodeCall = model.ref(java.util.Objects.class).staticInvoke("hash");
+        if (superHashCode != null) {
+            hashCodeCall.arg(superHashCode);
+        }
+        for (JFieldVar field : fields) {
+            final JExpression value = qualify ? JExpr._this().ref(field) : field;
+            hashCodeCall.arg(hasSpecializedHashCode(model, field.type())
+                    ? hashCodeExpression(model, clazz, field.type(), value) : value);
+        }
+        return hashCodeCall;
+    }
+
+    /**
+     * Generates the racy single check of the hash code cache, like String.hashCode(): the computation is
+     * idempotent and int writes are atomic.
+     */
+    private void generateHashCodeCacheCheck(JCodeModel model, JDefinedClass clazz, JBlock content) {
+        final JVar cached = content.decl(JMod.FINAL, model.INT, "cached",
+                JExpr._this().ref(getHashCodeCacheField(model, clazz)));
+        content._if(cached.ne(JExpr.lit(0)))._then()._return(recordHashCode(model, clazz, cached));
+    }
+
+    private void generateHashCodeCacheStore(JCodeModel model, JDefinedClass clazz, JBlock content,
+                                            JExpression hash) {
+        final JVar computed = hash instanceof JVar
+                ? (JVar) hash : content.decl(JMod.FINAL, model.INT, "h", hash);
+        final JFieldRef cache = JExpr._this().ref(getHashCodeCacheField(model, clazz));
+        if (freeze) {
+            // lists of beans that are not frozen can be modified without calling a setter
+            content._if(JExpr._this().ref(getFrozenField(model, clazz)))._then().assign(cache, computed);
+        } else {
+            content.assign(cache, computed);
+        }
+        content._return(recordHashCode(model, clazz, computed));
+    }
+
+    /**
+     * Generates a {@code 31 * h + ...} hashCode computation that yields the same values as {@code Objects.hash(...)}
+     * without allocating the varargs array or boxing primitive fields.
+     *
+     * @param initial the initial value of the hash, {@code 1} or {@code 31 + } the hash code of the superclass fields
+     * @return the local variable holding the computed hash code
+     */
+    protected JVar generateUnrolledHashCode(JCodeModel model, JDefinedClass clazz, JBlock content,
+                                            JExpression initial, Collection<JFieldVar> fields) {
+        final JVar hash = content.decl(model.INT, "h", initial);
+        generateUnrolledHashCodeSteps(model, clazz, content, hash, fields);
+        return hash;
+    }
+
+    private void generateUnrolledHashCodeSteps(JCodeModel model, JDefinedClass clazz, JBlock content, JVar hash,
+                                               Collection<JFieldVar> fields) {
+        JVar bits = null;
+        for (JFieldVar field : fields) {
+            final JExpression value = JExpr._this().ref(field);
+            final JExpression fieldHash;
+            if (field.type() == model.DOUBLE) {
+                if (bits == null) {
+                    bits = content.decl(model.LONG, "bits");
+                }
+                content.assign(bits, model.ref(Double.class).staticInvoke("doubleToLongBits").arg(value));
+                fieldHash = longHashCode(model, bits);
+            } else {
+                fieldHash = hashCodeExpression(model, clazz, field.type(), value);
+            }
+            content.assign(hash, JExpr.lit(31).mul(hash).plus(fieldHash));
+        }
+    }
+
+    /**
+     * Returns whether the hash code of the given class is cached. Lists, nested beans, calendars and arrays can be
+     * modified without calling a setter of the bean, so the whole hierarchy of the class must hash immutable values
+     * only or, with freeze, values that freeze() makes immutable too, in which case only frozen beans cache it.
+     * Computed once per hierarchy, XJC has declared all fields of the model before the plugin runs.
+     */
+    protected boolean isHashCodeCached(JCodeModel model, JDefinedClass clazz) {
+        if (!cacheHashCode) {
+            return false;
+        }
+        final JDefinedClass root = getRootClass(clazz);
+        Boolean cacheable = hashCodeCacheable.get(root);
+        if (cacheable == null) {
+            cacheable = getMutableHashedField(model, root) == null;
+            hashCodeCacheable.put(root, cacheable);
+        }
+        return cacheable;
+    }
+
+    /**
+     * Returns the first field hashed by the hierarchy of the given root class whose value can change without
+     * calling a setter, which keeps the hierarchy from caching its hash code, or null if there is none.
+     */
+    @Nullable
+    private JFieldVar getMutableHashedField(JCodeModel model, JDefinedClass root) {
+        for (JDefinedClass c : getDefinedClasses(model)) {
+            if (getRootClass(c) != root) {
+                continue;
+            }
+            for (JFieldVar field : withoutIgnored(getInstanceFields(c.fields().values()), "hashCode")) {
+                if (!isImmutable(model, field.type()) && !(freeze && isImmutableWhenFrozen(model, field.type()))) {
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Warns that the hash code of the given class is not cached, so that -Xguava:cacheHashCode does not silently
+     * leave the beans with lists, nested beans, calendars or arrays uncached.
+     */
+    private void reportUncachedHashCode(JCodeModel model, ClassOutline classOutline, ErrorHandler errorHandler) {
+        final JDefinedClass clazz = classOutline.implClass;
+        final JFieldVar field = getMutableHashedField(model, getRootClass(clazz));
+        reportWarning(errorHandler, classOutline.target.getLocator(), "The hash code of " + clazz.name()
+                + " is not cached, its field " + field.name() + " can change without calling a setter"
+                + (freeze ? "" : " (with " + FREEZE_PARAM + " frozen beans with lists and nested beans cache it)"));
+    }
+
+    private boolean isImmutableWhenFrozen(JCodeModel model, JType type) {
+        final JType elementType = getListElementType(model, type);
+        return hasFreeze(type) || (elementType != null
+                && (isImmutable(model, elementType) || hasFreeze(elementType)));
+    }
+
+    /**
+     * Returns the topmost generated ancestor of the given class, or the class itself.
+     */
+    private JDefinedClass getRootClass(JDefinedClass clazz) {
+        JDefinedClass root = clazz;
+        while (root._extends() instanceof JDefinedClass) {
+            root = (JDefinedClass) root._extends();
+        }
+        return root;
+    }
+
+    /**
+     * Returns the classes of the model, including nested ones.
+     */
+    private List<JDefinedClass> getDefinedClasses(JCodeModel model) {
+        final List<JDefinedClass> classes = new ArrayList<JDefinedClass>();
+        for (Iterator<JPackage> packages = model.packages(); packages.hasNext();) {
+            addDefinedClasses(packages.next().classes(), classes);
+        }
+        return classes;
+    }
+
+    private void addDefinedClasses(Iterator<JDefinedClass> iterator, List<JDefinedClass> classes) {
+        while (iterator.hasNext()) {
+            final JDefinedClass clazz = iterator.next();
+            classes.add(clazz);
+            addDefinedClasses(clazz.classes(), classes);
+        }
+    }
+
+    /**
+     * Returns the transient hash code cache of the hierarchy the given class belongs to. The field is declared once
+     * on the topmost generated ancestor so that the setters of every class in the hierarchy can reset it.
+     */
+    protected JFieldVar getHashCodeCacheField(JCodeModel model, JDefinedClass clazz) {
+        final JDefinedClass root = getRootClass(clazz);
+        JFieldVar cache = root.fields().get(HASH_CODE_CACHE_FIELD);
+        if (cache == null) {
+            cache = root.field(JMod.PROTECTED | JMod.TRANSIENT, model.INT, HASH_CODE_CACHE_FIELD);
+        }
+        for (JDefinedClass c = clazz; c != null;
+             c = c._extends() instanceof JDefinedClass ? (JDefinedClass) c._extends() : null) {
+            invalidateHashCodeCacheInSetters(c, cache);
+        }
+        return cache;
+    }
+
+    private void invalidateHashCodeCacheInSetters(JDefinedClass clazz, JFieldVar cache) {
+        if (!hashCodeCacheInvalidated.add(clazz)) {
+            return;
+        }
+        for (JMethod method : clazz.methods()) {
+            if (method.name().startsWith("set") || method.name().startsWith("unset")) {
+                method.body().assign(JExpr._this().ref(cache), JExpr.lit(0));
+            }
+        }
+    }
+
+    /**
+     * Returns an int expression equal to the {@code hashCode()} of the (boxed) value, without boxing it.
+     * Doubles need a temporary and are handled by the caller. Types with a {@link #hasSpecializedHashCode specialized}
+     * hash code are hashed consistently with {@link #equalsExpression}, but not like their own hashCode().
+     */
+    protected JExpression hashCodeExpression(JCodeModel model, JDefinedClass clazz, JType type, JExpression value) {
+        if (type == model.BOOLEAN) {
+            return JOp.cond(value, JExpr.lit(1231), JExpr.lit(1237));
+        }
+        if (type == model.LONG) {
+            return longHashCode(model, value);
+        }
+        if (type == model.FLOAT) {
+            return model.ref(Float.class).staticInvoke("floatToIntBits").arg(value);
+        }
+        if (type.isPrimitive()) {
+            // int, short, byte and char hash to their int value
+            return value;
+        }
+        if (isCalendar(model, type)) {
+            return JExpr.invoke(getCalendarHashCodeMethod(model, clazz)).arg(value);
+        }
+        if (isJaxbElement(model, type)) {
+            return JExpr.invoke(getJaxbElementHashCodeMethod(model, clazz)).arg(value);
+        }
+        if (isJaxbElementList(model, type)) {
+            return JExpr.invoke(getListHashCodeMethod(model, clazz, true)).arg(value);
+        }
+        if (nullAsEmpty && getListElementType(model, type) != null) {
+            return JExpr.invoke(getListHashCodeMethod(model, clazz, false)).arg(value);
+        }
+        if (type.isArray()) {
+            if (type.elementType().isArray()) {
+                return model.ref(Arrays.class).staticInvoke("deepHashCode").arg(value);
+            }
+            if (maxArrayHashLength >= 0 && type.elementType().isPrimitive()) {
+                return JExpr.invoke(getArrayHashCodeMethod(model, clazz, type)).arg(value);
+            }
+            return model.ref(Arrays.class).staticInvoke("hashCode").arg(value);
+        }
+        return JOp.cond(value.eq(JExpr._null()), JExpr.lit(0), value.invoke("hashCode"));
+    }
+
+    /**
+     * Returns whether values of the given type are hashed by generated code instead of their own hashCode(), which
+     * also applies when the hash code is computed with {@code Objects.hash(...)}.
+     */
+    protected boolean hasSpecializedHashCode(JCodeModel model, JType type) {
+        return isCalendar(model, type) || type.isArray() || isJaxbElement(model, type)
+                || isJaxbElementList(model, type) || nullAsEmpty && getListElementType(model, type) != null;
+    }
+
+    private boolean isCalendar(JCodeModel model, JType type) {
+        return type == model.ref(XMLGregorianCalendar.class);
+    }
+
+    private boolean isJaxbElement(JCodeModel model, @Nullable JType type) {
+        return type instanceof JClass && ((JClass) type).erasure() == model.ref(JAXBElement.class);
+    }
+
+    /**
+     * Returns whether the type is a list that may hold JAXBElements, like the content of mixed or any elements.
+     */
+    private boolean isJaxbElementList(JCodeModel model, JType type) {
+        final JType elementType = getListElementType(model, type);
+        return isJaxbElement(model, elementType)
+                || elementType == model.ref(Object.class) || elementType == model.ref(Serializable.class);
+    }
+
+    /**
+     * Returns the {@code jaxbElementEquals(JAXBElement, JAXBElement)} of the class, generating it on first use.
+     * JAXBElement does not override equals, the helper compares the declared type, scope, nil flag, name and value,
+     * the cheap reference and flag checks first. byte[] values are compared by content.
+     */
+    private JMethod getJaxbElementEqualsMethod(JCodeModel model, JDefinedClass clazz) {
+        final JClass elementClass = model.ref(JAXBElement.class).narrow(model.ref(Object.class).wildcard());
+        JMethod method = clazz.getMethod("jaxbElementEquals", new JType[]{elementClass, elementClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.BOOLEAN, "jaxbElementEquals");
+        final JVar a = method.param(JMod.FINAL, elementClass, "a");
+        final JVar b = method.param(JMod.FINAL, elementClass, "b");
+        final JBlock body = method.body();
+        body._if(a.eq(b))._then()._return(JExpr.TRUE);
+        body._if(a.eq(JExpr._null()).cor(b.eq(JExpr._null())))._then()._return(JExpr.FALSE);
+        body._if(a.invoke("getDeclaredType").ne(b.invoke("getDeclaredType"))
+                .cor(a.invoke("getScope").ne(b.invoke("getScope")))
+                .cor(a.invoke("isNil").ne(b.invoke("isNil")))
+                .cor(a.invoke("getName").invoke("equals").arg(b.invoke("getName")).not()))._then()
+                ._return(JExpr.FALSE);
+        final JVar aValue = body.decl(JMod.FINAL, model.ref(Object.class), "aValue", a.invoke("getValue"));
+        final JVar bValue = body.decl(JMod.FINAL, model.ref(Object.class), "bValue", b.invoke("getValue"));
+        final JType bytes = model.BYTE.array();
+        body._if(aValue._instanceof(bytes).cand(bValue._instanceof(bytes)))._then()._return(model.ref(Arrays.class)
+                .staticInvoke("equals").arg(JExpr.cast(bytes, aValue)).arg(JExpr.cast(bytes, bValue)));
+        body._return(model.ref(java.util.Objects.class).staticInvoke("equals").arg(aValue).arg(bValue));
+        return method;
+    }
+
+    private JMethod getJaxbElementHashCodeMethod(JCodeModel model, JDefinedClass clazz) {
+        final JClass elementClass = model.ref(JAXBElement.class).narrow(model.ref(Object.class).wildcard());
+        JMethod method = clazz.getMethod("jaxbElementHashCode", new JType[]{elementClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.INT, "jaxbElementHashCode");
+        final JVar element = method.param(JMod.FINAL, elementClass, "e");
+        final JBlock body = method.body();
+        body._if(element.eq(JExpr._null()))._then()._return(JExpr.lit(0));
+        final JVar value = body.decl(JMod.FINAL, model.ref(Object.class), "value", element.invoke("getValue"));
+        final JType bytes = model.BYTE.array();
+        final JExpression valueHash = JOp.cond(value._instanceof(bytes),
+                model.ref(Arrays.class).staticInvoke("hashCode").arg(JExpr.cast(bytes, value)),
+                model.ref(java.util.Objects.class).staticInvoke("hashCode").arg(value));
+        body._return(JExpr.lit(31).mul(element.invoke("getName").invoke("hashCode")).plus(valueHash));
+        return method;
+    }
+
+    /**
+     * Returns the {@code jaxbElementListEquals(List, List)} or, for lists without JAXBElements, the
+     * {@code listEquals(List, List)} of the class, generating it on first use. It compares like List.equals(...), but
+     * JAXBElements like {@link #getJaxbElementEqualsMethod} and by index, without allocating an iterator. With
+     * {@link #NULL_AS_EMPTY_PARAM} null lists compare like empty ones, the sizes are compared before any element.
+     */
+    private JMethod getListEqualsMethod(JCodeModel model, JDefinedClass clazz, boolean mayHoldJaxbElements) {
+        final String name = mayHoldJaxbElements ? "jaxbElementListEquals" : "listEquals";
+        final JClass listClass = model.ref(List.class).narrow(model.ref(Object.class).wildcard());
+        JMethod method = clazz.getMethod(name, new JType[]{listClass, listClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.BOOLEAN, name);
+        final JVar a = method.param(JMod.FINAL, listClass, "a");
+        final JVar b = method.param(JMod.FINAL, listClass, "b");
+        final JBlock body = method.body();
+        body._if(a.eq(b))._then()._return(JExpr.TRUE);
+        final JExpression size;
+        if (nullAsEmpty) {
+            size = body.decl(JMod.FINAL, model.INT, "size", nullSafeSize(a));
+            body._if(size.ne(nullSafeSize(b)))._then()._return(JExpr.FALSE);
+        } else {
+            body._if(a.eq(JExpr._null()).cor(b.eq(JExpr._null())).cor(a.invoke("size").ne(b.invoke("size"))))
+                    ._then()._return(JExpr.FALSE);
+            size = a.invoke("size");
+        }
+        final JForLoop loop = body._for();
+        final JVar i = loop.init(model.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(size));
+        loop.update(i.incr());
+        final JVar aElement = loop.body().decl(JMod.FINAL, model.ref(Object.class), "aElement", a.invoke("get").arg(i));
+        final JVar bElement = loop.body().decl(JMod.FINAL, model.ref(Object.class), "bElement", b.invoke("get").arg(i));
+        loop.body()._if((mayHoldJaxbElements ? jaxbElementListElementsEqual(model, clazz, aElement, bElement)
+                : model.ref(java.util.Objects.class).staticInvoke("equals").arg(aElement).arg(bElement)).not())
+                ._then()._return(JExpr.FALSE);
+        body._return(JExpr.TRUE);
+        return method;
+    }
+
+    /**
+     * Returns an int expression with the size of the list, 0 if it is null.
+     */
+    private static JExpression nullSafeSize(JExpression list) {
+        return JOp.cond(list.eq(JExpr._null()), JExpr.lit(0), list.invoke("size"));
+    }
+
+    /**
+     * Returns a boolean expression comparing two elements of a list that may hold JAXBElements.
+     */
+    private JExpression jaxbElementListElementsEqual(JCodeModel model, JDefinedClass clazz, JVar a, JVar b) {
+        final JClass elementClass = model.ref(JAXBElement.class).narrow(model.ref(Object.class).wildcard());
+        return JOp.cond(
+                a._instanceof(model.ref(JAXBElement.class)).cand(b._instanceof(model.ref(JAXBElement.class))),
+                JExpr.invoke(getJaxbElementEqualsMethod(model, clazz))
+                        .arg(JExpr.cast(elementClass, a)).arg(JExpr.cast(elementClass, b)),
+                model.ref(java.util.Objects.class).staticInvoke("equals").arg(a).arg(b));
+    }
+
+    /**
+     * Returns the {@code jaxbElementListHashCode(List)} or the {@code listHashCode(List)} of the class, the
+     * counterparts of {@link #getListEqualsMethod}. With {@link #NULL_AS_EMPTY_PARAM} null lists hash like empty
+     * ones.
+     */
+    private JMethod getListHashCodeMethod(JCodeModel model, JDefinedClass clazz, boolean mayHoldJaxbElements) {
+        final String name = mayHoldJaxbElements ? "jaxbElementListHashCode" : "listHashCode";
+        final JClass listClass = model.ref(List.class).narrow(model.ref(Object.class).wildcard());
+        JMethod method = clazz.getMethod(name, new JType[]{listClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.INT, name);
+        final JVar list = method.param(JMod.FINAL, listClass, "list");
+        final JBlock body = method.body();
+        // the hash code of an empty list is 1
+        body._if(list.eq(JExpr._null()))._then()._return(JExpr.lit(nullAsEmpty ? 1 : 0));
+        final JVar hash = body.decl(model.INT, "h", JExpr.lit(1));
+        final JForLoop loop = body._for();
+        final JVar i = loop.init(model.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(list.invoke("size")));
+        loop.update(i.incr());
+        final JVar element = loop.body().decl(JMod.FINAL, model.ref(Object.class), "e", list.invoke("get").arg(i));
+        final JExpression elementHash = model.ref(java.util.Objects.class).staticInvoke("hashCode").arg(element);
+        if (mayHoldJaxbElements) {
+            final JClass elementClass = model.ref(JAXBElement.class).narrow(model.ref(Object.class).wildcard());
+            loop.body().assign(hash, JExpr.lit(31).mul(hash).plus(JOp.cond(
+                    element._instanceof(model.ref(JAXBElement.class)),
+                    JExpr.invoke(getJaxbElementHashCodeMethod(model, clazz)).arg(JExpr.cast(elementClass, element)),
+                    elementHash)));
+        } else {
+            loop.body().assign(hash, JExpr.lit(31).mul(hash).plus(elementHash));
+        }
+        body._return(hash);
+        return method;
+    }
+
+    /**
+     * Returns the {@code arrayHashCode(...)} of the class for the given primitive array type, generating it on first
+     * use. Arrays up to {@link #MAX_ARRAY_HASH_LENGTH_PARAM} elements hash like {@code Arrays.hashCode(...)}, longer
+     * ones by their length and the elements at both ends only, so that hashing large binary content stays cheap.
+     * Equal arrays still hash alike, equals compares every element.
+     */
+    private JMethod getArrayHashCodeMethod(JCodeModel model, JDefinedClass clazz, JType arrayType) {
+        JMethod method = clazz.getMethod("arrayHashCode", new JType[]{arrayType});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.INT, "arrayHashCode");
+        final JVar array = method.param(JMod.FINAL, arrayType, "a");
+        final JBlock body = method.body();
+        final JClass arrays = model.ref(Arrays.class);
+        body._if(array.eq(JExpr._null()).cor(array.ref("length").lte(JExpr.lit(maxArrayHashLength))))._then()
+                ._return(arrays.staticInvoke("hashCode").arg(array));
+
+        final int sampleLength = maxArrayHashLength / 2;
+        final JVar hash = body.decl(model.INT, "h", JExpr.lit(31).plus(array.ref("length")));
+        final JVar bits = arrayType.elementType() == model.DOUBLE ? body.decl(model.LONG, "bits") : null;
+        final JForLoop loop = body._for();
+        final JVar i = loop.init(model.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(JExpr.lit(2 * sampleLength)));
+        loop.update(i.incr());
+        // the first sampleLength elements, then the last ones
+        final JExpression element = array.component(JOp.cond(i.lt(JExpr.lit(sampleLength)), i,
+                array.ref("length").minus(JExpr.lit(2 * sampleLength)).plus(i)));
+        final JExpression elementHash;
+        if (bits != null) {
+            loop.body().assign(bits, model.ref(Double.class).staticInvoke("doubleToLongBits").arg(element));
+            elementHash = longHashCode(model, bits);
+        } else {
+            elementHash = hashCodeExpression(model, clazz, arrayType.elementType(), element);
+        }
+        loop.body().assign(hash, JExpr.lit(31).mul(hash).plus(elementHash));
+        body._return(hash);
+        return method;
+    }
+
+    /**
+     * Returns the {@code calendarEquals(XMLGregorianCalendar, XMLGregorianCalendar)} of the class, generating it on
+     * first use. XMLGregorianCalendar.equals(...) normalizes both values to UTC, allocating on every call. Values
+     * in the same time zone, which is the common case, are compared field by field instead, with the same
+     * semantics.
+     */
+    private JMethod getCalendarEqualsMethod(JCodeModel model, JDefinedClass clazz) {
+        final JClass calendarClass = model.ref(XMLGregorianCalendar.class);
+        JMethod method = clazz.getMethod("calendarEquals", new JType[]{calendarClass, calendarClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.BOOLEAN, "calendarEquals");
+        final JVar a = method.param(JMod.FINAL, calendarClass, "a");
+        final JVar b = method.param(JMod.FINAL, calendarClass, "b");
+        final JBlock body = method.body();
+        body._if(a.eq(b))._then()._return(JExpr.TRUE);
+        body._if(a.eq(JExpr._null()).cor(b.eq(JExpr._null())))._then()._return(JExpr.FALSE);
+        body._if(a.invoke("getTimezone").ne(b.invoke("getTimezone")))._then()._return(a.invoke("equals").arg(b));
+
+        JExpression fieldsEqual = JExpr.TRUE;
+        for (String getter : new String[]{"getYear", "getMonth", "getDay", "getHour", "getMinute", "getSecond"}) {
+            fieldsEqual = fieldsEqual.cand(a.invoke(getter).eq(b.invoke(getter)));
+        }
+        fieldsEqual = fieldsEqual.cand(model.ref(java.util.Objects.class).staticInvoke("equals")
+                .arg(a.invoke("getEon")).arg(b.invoke("getEon")));
+        body._if(fieldsEqual.not())._then()._return(JExpr.FALSE);
+
+        // undefined fractional seconds compare like zero
+        final JClass bigDecimal = model.ref(BigDecimal.class);
+        final JVar aFraction = body.decl(JMod.FINAL, bigDecimal, "aFraction", a.invoke("getFractionalSecond"));
+        final JVar bFraction = body.decl(JMod.FINAL, bigDecimal, "bFraction", b.invoke("getFractionalSecond"));
+        body._return(aFraction.eq(bFraction).cor(
+                JOp.cond(aFraction.eq(JExpr._null()), bigDecimal.staticRef("ZERO"), aFraction).invoke("compareTo")
+                        .arg(JOp.cond(bFraction.eq(JExpr._null()), bigDecimal.staticRef("ZERO"), bFraction))
+                        .eq(JExpr.lit(0))));
+        return method;
+    }
+
+    /**
+     * Returns the {@code calendarHashCode(XMLGregorianCalendar)} of the class, generating it on first use. Values
+     * with a time zone are hashed by the instant in UTC, like XMLGregorianCalendar.hashCode(), but computed in
+     * place instead of normalizing a copy. Dates hash by their day in UTC and times by their minute of the day,
+     * as normalize() keeps the undefined fields undefined. The rare partial values with a time zone, like a gYear,
+     * fall back to hashCode().
+     */
+    private JMethod getCalendarHashCodeMethod(JCodeModel model, JDefinedClass clazz) {
+        final JClass calendarClass = model.ref(XMLGregorianCalendar.class);
+        JMethod method = clazz.getMethod("calendarHashCode", new JType[]{calendarClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.INT, "calendarHashCode");
+        final JVar c = method.param(JMod.FINAL, calendarClass, "c");
+        final JBlock body = method.body();
+        body._if(c.eq(JExpr._null()))._then()._return(JExpr.lit(0));
+
+        final JExpression undefined = model.ref(DatatypeConstants.class).staticRef("FIELD_UNDEFINED");
+        final JVar year = body.decl(JMod.FINAL, model.INT, "year", c.invoke("getYear"));
+        final JVar month = body.decl(JMod.FINAL, model.INT, "month", c.invoke("getMonth"));
+        final JVar day = body.decl(JMod.FINAL, model.INT, "day", c.invoke("getDay"));
+        final JVar hour = body.decl(JMod.FINAL, model.INT, "hour", c.invoke("getHour"));
+        final JVar minute = body.decl(JMod.FINAL, model.INT, "minute", c.invoke("getMinute"));
+        final JVar second = body.decl(JMod.FINAL, model.INT, "second", c.invoke("getSecond"));
+        final JVar timezone = body.decl(JMod.FINAL, model.INT, "timezone", c.invoke("getTimezone"));
+        JExpression rawHash = year;
+        for (JVar field : new JVar[]{month, day, hour, minute, second}) {
+            rawHash = JExpr.lit(31).mul(rawHash).plus(field);
+        }
+        body._if(timezone.eq(undefined))._then()._return(rawHash);
+
+        final JVar hasDate = body.decl(JMod.FINAL, model.BOOLEAN, "hasDate",
+                year.ne(undefined).cand(month.ne(undefined)).cand(day.ne(undefined)));
+        final JVar hasTime = body.decl(JMod.FINAL, model.BOOLEAN, "hasTime",
+                hour.ne(undefined).cand(minute.ne(undefined)));
+        final JExpression partialDate = hasDate.not()
+                .cand(year.ne(undefined).cor(month.ne(undefined)).cor(day.ne(undefined)));
+        final JExpression partialTime = hasTime.not().cand(hour.ne(undefined).cor(minute.ne(undefined)));
+        body._if(partialDate.cor(partialTime).cor(hasDate.not().cand(hasTime.not())))._then()
+                ._return(c.invoke("hashCode"));
+
+        // minutes since 0000-03-01T00:00Z of the proleptic Gregorian calendar
+        final JVar minutes = body.decl(model.LONG, "minutes", JOp.cond(hasTime,
+                JExpr.lit(60L).mul(hour).plus(minute).minus(timezone), JExpr.lit(0L).minus(timezone)));
+        final JBlock date = body._if(hasDate)._then();
+        final JVar y = date.decl(JMod.FINAL, model.LONG, "y",
+                year.minus(JOp.cond(month.lte(JExpr.lit(2)), JExpr.lit(1), JExpr.lit(0))));
+        final JVar era = date.decl(JMod.FINAL, model.LONG, "era",
+                JOp.cond(y.gte(JExpr.lit(0)), y, y.minus(JExpr.lit(399))).div(JExpr.lit(400)));
+        final JVar yearOfEra = date.decl(JMod.FINAL, model.LONG, "yearOfEra", y.minus(era.mul(JExpr.lit(400))));
+        final JVar dayOfYear = date.decl(JMod.FINAL, model.LONG, "dayOfYear",
+                JExpr.lit(153).mul(JOp.cond(month.gt(JExpr.lit(2)), month.minus(JExpr.lit(3)), month.plus(JExpr.lit(9))))
+                        .plus(JExpr.lit(2)).div(JExpr.lit(5)).plus(day).minus(JExpr.lit(1)));
+        date.assign(minutes, minutes.plus(era.mul(JExpr.lit(146097)).plus(yearOfEra.mul(JExpr.lit(365)))
+                .plus(yearOfEra.div(JExpr.lit(4))).minus(yearOfEra.div(JExpr.lit(100))).plus(dayOfYear)
+                .mul(JExpr.lit(1440))));
+        final JVar days = body.decl(JMod.FINAL, model.LONG, "days", JOp.cond(minutes.gte(JExpr.lit(0)),
+                minutes, minutes.minus(JExpr.lit(1439))).div(JExpr.lit(1440)));
+        final JVar instant = body.decl(JMod.FINAL, model.LONG, "instant", JOp.cond(hasTime.not(), days,
+                JOp.cond(hasDate, minutes, minutes.minus(days.mul(JExpr.lit(1440))))));
+        body._return(JExpr.lit(31).mul(longHashCode(model, instant)).plus(second));
+        return method;
+    }
+
+    private JExpression longHashCode(JCodeModel model, JExpression value) {
+        return JExpr.cast(model.INT, value.xor(value.shrz(JExpr.lit(32))));
+    }
+
+    protected void generateEqualsMethod(JCodeModel model, JDefinedClass clazz) {
+        final Collection<JFieldVar> superClassInstanceFields =
+                withoutIgnored(getInheritedInstanceFields(clazz), "equals");
+        final Collection<JFieldVar> thisClassInstanceFields =
+                withoutIgnored(getInstanceFields(clazz.fields().values()), "equals");
+        final boolean delegates = delegatesToSuper(clazz, "equals");
+        // Dont create equals for empty classes, or for classes that can inherit it
+        if (thisClassInstanceFields.isEmpty() && (delegates || superClassInstanceFields.isEmpty())) return;
+        final boolean callSuper = delegates && !superClassInstanceFields.isEmpty();
+
+        final JMethod equalsMethod = clazz.method(JMod.PUBLIC, model.BOOLEAN ,"equals");
+        equalsMethod.annotate(Override.class);
+        JVar other = equalsMethod.param(Object.class,"other");
+        annotateNullable(model, other);
+
+        JBlock content = equalsMethod.body();
+        if (beanStatsClass != null) {
+            content.add(getStatsField(model, clazz).invoke("recordEquals"));
+        }
+        if (countsOutermostCallsOnly()) {
+            // super.equals(other) would count the call for the superclass too
+            final JMethod equalsFieldsMethod = clazz.method(JMod.PROTECTED, model.BOOLEAN, "equalsFields");
+            if (callSuper) {
+                equalsFieldsMethod.annotate(Override.class);
+            }
+            content._return(JExpr.invoke(equalsFieldsMethod).arg(other));
+            other = equalsFieldsMethod.param(Object.class, "other");
+            annotateNullable(model, other);
+            content = equalsFieldsMethod.body();
+        }
+
+        final JConditional ifSameRef = content._if(JExpr._this().eq(other));
+        ifSameRef._then()._return(JExpr.TRUE);
+
+        final JConditional isOtherNull = content._if(other.eq(JExpr._null()));
+        isOtherNull._then()._return(JExpr.FALSE);
+
+        JExpression equalsBuilder = JExpr.TRUE;
+
+        final JConditional isOtherNotSameClass = content._if(JExpr.invoke("getClass").ne(other.invoke("getClass")));
+        isOtherNotSameClass._then()._return(JExpr.FALSE);
+
+        final JVar otherTypesafe = content.decl(JMod.FINAL, clazz, "o", JExpr.cast(clazz, other));
+
+        if (isHashCodeCached(model, clazz)) {
+            // unequal cached hash codes prove inequality without comparing any field
+            final JFieldVar cache = getHashCodeCacheField(model, clazz);
+            final JExpression thisHash = JExpr._this().ref(cache);
+            final JExpression otherHash = otherTypesafe.ref(cache);
+            JExpression cachedHashes = thisHash.ne(JExpr.lit(0)).cand(otherHash.ne(JExpr.lit(0)));
+            if (freeze) {
+                final JFieldVar frozen = getFrozenField(model, clazz);
+                cachedHashes = JExpr._this().ref(frozen).cand(otherTypesafe.ref(frozen)).cand(cachedHashes);
+            }
+            content._if(cachedHashes.cand(thisHash.ne(otherHash)))._then()._return(JExpr.FALSE);
+        }
+
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>();
+        if (!callSuper) {
+            fields.addAll(superClassInstanceFields);
+        }
+        fields.addAll(thisClassInstanceFields);
+
+        final List<JFieldVar> comparisons = sortByComparisonCost(model, fields);
+        if (callSuper) {
+            // null stands for super.equals(...), right after the primitives and enums of this class
+            int superIndex = 0;
+            while (superIndex < comparisons.size() && getComparisonCost(model, comparisons.get(superIndex).type())
+                    .compareTo(ComparisonCost.ENUM) <= 0) {
+                superIndex++;
+            }
+            comparisons.add(superIndex, null);
+        }
+
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.EQUALS, comparisons);
+        recordEstimatedSize(GeneratedMethod.EQUALS, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.EQUALS, comparisons)) {
+                final JMethod chunkMethod = clazz.method(JMod.PRIVATE, model.BOOLEAN, "equals$" + chunkIndex++);
+                final JVar chunkOther = chunkMethod.param(JMod.FINAL, clazz, "o");
+                chunkMethod.body()._return(generateEqualsChain(model, clazz, chunk, chunkOther, chunkOther));
+                equalsBuilder = equalsBuilder.cand(JExpr.invoke(chunkMethod).arg(otherTypesafe));
+            }
+        } else {
+            equalsBuilder = generateEqualsChain(model, clazz, comparisons, other, otherTypesafe);
+        }
+        content._return(equalsBuilder);
+    }
+
+    private JExpression generateEqualsChain(JCodeModel model, JDefinedClass clazz, List<JFieldVar> comparisons,
+                                            JVar other, JVar otherTypesafe) {
+        JExpression equalsBuilder = JExpr.TRUE;
+        for (JFieldVar field : comparisons) {
+            equalsBuilder = equalsBuilder.cand(field == null
+                    ? JExpr._super().invoke(countsOutermostCallsOnly() ? "equalsFields" : "equals").arg(other)
+                    : equalsExpression(model, clazz, field.type(), JExpr._this().ref(field), otherTypesafe.ref(field)));
+        }
+        return equalsBuilder;
+    }
+
+    /**
+     * Returns a boolean expression comparing two values of the given type with the semantics of
+     * {@code Objects.equals(...)}. Primitives are compared without boxing them, XMLGregorianCalendars without
+     * normalizing them if they are in the same time zone. Arrays are compared by their content, JAXBElements
+     * and lists that may hold them by their name and value.
+     */
+    protected JExpression equalsExpression(JCodeModel model, JDefinedClass clazz, JType type, JExpression left,
+                                           JExpression right) {
+        if (type == model.DOUBLE) {
+            final JClass doubleClass = model.ref(Double.class);
+            return doubleClass.staticInvoke("doubleToLongBits").arg(left)
+                    .eq(doubleClass.staticInvoke("doubleToLongBits").arg(right));
+        }
+        if (type == model.FLOAT) {
+            final JClass floatClass = model.ref(Float.class);
+            return floatClass.staticInvoke("floatToIntBits").arg(left)
+                    .eq(floatClass.staticInvoke("floatToIntBits").arg(right));
+        }
+        if (type.isPrimitive() || getComparisonCost(model, type) == ComparisonCost.ENUM) {
+            return left.eq(right);
+        }
+        if (isCalendar(model, type)) {
+            return JExpr.invoke(getCalendarEqualsMethod(model, clazz)).arg(left).arg(right);
+        }
+        if (isJaxbElement(model, type)) {
+            return JExpr.invoke(getJaxbElementEqualsMethod(model, clazz)).arg(left).arg(right);
+        }
+        if (isJaxbElementList(model, type)) {
+            return JExpr.invoke(getListEqualsMethod(model, clazz, true)).arg(left).arg(right);
+        }
+        if (nullAsEmpty && getListElementType(model, type) != null) {
+            return JExpr.invoke(getListEqualsMethod(model, clazz, false)).arg(left).arg(right);
+        }
+        if (type.isArray()) {
+            return model.ref(Arrays.class).staticInvoke(type.elementType().isArray() ? "deepEquals" : "equals")
+                    .arg(left).arg(right);
+        }
+        return model.ref(java.util.Objects.class).staticInvoke("equals").arg(left).arg(right);
+    }
+
+    /**
+     * Generates a copy constructor and {@code copy()}, which is abstract on abstract classes and returns the runtime
+     * type otherwise. Nested beans, lists, arrays, XMLGregorianCalendars and JAXBElements are copied, immutable
+     * values like strings, boxed primitives and enums are shared. So are values of any other type, like DOM
+     * elements of {@code xs:any} content. Subclasses pass the inherited fields to the copy constructor of their
+     * superclass. A public no-arg constructor is added to classes without constructors, JAXB needs it.
+     */
+    protected void generateCopyMethods(JCodeModel model, JDefinedClass clazz) {
+        copyClasses.add(clazz);
+        if (!clazz.constructors().hasNext()) {
+            clazz.constructor(JMod.PUBLIC);
+        }
+        final boolean callSuper = hasCopy(clazz._extends());
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>();
+        if (!callSuper) {
+            fields.addAll(getInheritedInstanceFields(clazz));
+        }
+        fields.addAll(getInstanceFields(clazz.fields().values()));
+
+        final JMethod constructor = clazz.constructor(clazz.isAbstract() ? JMod.PROTECTED : JMod.PUBLIC);
+        final JVar other = constructor.param(JMod.FINAL, clazz, "other");
+        final JBlock body = constructor.body();
+        if (callSuper) {
+            body.invoke("super").arg(other);
+        }
+        boolean copiesJaxbElements = false;
+        for (JFieldVar field : fields) {
+            copiesJaxbElements |= isJaxbElement(model, field.type()) || isJaxbElementList(model, field.type());
+            generateCopyField(model, clazz, body, field, other);
+        }
+        if (copiesJaxbElements) {
+            // the JAXBElement copies are raw
+            constructor.annotate(SuppressWarnings.class).param("value", "unchecked");
+        }
+
+        final JMethod copyMethod;
+        if (clazz.isAbstract()) {
+            copyMethod = clazz.method(JMod.PUBLIC | JMod.ABSTRACT, clazz, "copy");
+        } else {
+            copyMethod = clazz.method(JMod.PUBLIC, clazz, "copy");
+            copyMethod.body()._return(JExpr._new(clazz).arg(JExpr._this()));
+        }
+        if (callSuper) {
+            copyMethod.annotate(Override.class);
+        }
+    }
+
+    private void generateCopyField(JCodeModel model, JDefinedClass clazz, JBlock body, JFieldVar field, JVar other) {
+        final JExpression source = other.ref(field);
+        final JFieldRef target = JExpr._this().ref(field);
+        final JType elementType = getListElementType(model, field.type());
+        if (elementType == null) {
+            body.assign(target, copyExpression(model, clazz, field.type(), source));
+            return;
+        }
+        // lists are created lazily by their getter, null stays null
+        final JBlock copyList = body._if(source.ne(JExpr._null()))._then();
+        final JClass arrayList = model.ref(ArrayList.class).narrow((JClass) elementType);
+        if (isImmutable(model, elementType)) {
+            copyList.assign(target, JExpr._new(arrayList).arg(source));
+            return;
+        }
+        copyList.assign(target, JExpr._new(arrayList).arg(source.invoke("size")));
+        final JForEach forEach = copyList.forEach(elementType, "e", source);
+        forEach.body().add(target.invoke("add").arg(copyExpression(model, clazz, elementType, forEach.var())));
+    }
+
+    /**
+     * Returns an expression copying the given value, or the value itself if it is immutable or cannot be copied.
+     */
+    protected JExpression copyExpression(JCodeModel model, JDefinedClass clazz, JType type, JExpression value) {
+        if (isImmutable(model, type)) {
+            return value;
+        }
+        final JExpression copied;
+        if (hasCopy(type)) {
+            copied = value.invoke("copy");
+        } else if (isCalendar(model, type)) {
+            copied = JExpr.cast(type, value.invoke("clone"));
+        } else if (type.isArray()) {
+            copied = value.invoke("clone");
+        } else if (isJaxbElement(model, type)) {
+            final List<JClass> typeParameters = ((JClass) type).getTypeParameters();
+            final JExpression elementValue = value.invoke("getValue");
+            copied = JExpr.invoke(getCopyJaxbElementMethod(model, clazz)).arg(value).arg(typeParameters.size() == 1
+                    ? copyExpression(model, clazz, typeParameters.get(0), elementValue) : elementValue);
+        } else if (type == model.ref(Object.class) || type == model.ref(Serializable.class)) {
+            // mixed content and lax wildcards
+            final JExpression copiedValue = JExpr.invoke(getCopyMixedValueMethod(model, clazz)).arg(value);
+            return type == model.ref(Object.class) ? copiedValue : JExpr.cast(type, copiedValue);
+        } else {
+            return value;
+        }
+        return JOp.cond(value.eq(JExpr._null()), JExpr._null(), copied);
+    }
+
+    /**
+     * Returns whether values of the given type can be shared between copies.
+     */
+    private boolean isImmutable(JCodeModel model, JType type) {
+        if (type.isPrimitive() || type.isArray()) {
+            return type.isPrimitive();
+        }
+        final JClass clazz = (JClass) type;
+        return clazz.unboxify().isPrimitive() || getComparisonCost(model, type) == ComparisonCost.ENUM
+                || clazz == model.ref(String.class) || clazz == model.ref(BigDecimal.class)
+                || clazz == model.ref(BigInteger.class) || clazz == model.ref(QName.class)
+                || clazz == model.ref(Duration.class);
+    }
+
+    /**
+     * Returns whether values of the given type can copy themselves with a generated {@code copy()}.
+     */
+    protected boolean hasCopy(JType type) {
+        return type instanceof JDefinedClass && (copyClasses.contains(type)
+                || ((JDefinedClass) type).getMethod("copy", new JType[0]) != null);
+    }
+
+    /**
+     * Returns the {@code copyMixedValue(Object)} of the class, generating it on first use. It copies the values of
+     * mixed content and lax wildcards: JAXBElements together with their value, and beans with their copy(). Other
+     * values, like strings and DOM elements, are shared.
+     */
+    private JMethod getCopyMixedValueMethod(JCodeModel model, JDefinedClass clazz) {
+        final JClass objectClass = model.ref(Object.class);
+        JMethod method = clazz.getMethod("copyMixedValue", new JType[]{objectClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, objectClass, "copyMixedValue");
+        final JVar value = method.param(JMod.FINAL, objectClass, "value");
+        final JBlock body = method.body();
+        final JClass elementClass = model.ref(JAXBElement.class).narrow(objectClass.wildcard());
+        final JBlock copyElement = body._if(value._instanceof(model.ref(JAXBElement.class)))._then();
+        final JVar element = copyElement.decl(JMod.FINAL, elementClass, "element", JExpr.cast(elementClass, value));
+        copyElement._return(JExpr.invoke(getCopyJaxbElementMethod(model, clazz)).arg(element)
+                .arg(JExpr.invoke(method).arg(element.invoke("getValue"))));
+        // copy() is overridden by the subclasses, the roots of the hierarchies are enough
+        final List<JDefinedClass> roots = new ArrayList<JDefinedClass>();
+        for (JDefinedClass copyClass : copyClasses) {
+            if (!hasCopy(copyClass._extends())) {
+                roots.add(copyClass);
+            }
+        }
+        Collections.sort(roots, new Comparator<JDefinedClass>() {
+            @Override
+            public int compare(JDefinedClass a, JDefinedClass b) {
+                return a.fullName().compareTo(b.fullName());
+            }
+        });
+        for (JDefinedClass root : roots) {
+            final JExpression bean = JExpr.cast(root, value);
+            body._if(value._instanceof(root))._then()._return(bean.invoke("copy"));
+        }
+        body._return(value);
+        return method;
+    }
+
+    /**
+     * Returns the {@code copyJaxbElement(JAXBElement, Object)} of the class, generating it on first use. It creates
+     * an element with the name, declared type, scope and nil flag of the given one, holding the given value.
+     */
+    private JMethod getCopyJaxbElementMethod(JCodeModel model, JDefinedClass clazz) {
+        final JClass rawElementClass = model.ref(JAXBElement.class);
+        final JClass elementClass = rawElementClass.narrow(model.ref(Object.class).wildcard());
+        JMethod method = clazz.getMethod("copyJaxbElement", new JType[]{elementClass, model.ref(Object.class)});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, rawElementClass, "copyJaxbElement");
+        method.annotate(SuppressWarnings.class).param("value", "unchecked");
+        final JVar element = method.param(JMod.FINAL, elementClass, "element");
+        final JVar value = method.param(JMod.FINAL, Object.class, "value");
+        final JBlock body = method.body();
+        final JVar copied = body.decl(JMod.FINAL, rawElementClass, "copy", JExpr._new(rawElementClass)
+                .arg(element.invoke("getName")).arg(element.invoke("getDeclaredType"))
+                .arg(element.invoke("getScope")).arg(value));
+        body.invoke(copied, "setNil").arg(element.invoke("isNil"));
+        body._return(copied);
+        return method;
+    }
+
+    /**
+     * Generates {@code intern()}, which returns the canonical instance equal to this bean from a weak
+     * Interner of the class. It is abstract on abstract classes, so that fields declared with their type
+     * can be interned too. Classes that skip equals keep their identity and return themselves.
+     * <p>
+     * With {@link #INTERN_FIELDS_PARAM} nested beans, lists of them and strings are replaced with their canonical
+     * instances first, bottom-up. Strings are interned with {@link String#intern()}, which canonicalizes them
+     * across all classes.</p>
+     */
+    protected void generateInternMethod(JCodeModel model, JDefinedClass clazz) {
+        internClasses.add(clazz);
+        final boolean overrides = hasIntern(clazz._extends());
+        if (clazz.isAbstract()) {
+            if (!overrides) {
+                clazz.method(JMod.PUBLIC | JMod.ABSTRACT, clazz, "intern");
+            }
+            return;
+        }
+        final JMethod internMethod = clazz.method(JMod.PUBLIC, clazz, "intern");
+        if (overrides) {
+            internMethod.annotate(Override.class);
+        }
+        final JBlock body = internMethod.body();
+        if (isSkipped(clazz, "equals")) {
+            body._return(JExpr._this());
+            return;
+        }
+        if (internFields) {
+            // frozen beans may be shared already and are not modified
+            final JBlock internFieldsBlock = freeze
+                    ? body._if(JExpr._this().ref(getFrozenField(model, clazz)).not())._then() : body;
+            for (JFieldVar field : getInheritedInstanceFields(clazz)) {
+                generateInternField(model, internFieldsBlock, field);
+            }
+            for (JFieldVar field : getInstanceFields(clazz.fields().values())) {
+                generateInternField(model, internFieldsBlock, field);
+            }
+        }
+        final JClass interner = refByName(model, INTERNER).narrow(clazz);
+        final JFieldVar internerField = clazz.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, interner,
+                INTERNER_FIELD, refByName(model, INTERNERS).staticInvoke("newWeakInterner"));
+        body._return(internerField.invoke("intern").arg(JExpr._this()));
+    }
+
+    private void generateInternField(JCodeModel model, JBlock body, JFieldVar field) {
+        final JFieldRef value = JExpr._this().ref(field);
+        final JType elementType = getListElementType(model, field.type());
+        if (isInternable(model, field.type())) {
+            body._if(value.ne(JExpr._null()))._then().assign(value, value.invoke("intern"));
+        } else if (elementType != null && isInternable(model, elementType)) {
+            // replaced in place, the lists are created by the getters and may be referenced already
+            final JBlock internList = body._if(value.ne(JExpr._null()))._then();
+            final JForLoop loop = internList._for();
+            final JVar index = loop.init(model.INT, "i", JExpr.lit(0));
+            loop.test(index.lt(value.invoke("size")));
+            loop.update(index.incr());
+            final JVar element = loop.body().decl(JMod.FINAL, elementType, "e", value.invoke("get").arg(index));
+            loop.body()._if(element.ne(JExpr._null()))._then()
+                    .add(value.invoke("set").arg(index).arg(element.invoke("intern")));
+        }
+    }
+
+    private boolean isInternable(JCodeModel model, JType type) {
+        return type == model.ref(String.class) || hasIntern(type);
+    }
+
+    /**
+     * Returns whether values of the given type have a generated {@code intern()}.
+     */
+    protected boolean hasIntern(JType type) {
+        return type instanceof JDefinedClass && (internClasses.contains(type)
+                || ((JDefinedClass) type).getMethod("intern", new JType[0]) != null);
+    }
+
+    /**
+     * Generates {@code freeze()}, which replaces the lists with trimmed ImmutableLists, freezes nested beans and
+     * makes the setters throw an IllegalStateException afterwards. Lists with null elements, which are valid for
+     * nillable elements, are copied into trimmed unmodifiable ArrayLists instead, as ImmutableList rejects nulls.
+     * Absent lists are returned as empty ImmutableLists by their getters. The frozen flag is not volatile, so a
+     * frozen bean is only safe to share between threads if it is published safely after freeze(), through a final
+     * or volatile field, a lock or a concurrent collection. Subclasses freeze their own fields in an overridden
+     * {@code freezeFields()}. Non-abstract classes also get a nested {@code Builder} whose {@code build()} returns
+     * a frozen bean.
+     */
+    protected void generateFreezeMethods(JCodeModel model, JDefinedClass clazz) {
+        freezeClasses.add(clazz);
+        final JFieldVar frozen = getFrozenField(model, clazz);
+        final boolean overrides = hasFreeze(clazz._extends());
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>();
+        if (!overrides) {
+            fields.addAll(getInheritedInstanceFields(clazz));
+        }
+        fields.addAll(getInstanceFields(clazz.fields().values()));
+
+        final JMethod freezeFieldsMethod = clazz.method(JMod.PROTECTED, model.VOID, "freezeFields");
+        if (overrides) {
+            freezeFieldsMethod.annotate(Override.class);
+            freezeFieldsMethod.body().invoke(JExpr._super(), "freezeFields");
+        }
+        for (JFieldVar field : fields) {
+            generateFreezeField(model, freezeFieldsMethod.body(), field);
+        }
+
+        final JMethod freezeMethod = clazz.method(JMod.PUBLIC, clazz, "freeze");
+        if (overrides) {
+            freezeMethod.annotate(Override.class);
+            freezeMethod.body().invoke(JExpr._super(), "freeze");
+        } else {
+            // set first, beans may reference each other
+            final JBlock freezeOnce = freezeMethod.body()._if(JExpr._this().ref(frozen).not())._then();
+            freezeOnce.assign(JExpr._this().ref(frozen), JExpr.TRUE);
+            freezeOnce.invoke("freezeFields");
+        }
+        freezeMethod.body()._return(JExpr._this());
+
+        if (!clazz.isAbstract()) {
+            final List<JFieldVar> builderFields = new ArrayList<JFieldVar>(getInheritedInstanceFields(clazz));
+            builderFields.addAll(getInstanceFields(clazz.fields().values()));
+            generateBuilder(model, clazz, frozen, builderFields);
+        }
+    }
+
+    private void generateFreezeField(JCodeModel model, JBlock body, JFieldVar field) {
+        final JFieldRef value = JExpr._this().ref(field);
+        final JType elementType = getListElementType(model, field.type());
+        if (elementType != null) {
+            // null stays null to keep the bean equal to unfrozen ones, the getter returns an empty list then
+            final JBlock freezeList = body._if(value.ne(JExpr._null()))._then();
+            freezeList.assign(value, unmodifiableCopy(model, elementType, value));
+            if (hasFreeze(elementType)) {
+                final JForEach forEach = freezeList.forEach(elementType, "e", value);
+                forEach.body()._if(forEach.var().ne(JExpr._null()))._then().invoke(forEach.var(), "freeze");
+            }
+        } else if (hasFreeze(field.type())) {
+            body._if(value.ne(JExpr._null()))._then().invoke(value, "freeze");
+        }
+    }
+
+    private void generateBuilder(JCodeModel model, JDefinedClass clazz, JFieldVar frozen, List<JFieldVar> fields) {
+        final JDefinedClass builder;
+        try {
+            builder = clazz._class(JMod.PUBLIC | JMod.STATIC, "Builder");
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException("Cannot generate the builder of " + clazz.fullName(), e);
+        }
+        final JFieldVar bean = builder.field(JMod.PRIVATE | JMod.FINAL, clazz, "bean", JExpr._new(clazz));
+        for (JFieldVar field : fields) {
+            final String name = field.name();
+            final JMethod with = builder.method(JMod.PUBLIC, builder,
+                    "with" + Character.toUpperCase(name.charAt(0)) + name.substring(1));
+            final JType elementType = getListElementType(model, field.type());
+            final JVar value = with.param(JMod.FINAL, elementType == null ? field.type()
+                    : model.ref(Collection.class).narrow(((JClass) elementType).wildcard()), name);
+            with.body()._if(JExpr._this().ref(bean).ref(frozen))._then()._throw(JExpr._new(
+                    model.ref(IllegalStateException.class)).arg("The bean has been built already"));
+            with.body().assign(JExpr._this().ref(bean).ref(field), elementType == null ? value
+                    : unmodifiableCopy(model, elementType, value));
+            with.body()._return(JExpr._this());
+        }
+        builder.method(JMod.PUBLIC, clazz, "build").body()._return(JExpr._this().ref(bean).invoke("freeze"));
+    }
+
+    /**
+     * Returns an expression copying the values into an ImmutableList or, if there are null elements, which
+     * ImmutableList rejects, into a trimmed ArrayList wrapped by Collections.unmodifiableList.
+     */
+    private JExpression unmodifiableCopy(JCodeModel model, JType elementType, JExpression values) {
+        return JOp.cond(values.invoke("contains").arg(JExpr._null()), model.ref(Collections.class)
+                        .staticInvoke("unmodifiableList").arg(JExpr._new(model.ref(ArrayList.class)
+                                .narrow((JClass) elementType)).arg(values)),
+                refByName(model, IMMUTABLE_LIST).staticInvoke("copyOf").arg(values));
+    }
+
+    /**
+     * Returns the transient, non-volatile frozen flag of the hierarchy the given class belongs to. Like the hash code
+     * cache it is declared once on the topmost generated ancestor, and every setter of the hierarchy checks it.
+     */
+    protected JFieldVar getFrozenField(JCodeModel model, JDefinedClass clazz) {
+        final JDefinedClass root = getRootClass(clazz);
+        JFieldVar frozen = root.fields().get(FROZEN_FIELD);
+        if (frozen == null) {
+            frozen = root.field(JMod.PROTECTED | JMod.TRANSIENT, model.BOOLEAN, FROZEN_FIELD);
+        }
+        for (JDefinedClass c = clazz; c != null;
+             c = c._extends() instanceof JDefinedClass ? (JDefinedClass) c._extends() : null) {
+            guardMutators(model, c, frozen);
+        }
+        return frozen;
+    }
+
+    /**
+     * Makes the setters of the class throw once the bean is frozen, and keeps the list getters from lazily creating
+     * a mutable list.
+     */
+    private void guardMutators(JCodeModel model, JDefinedClass clazz, JFieldVar frozen) {
+        if (!frozenGuarded.add(clazz)) {
+            return;
+        }
+        final JExpression isFrozen = JExpr._this().ref(frozen);
+        for (JMethod method : clazz.methods()) {
+            if (method.name().startsWith("set") || method.name().startsWith("unset")) {
+                // before the field is assigned
+                final JBlock body = method.body();
+                final int end = body.pos(0);
+                body._if(isFrozen)._then()._throw(JExpr._new(
+                        model.ref(IllegalStateException.class)).arg("The bean is frozen"));
+                body.pos(end + 1);
+            }
+        }
+        for (JFieldVar field : getInstanceFields(clazz.fields().values())) {
+            final String name = field.name();
+            final JMethod getter = clazz.getMethod("get" + Character.toUpperCase(name.charAt(0)) + name.substring(1),
+                    new JType[0]);
+            if (getListElementType(model, field.type()) != null && getter != null) {
+                final JBlock body = getter.body();
+                final int end = body.pos(0);
+                body._if(JExpr._this().ref(field).eq(JExpr._null()).cand(isFrozen))._then()
+                        ._return(refByName(model, IMMUTABLE_LIST).staticInvoke("of"));
+                body.pos(end + 1);
+            }
+        }
+    }
+
+    /**
+     * Returns whether values of the given type have a generated {@code freeze()}.
+     */
+    protected boolean hasFreeze(JType type) {
+        return type instanceof JDefinedClass && (freezeClasses.contains(type)
+                || ((JDefinedClass) type).getMethod("freeze", new JType[0]) != null);
+    }
+
+    /**
+     * Generates the {@code FieldVisitor} interface with a callback per primitive type and for objects, lists and
+     * nested beans, and the {@code FieldVisitable} interface implemented by the beans.
+     */
+    protected void generateFieldVisitorInterfaces(JCodeModel model, JPackage targetPackage) {
+        try {
+            fieldVisitorInterface = targetPackage._interface(FIELD_VISITOR_INTERFACE);
+            fieldVisitableInterface = targetPackage._interface(FIELD_VISITABLE_INTERFACE);
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException("Cannot generate the field visitor in " + targetPackage.name(), e);
+        }
+        fieldVisitableInterface.method(JMod.NONE, model.VOID, "accept").param(fieldVisitorInterface, "visitor");
+        for (JType primitive : new JType[]{model.BOOLEAN, model.BYTE, model.SHORT, model.CHAR, model.INT, model.LONG,
+                model.FLOAT, model.DOUBLE}) {
+            generateVisitMethod(model, primitive);
+        }
+        generateVisitMethod(model, model.ref(Object.class));
+        generateVisitMethod(model, model.ref(List.class).narrow(model.ref(Object.class).wildcard()));
+        generateVisitMethod(model, fieldVisitableInterface);
+    }
+
+    private void generateVisitMethod(JCodeModel model, JType type) {
+        final String typeName = type.erasure() == fieldVisitableInterface ? "bean" : type.erasure().name();
+        final JMethod visit = fieldVisitorInterface.method(JMod.NONE, model.VOID,
+                "visit" + Character.toUpperCase(typeName.charAt(0)) + typeName.substring(1));
+        visit.param(String.class, "name");
+        final JVar value = visit.param(type, "value");
+        if (!type.isPrimitive()) {
+            annotateNullable(model, value);
+        }
+    }
+
+    /**
+     * Generates {@code accept(FieldVisitor)}, which passes every instance field to the typed callback of the visitor.
+     * Lists are passed as they are, null if they have not been created by their getter yet. Nested beans are passed
+     * to {@code visitBean}, the visitor calls their accept method to descend. Subclasses visit the inherited fields
+     * with {@code super.accept(visitor)}.
+     */
+    protected void generateAcceptMethod(JCodeModel model, JDefinedClass clazz) {
+        acceptClasses.add(clazz);
+        final boolean callSuper = hasAccept(clazz._extends());
+        if (!callSuper) {
+            clazz._implements(fieldVisitableInterface);
+        }
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>();
+        if (!callSuper) {
+            fields.addAll(getInheritedInstanceFields(clazz));
+        }
+        fields.addAll(getInstanceFields(clazz.fields().values()));
+
+        final JMethod accept = clazz.method(JMod.PUBLIC, model.VOID, "accept");
+        accept.annotate(Override.class);
+        final JVar visitor = accept.param(JMod.FINAL, fieldVisitorInterface, "visitor");
+        if (callSuper) {
+            accept.body().invoke(JExpr._super(), "accept").arg(visitor);
+        }
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.ACCEPT, fields);
+        recordEstimatedSize(GeneratedMethod.ACCEPT, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.ACCEPT, fields)) {
+                final JMethod chunkMethod = clazz.method(JMod.PRIVATE, model.VOID, "accept$" + chunkIndex++);
+                final JVar chunkVisitor = chunkMethod.param(JMod.FINAL, fieldVisitorInterface, "visitor");
+                for (JFieldVar field : chunk) {
+                    chunkMethod.body().add(visitInvocation(model, chunkVisitor, field));
+                }
+                accept.body().invoke(chunkMethod).arg(visitor);
+            }
+        } else {
+            for (JFieldVar field : fields) {
+                accept.body().add(visitInvocation(model, visitor, field));
+            }
+        }
+    }
+
+    private JInvocation visitInvocation(JCodeModel model, JVar visitor, JFieldVar field) {
+        final JType type = field.type();
+        final String callback;
+        if (type.isPrimitive()) {
+            callback = "visit" + Character.toUpperCase(type.name().charAt(0)) + type.name().substring(1);
+        } else if (hasAccept(type)) {
+            callback = "visitBean";
+        } else if (getListElementType(model, type) != null) {
+            callback = "visitList";
+        } else {
+            callback = "visitObject";
+        }
+        return visitor.invoke(callback).arg(JExpr.lit(field.name())).arg(JExpr._this().ref(field));
+    }
+
+    /**
+     * Returns whether the given type implements the generated {@code FieldVisitable}.
+     */
+    protected boolean hasAccept(JType type) {
+        return type instanceof JDefinedClass && acceptClasses.contains(type);
+    }
+
+    /**
+     * Generates the {@code DiffSink} interface, which receives the differences found by {@code diff}. The path of a
+     * difference is given by the enter and exit callbacks around it.
+     */
+    protected void generateDiffSinkInterface(JCodeModel model, JPackage targetPackage) {
+        try {
+            diffSinkInterface = targetPackage._interface(DIFF_SINK_INTERFACE);
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException("Cannot generate the diff sink in " + targetPackage.name(), e);
+        }
+        final JMethod enterField = diffSinkInterface.method(JMod.NONE, model.VOID, "enterField");
+        enterField.param(model.INT, "field");
+        enterField.param(String.class, "name");
+        diffSinkInterface.method(JMod.NONE, model.VOID, "enterElement").param(model.INT, "index");
+        diffSinkInterface.method(JMod.NONE, model.VOID, "exit");
+        final JMethod changed = diffSinkInterface.method(JMod.NONE, model.VOID, "changed");
+        annotateNullable(model, changed.param(Object.class, "left"));
+        annotateNullable(model, changed.param(Object.class, "right"));
+        final JMethod changedField = diffSinkInterface.method(JMod.NONE, model.VOID, "changedField");
+        changedField.param(model.INT, "field");
+        changedField.param(String.class, "name");
+        annotateNullable(model, changedField.param(Object.class, "left"));
+        annotateNullable(model, changedField.param(Object.class, "right"));
+        final JMethod changedElement = diffSinkInterface.method(JMod.NONE, model.VOID, "changedElement");
+        changedElement.param(model.INT, "index");
+        annotateNullable(model, changedElement.param(Object.class, "left"));
+        annotateNullable(model, changedElement.param(Object.class, "right"));
+    }
+
+    /**
+     * Generates {@code diff(Object, DiffSink)}, which reports every field that differs from the other bean, with
+     * the semantics of equals, to the sink. Fields are identified by {@code FIELD_...} constants, numbered from the
+     * first inherited field. Nested beans and lists of the same class and size are entered and compared field by
+     * field and element by element, equal ones are skipped by the generated equals. Lists are walked by index, so
+     * nothing is allocated unless a difference is reported. A null other bean or one of another class is reported
+     * with {@code changed}.
+     */
+    protected void generateDiffMethod(JCodeModel model, JDefinedClass clazz) {
+        diffClasses.add(clazz);
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>(
+                withoutIgnored(getInheritedInstanceFields(clazz), "equals"));
+        fields.addAll(withoutIgnored(getInstanceFields(clazz.fields().values()), "equals"));
+        getFieldIndexConstants(clazz);
+
+        final JMethod diffMethod = clazz.method(JMod.PUBLIC, model.VOID, "diff");
+        if (hasDiff(clazz._extends())) {
+            diffMethod.annotate(Override.class);
+        }
+        final JVar other = diffMethod.param(JMod.FINAL, Object.class, "other");
+        annotateNullable(model, other);
+        final JVar sink = diffMethod.param(JMod.FINAL, diffSinkInterface, "sink");
+        final JBlock body = diffMethod.body();
+        body._if(JExpr._this().eq(other))._then()._return();
+        final JBlock otherChanged = body._if(other.eq(JExpr._null())
+                .cor(JExpr.invoke("getClass").ne(other.invoke("getClass"))))._then();
+        otherChanged.add(sink.invoke("changed").arg(JExpr._this()).arg(other));
+        otherChanged._return();
+        final JVar otherTypesafe = body.decl(JMod.FINAL, clazz, "o", JExpr.cast(clazz, other));
+
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.DIFF, fields);
+        recordEstimatedSize(GeneratedMethod.DIFF, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.DIFF, fields)) {
+                final JMethod chunkMethod = clazz.method(JMod.PRIVATE, model.VOID, "diff$" + chunkIndex++);
+                final JVar chunkOther = chunkMethod.param(JMod.FINAL, clazz, "o");
+                final JVar chunkSink = chunkMethod.param(JMod.FINAL, diffSinkInterface, "sink");
+                for (JFieldVar field : chunk) {
+                    generateFieldDiff(model, clazz, chunkMethod.body(), field, chunkOther, chunkSink);
+                }
+                body.invoke(chunkMethod).arg(otherTypesafe).arg(sink);
+            }
+        } else {
+            for (JFieldVar field : fields) {
+                generateFieldDiff(model, clazz, body, field, otherTypesafe, sink);
+            }
+        }
+    }
+
+    private void generateFieldDiff(JCodeModel model, JDefinedClass clazz, JBlock body, JFieldVar field,
+                                   JVar other, JVar sink) {
+        final JExpression index = getFieldIndexRef(clazz, field);
+        final JExpression name = JExpr.lit(field.name());
+        final JType type = field.type();
+        final JFieldRef left = JExpr._this().ref(field);
+        final JFieldRef right = other.ref(field);
+        final JType elementType = getListElementType(model, type);
+        if (elementType != null) {
+            // List.equals allocates iterators, the elements are compared by index instead
+            final JBlock differ = body._if(left.ne(right))._then();
+            final JExpression size;
+            final JConditional sizes;
+            if (nullAsEmpty) {
+                size = differ.decl(JMod.FINAL, model.INT, "size", nullSafeSize(left));
+                sizes = differ._if(size.ne(nullSafeSize(right)));
+            } else {
+                size = left.invoke("size");
+                sizes = differ._if(left.eq(JExpr._null()).cor(right.eq(JExpr._null()))
+                        .cor(left.invoke("size").ne(right.invoke("size"))));
+            }
+            sizes._then().add(sink.invoke("changedField").arg(index).arg(name).arg(left).arg(right));
+            final JBlock elements = sizes._else();
+            final JVar entered = elements.decl(model.BOOLEAN, "entered", JExpr.FALSE);
+            final JForLoop loop = elements._for();
+            final JVar i = loop.init(model.INT, "i", JExpr.lit(0));
+            loop.test(i.lt(size));
+            loop.update(i.incr());
+            final boolean mayHoldJaxbElements = isJaxbElementList(model, type) && !isJaxbElement(model, elementType);
+            final JType localType = mayHoldJaxbElements || elementType.fullName().startsWith("?")
+                    ? model.ref(Object.class) : elementType;
+            final JVar a = loop.body().decl(JMod.FINAL, localType, "a", left.invoke("get").arg(i));
+            final JVar b = loop.body().decl(JMod.FINAL, localType, "b", right.invoke("get").arg(i));
+            final JBlock changed = loop.body()._if((mayHoldJaxbElements
+                    ? jaxbElementListElementsEqual(model, clazz, a, b)
+                    : equalsExpression(model, clazz, localType, a, b)).not())._then();
+            final JBlock enter = changed._if(entered.not())._then();
+            enter.add(sink.invoke("enterField").arg(index).arg(name));
+            enter.assign(entered, JExpr.TRUE);
+            if (hasDiff(localType)) {
+                final JConditional sameClass = changed._if(a.ne(JExpr._null()).cand(b.ne(JExpr._null()))
+                        .cand(a.invoke("getClass").eq(b.invoke("getClass"))));
+                sameClass._then().add(sink.invoke("enterElement").arg(i));
+                sameClass._then().add(a.invoke("diff").arg(b).arg(sink));
+                sameClass._then().add(sink.invoke("exit"));
+                sameClass._else().add(sink.invoke("changedElement").arg(i).arg(a).arg(b));
+            } else {
+                changed.add(sink.invoke("changedElement").arg(i).arg(a).arg(b));
+            }
+            elements._if(entered)._then().add(sink.invoke("exit"));
+        } else if (hasDiff(type)) {
+            final JBlock changed = body._if(equalsExpression(model, clazz, type, left, right).not())._then();
+            final JConditional sameClass = changed._if(left.ne(JExpr._null()).cand(right.ne(JExpr._null()))
+                    .cand(left.invoke("getClass").eq(right.invoke("getClass"))));
+            sameClass._then().add(sink.invoke("enterField").arg(index).arg(name));
+            sameClass._then().add(left.invoke("diff").arg(right).arg(sink));
+            sameClass._then().add(sink.invoke("exit"));
+            sameClass._else().add(sink.invoke("changedField").arg(index).arg(name).arg(left).arg(right));
+        } else {
+            body._if(equalsExpression(model, clazz, type, left, right).not())._then()
+                    .add(sink.invoke("changedField").arg(index).arg(name).arg(left).arg(right));
+        }
+    }
+
+    /**
+     * Returns the {@code FIELD_...} constants of the instance fields declared by the class, generating them on first
+     * use. Their values continue the numbering of the inherited fields.
+     */
+    private Map<JFieldVar, JFieldVar> getFieldIndexConstants(JDefinedClass clazz) {
+        final Map<JFieldVar, JFieldVar> constants = new LinkedHashMap<JFieldVar, JFieldVar>();
+        int index = getInheritedInstanceFields(clazz).size();
+        for (JFieldVar field : getInstanceFields(clazz.fields().values())) {
+            JFieldVar constant = fieldIndexConstants.get(field);
+            if (constant == null) {
+                String constantName = "FIELD_" + toConstantName(field.name());
+                if (clazz.fields().containsKey(constantName)) {
+                    constantName += "_" + index;
+                }
+                constant = clazz.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, clazz.owner().INT, constantName,
+                        JExpr.lit(index));
+                fieldIndexConstants.put(field, constant);
+            }
+            constants.put(field, constant);
+            index++;
+        }
+        return constants;
+    }
+
+    /**
+     * Returns a reference to the index constant of a field of the class, qualified if the field is inherited.
+     */
+    private JExpression getFieldIndexRef(JDefinedClass clazz, JFieldVar field) {
+        JDefinedClass declaringClass = clazz;
+        while (declaringClass.fields().get(field.name()) != field) {
+            declaringClass = (JDefinedClass) declaringClass._extends();
+        }
+        final JFieldVar constant = getFieldIndexConstants(declaringClass).get(field);
+        return declaringClass == clazz ? JExpr.ref(constant.name()) : declaringClass.staticRef(constant);
+    }
+
+    private static String toConstantName(String name) {
+        final StringBuilder constantName = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (i > 0 && Character.isUpperCase(c) && !Character.isUpperCase(name.charAt(i - 1))) {
+                constantName.append('_');
+            }
+            constantName.append(Character.toUpperCase(c));
+        }
+        return constantName.toString();
+    }
+
+    /**
+     * Returns whether the given type has a generated {@code diff(Object, DiffSink)}.
+     */
+    protected boolean hasDiff(@Nullable JType type) {
+        return type instanceof JDefinedClass && diffClasses.contains(type);
+    }
+
+    /**
+     * Generates the {@code BeanStats} registry, one instance per bean class, with striped {@code LongAdder}
+     * counters of the calls of equals, hashCode and toString, of the characters returned by toString and a
+     * histogram of a sample of the hash codes. The registry can be dumped as text or exposed over JMX.
+     */
+    protected void generateBeanStats(JCodeModel model, JPackage targetPackage) {
+        final JDefinedClass mxBean;
+        try {
+            beanStatsClass = targetPackage._class(JMod.PUBLIC | JMod.FINAL, BEAN_STATS_CLASS);
+            mxBean = targetPackage._interface(BEAN_STATS_CLASS + "MXBean");
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException("Cannot generate the bean stats in " + targetPackage.name(), e);
+        }
+        beanStatsClass._implements(mxBean);
+        final JClass longAdder = refByName(model, LONG_ADDER);
+        final JClass string = model.ref(String.class);
+        final JClass registryClass = model.ref(ConcurrentMap.class).narrow(string, beanStatsClass);
+        final JFieldVar buckets = beanStatsClass.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, model.INT,
+                "HASH_BUCKETS", JExpr.lit(HASH_BUCKETS));
+        final JFieldVar sampleMask = beanStatsClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, model.INT,
+                "SAMPLE_MASK", JExpr.lit(SAMPLE_MASK));
+        final JFieldVar registry = beanStatsClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, registryClass,
+                "REGISTRY", JExpr._new(model.ref(ConcurrentHashMap.class).narrow(string, beanStatsClass)));
+        final JFieldVar type = beanStatsClass.field(JMod.PRIVATE | JMod.FINAL, string, "type");
+        final Map<String, JFieldVar> counters = new LinkedHashMap<String, JFieldVar>();
+        for (String counter : new String[]{"equalsCalls", "hashCodeCalls", "toStringCalls", "toStringChars"}) {
+            counters.put(counter, beanStatsClass.field(JMod.PRIVATE | JMod.FINAL, longAdder, counter,
+                    JExpr._new(longAdder)));
+        }
+        final JFieldVar hashBuckets = beanStatsClass.field(JMod.PRIVATE | JMod.FINAL, longAdder.array(),
+                "hashBuckets", JExpr.newArray(longAdder, buckets));
+
+        final JMethod constructor = beanStatsClass.constructor(JMod.PRIVATE);
+        constructor.body().assign(JExpr._this().ref(type), constructor.param(JMod.FINAL, string, "type"));
+        JForLoop loop = constructor.body()._for();
+        JVar i = loop.init(model.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(buckets));
+        loop.update(i.incr());
+        loop.body().assign(hashBuckets.component(i), JExpr._new(longAdder));
+
+        // the instance of the first class loaded with a name, classes are registered by their static initializer
+        JMethod method = beanStatsClass.method(JMod.PUBLIC | JMod.STATIC, beanStatsClass, "register");
+        final JVar beanClass = method.param(JMod.FINAL, model.ref(Class.class).narrow(model.wildcard()), "beanClass");
+        final JVar stats = method.body().decl(JMod.FINAL, beanStatsClass, "stats",
+                JExpr._new(beanStatsClass).arg(beanClass.invoke("getName")));
+        final JVar registered = method.body().decl(JMod.FINAL, beanStatsClass, "registered",
+                registry.invoke("putIfAbsent").arg(beanClass.invoke("getName")).arg(stats));
+        method.body()._return(JOp.cond(registered.ne(JExpr._null()), registered, stats));
+
+        method = beanStatsClass.method(JMod.PUBLIC | JMod.STATIC,
+                model.ref(Collection.class).narrow(beanStatsClass), "all");
+        method.body()._return(model.ref(Collections.class).staticInvoke("unmodifiableCollection")
+                .arg(registry.invoke("values")));
+
+        method = beanStatsClass.method(JMod.PUBLIC, model.VOID, "recordEquals");
+        method.body().add(counters.get("equalsCalls").invoke("increment"));
+
+        method = beanStatsClass.method(JMod.PUBLIC, model.INT, "recordHashCode");
+        JVar value = method.param(JMod.FINAL, model.INT, "hash");
+        method.body().add(counters.get("hashCodeCalls").invoke("increment"));
+        final JExpression random = model.ref(ThreadLocalRandom.class).staticInvoke("current").invoke("nextInt");
+        // spread like HashMap, so that the histogram shows the collisions of hash tables
+        final JExpression bucket = JOp.band(JOp.xor(value, JOp.shrz(value, JExpr.lit(16))),
+                buckets.minus(JExpr.lit(1)));
+        method.body()._if(JOp.band(random, sampleMask).eq(JExpr.lit(0)))._then()
+                .add(JExpr.invoke(hashBuckets.component(bucket), "increment"));
+        method.body()._return(value);
+
+        method = beanStatsClass.method(JMod.PUBLIC, string, "recordToString");
+        value = method.param(JMod.FINAL, string, "string");
+        method.body().add(counters.get("toStringCalls").invoke("increment"));
+        method.body().add(counters.get("toStringChars").invoke("add").arg(value.invoke("length")));
+        method.body()._return(value);
+
+        mxBean.method(JMod.NONE, string, "getType");
+        method = beanStatsClass.method(JMod.PUBLIC, string, "getType");
+        method.annotate(Override.class);
+        method.body()._return(type);
+        for (Map.Entry<String, JFieldVar> counter : counters.entrySet()) {
+            final String getter = "get" + Character.toUpperCase(counter.getKey().charAt(0))
+                    + counter.getKey().substring(1);
+            mxBean.method(JMod.NONE, model.LONG, getter);
+            method = beanStatsClass.method(JMod.PUBLIC, model.LONG, getter);
+            method.annotate(Override.class);
+            method.body()._return(counter.getValue().invoke("sum"));
+        }
+        mxBean.method(JMod.NONE, model.LONG.array(), "getHashBuckets");
+        method = beanStatsClass.method(JMod.PUBLIC, model.LONG.array(), "getHashBuckets");
+        method.annotate(Override.class);
+        final JVar sums = method.body().decl(JMod.FINAL, model.LONG.array(), "sums",
+                JExpr.newArray(model.LONG, buckets));
+        loop = method.body()._for();
+        i = loop.init(model.INT, "i", JExpr.lit(0));
+        loop.test(i.lt(buckets));
+        loop.update(i.incr());
+        loop.body().assign(sums.component(i), JExpr.invoke(hashBuckets.component(i), "sum"));
+        method.body()._return(sums);
+
+        method = beanStatsClass.method(JMod.PUBLIC, string, "toString");
+        method.annotate(Override.class);
+        JExpression line = type;
+        for (Map.Entry<String, JFieldVar> counter : counters.entrySet()) {
+            line = line.plus(JExpr.lit(" " + counter.getKey() + "=")).plus(counter.getValue().invoke("sum"));
+        }
+        method.body()._return(line.plus(JExpr.lit(" hashBuckets="))
+                .plus(model.ref(Arrays.class).staticInvoke("toString").arg(JExpr.invoke("getHashBuckets"))));
+
+        method = beanStatsClass.method(JMod.PUBLIC | JMod.STATIC, string, "dump");
+        final JClass stringBuilder = model.ref(StringBuilder.class);
+        final JVar sb = method.body().decl(JMod.FINAL, stringBuilder, "sb", JExpr._new(stringBuilder));
+        final JForEach dump = method.body().forEach(beanStatsClass, "stats",
+                JExpr._new(model.ref(TreeMap.class).narrow(string, beanStatsClass)).arg(registry).invoke("values"));
+        dump.body().add(sb.invoke("append").arg(dump.var()).invoke("append").arg(JExpr.lit('\n')));
+        method.body()._return(sb.invoke("toString"));
+
+        // classes loaded later are registered by calling it again
+        method = beanStatsClass.method(JMod.PUBLIC | JMod.STATIC, model.VOID, "registerMBeans");
+        method._throws(JMException.class);
+        final JVar server = method.body().decl(JMod.FINAL, model.ref(MBeanServer.class), "server",
+                model.ref(ManagementFactory.class).staticInvoke("getPlatformMBeanServer"));
+        final JForEach register = method.body().forEach(beanStatsClass, "stats", registry.invoke("values"));
+        final JVar name = register.body().decl(JMod.FINAL, model.ref(ObjectName.class), "name",
+                JExpr._new(model.ref(ObjectName.class)).arg(JExpr.lit(targetPackage.name() + ":type="
+                        + BEAN_STATS_CLASS + ",name=").plus(model.ref(ObjectName.class).staticInvoke("quote")
+                        .arg(register.var().ref(type)))));
+        register.body()._if(server.invoke("isRegistered").arg(name).not())._then()
+                .add(server.invoke("registerMBean").arg(register.var()).arg(name));
+    }
+
+    /**
+     * Returns the {@code STATS} field of the class, generating it on first use.
+     */
+    private JFieldVar getStatsField(JCodeModel model, JDefinedClass clazz) {
+        JFieldVar stats = clazz.fields().get(STATS_FIELD);
+        if (stats == null) {
+            stats = clazz.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, beanStatsClass, STATS_FIELD,
+                    beanStatsClass.staticInvoke("register").arg(JExpr.dotclass(clazz)));
+        }
+        return stats;
+    }
+
+    /**
+     * Returns whether subclasses delegating to super call the protected {@code equalsFields(Object)} and
+     * {@code computeHashCode()} of their superclass instead of its instrumented equals and hashCode, so that every
+     * call is counted once, for the class of the bean.
+     */
+    private boolean countsOutermostCallsOnly() {
+        return delegateToSuper && beanStatsClass != null;
+    }
+
+    private JExpression recordHashCode(JCodeModel model, JDefinedClass clazz, JExpression hash) {
+        return beanStatsClass != null ? getStatsField(model, clazz).invoke("recordHashCode").arg(hash) : hash;
+    }
+
+    private JExpression recordToString(JCodeModel model, JDefinedClass clazz, JExpression string) {
+        return beanStatsClass != null ? getStatsField(model, clazz).invoke("recordToString").arg(string) : string;
+    }
+
+    /**
+     * Generates a static {@code COMPARATOR} backed by an enum singleton. It orders by the given key fields first and
+     * then by the remaining fields compared by equals, in their declaration order, so that it is consistent with
+     * equals if all of them can be ordered. Primitives are compared without boxing them, nulls come first, decimals
+     * with the same value by their scale and beans of different subclasses by their class name. Beans of the same
+     * subclass are passed on to the comparator of that subclass, which orders its own fields too.
+     */
+    protected void generateComparator(JCodeModel model, JDefinedClass clazz, List<JFieldVar> keys) {
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>(keys);
+        for (JFieldVar field : withoutIgnored(getInheritedInstanceFields(clazz), "equals")) {
+            if (!fields.contains(field) && isOrderable(model, field.type())) {
+                fields.add(field);
+            }
+        }
+        for (JFieldVar field : withoutIgnored(getInstanceFields(clazz.fields().values()), "equals")) {
+            if (!fields.contains(field) && isOrderable(model, field.type())) {
+                fields.add(field);
+            }
+        }
+
+        final JDefinedClass comparatorEnum;
+        try {
+            comparatorEnum = clazz._class(JMod.STATIC, clazz.name() + "Comparator", ClassType.ENUM);
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException("Cannot generate the comparator of " + clazz.fullName(), e);
+        }
+        final JClass comparatorClass = model.ref(Comparator.class).narrow(clazz);
+        comparatorEnum._implements(comparatorClass);
+        comparatorEnum.enumConstant("INSTANCE");
+        final JMethod compare = comparatorEnum.method(JMod.PUBLIC, model.INT, "compare");
+        compare.annotate(Override.class);
+        final JVar a = compare.param(JMod.FINAL, clazz, "a");
+        final JVar b = compare.param(JMod.FINAL, clazz, "b");
+        final JBlock body = compare.body();
+        body._if(a.eq(b))._then()._return(JExpr.lit(0));
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.COMPARE, fields);
+        recordEstimatedSize(GeneratedMethod.COMPARE, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            final JVar result = body.decl(model.INT, "c");
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.COMPARE, fields)) {
+                final JMethod chunkMethod = comparatorEnum.method(JMod.PRIVATE, model.INT, "compare$" + chunkIndex++);
+                final JVar chunkA = chunkMethod.param(JMod.FINAL, clazz, "a");
+                final JVar chunkB = chunkMethod.param(JMod.FINAL, clazz, "b");
+                generateComparisons(model, clazz, chunkMethod.body(), chunkA, chunkB, chunk);
+                chunkMethod.body()._return(JExpr.lit(0));
+                body.assign(result, JExpr.invoke(chunkMethod).arg(a).arg(b));
+                body._if(result.ne(JExpr.lit(0)))._then()._return(result);
+            }
+        } else {
+            generateComparisons(model, clazz, body, a, b, fields);
+        }
+        final JExpression aClass = a.invoke("getClass");
+        final JExpression bClass = b.invoke("getClass");
+        final JExpression byClassName = aClass.invoke("getName").invoke("compareTo").arg(bClass.invoke("getName"));
+        final List<JDefinedClass> delegates = new ArrayList<JDefinedClass>();
+        addComparatorDelegates(model, clazz, delegates);
+        if (delegates.isEmpty()) {
+            body._return(JOp.cond(aClass.eq(bClass), JExpr.lit(0), byClassName));
+        } else {
+            // beans of the same subclass are equal only if its fields are, which its own comparator orders
+            body._if(aClass.ne(bClass))._then()._return(byClassName);
+            for (JDefinedClass delegate : delegates) {
+                body._if(a._instanceof(delegate))._then()._return(delegate.staticRef(COMPARATOR_FIELD)
+                        .invoke("compare").arg(JExpr.cast(delegate, a)).arg(JExpr.cast(delegate, b)));
+            }
+            body._return(JExpr.lit(0));
+        }
+
+        clazz.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, comparatorClass, COMPARATOR_FIELD,
+                comparatorEnum.staticRef("INSTANCE"));
+    }
+
+    /**
+     * Adds statements returning the comparison of the first of the fields that differs between the beans.
+     */
+    private void generateComparisons(JCodeModel model, JDefinedClass clazz, JBlock body, JVar a, JVar b,
+                                     List<JFieldVar> fields) {
+        if (fields.isEmpty()) {
+            return;
+        }
+        final JVar result = body.decl(model.INT, "c");
+        for (JFieldVar field : fields) {
+            final JType type = field.type();
+            final JExpression left = a.ref(field);
+            final JExpression right = b.ref(field);
+            if (type.isPrimitive()) {
+                body.assign(result, compareExpression(model, clazz, type, left, right));
+                body._if(result.ne(JExpr.lit(0)))._then()._return(result);
+                continue;
+            }
+            final JBlock differ = body._if(left.ne(right))._then();
+            differ._if(left.eq(JExpr._null()))._then()._return(JExpr.lit(-1));
+            differ._if(right.eq(JExpr._null()))._then()._return(JExpr.lit(1));
+            differ.assign(result, compareExpression(model, clazz, type, left, right));
+            if (type == model.ref(BigDecimal.class)) {
+                // equals tells 1.0 and 1.00 apart
+                differ._if(result.eq(JExpr.lit(0)))._then().assign(result, model.INT.boxify().staticInvoke("compare")
+                        .arg(left.invoke("scale")).arg(right.invoke("scale")));
+            }
+            differ._if(result.ne(JExpr.lit(0)))._then()._return(result);
+        }
+    }
+
+    private JExpression compareExpression(JCodeModel model, JDefinedClass clazz, JType type, JExpression left,
+                                          JExpression right) {
+        if (type.isPrimitive()) {
+            // Double.compare and Float.compare are consistent with the bitwise equality of equals
+            return type.boxify().staticInvoke("compare").arg(left).arg(right);
+        }
+        if (isCalendar(model, type)) {
+            return JExpr.invoke(getCalendarCompareMethod(model, clazz)).arg(left).arg(right);
+        }
+        return left.invoke("compareTo").arg(right);
+    }
+
+    /**
+     * Returns whether values of the given type have a total order consistent with their equality in equals.
+     */
+    protected boolean isOrderable(JCodeModel model, JType type) {
+        if (type.isPrimitive() || isCalendar(model, type)) {
+            return true;
+        }
+        if (type.isArray()) {
+            return false;
+        }
+        final JClass clazz = (JClass) type;
+        return clazz.unboxify().isPrimitive() || getComparisonCost(model, type) == ComparisonCost.ENUM
+                || clazz == model.ref(String.class) || clazz == model.ref(BigDecimal.class)
+                || clazz == model.ref(BigInteger.class);
+    }
+
+    /**
+     * Returns the fields compared by equals that cannot be ordered, of the class, its superclasses and, qualified by
+     * their class name, its subclasses. Instances of a subclass are ordered by its comparator, or not at all.
+     */
+    private List<String> getUnorderedFieldNames(JCodeModel model, JDefinedClass clazz) {
+        final List<String> names = new ArrayList<String>();
+        for (JFieldVar field : withoutIgnored(getInheritedInstanceFields(clazz), "equals")) {
+            if (!isOrderable(model, field.type())) {
+                names.add(field.name());
+            }
+        }
+        for (JFieldVar field : withoutIgnored(getInstanceFields(clazz.fields().values()), "equals")) {
+            if (!isOrderable(model, field.type())) {
+                names.add(field.name());
+            }
+        }
+        final List<JDefinedClass> children = directSubclasses.get(clazz);
+        for (JDefinedClass child : children != null ? children : Collections.<JDefinedClass>emptyList()) {
+            names.addAll(getUnorderedSubclassFields(model, child));
+        }
+        return names;
+    }
+
+    private List<String> getUnorderedSubclassFields(JCodeModel model, JDefinedClass clazz) {
+        List<String> names = unorderedSubclassFields.get(clazz);
+        if (names == null) {
+            names = new ArrayList<String>();
+            for (JFieldVar field : withoutIgnored(getInstanceFields(clazz.fields().values()), "equals")) {
+                if (!isOrderable(model, field.type())) {
+                    names.add(clazz.name() + "." + field.name());
+                }
+            }
+            final List<JDefinedClass> children = directSubclasses.get(clazz);
+            for (JDefinedClass child : children != null ? children : Collections.<JDefinedClass>emptyList()) {
+                names.addAll(getUnorderedSubclassFields(model, child));
+            }
+            unorderedSubclassFields.put(clazz, names);
+        }
+        return names;
+    }
+
+    /**
+     * Returns whether a {@code COMPARATOR} is generated for the class, either customized or, with
+     * {@link #COMPARATOR_PARAM}, because it and all its subclasses can be ordered.
+     */
+    private boolean hasComparator(JCodeModel model, JDefinedClass clazz) {
+        return compareCustomizations.containsKey(clazz) || comparator && !isSkipped(clazz, "equals")
+                && getUnorderedFieldNames(model, clazz).isEmpty();
+    }
+
+    /**
+     * Adds the nearest subclasses of the class that have a comparator of their own, which are disjoint.
+     */
+    private void addComparatorDelegates(JCodeModel model, JDefinedClass clazz, List<JDefinedClass> delegates) {
+        final List<JDefinedClass> children = directSubclasses.get(clazz);
+        for (JDefinedClass child : children != null ? children : Collections.<JDefinedClass>emptyList()) {
+            if (hasComparator(model, child)) {
+                delegates.add(child);
+            } else {
+                addComparatorDelegates(model, child, delegates);
+            }
+        }
+    }
+
+    /**
+     * Returns the {@code calendarCompare(XMLGregorianCalendar, XMLGregorianCalendar)} of the class, generating it on
+     * first use. XMLGregorianCalendar.compare(...) is only a partial order: values with and without a time zone, or
+     * with different fields, may be indeterminate, and times in the same time zone are not normalized across
+     * midnight. The helper orders by the fields that are defined first, the time zone being the most significant,
+     * and then values with a time zone by their normalized fields and those without by their local fields. That is
+     * a total order, and values are equal in it exactly if they are equal.
+     */
+    private JMethod getCalendarCompareMethod(JCodeModel model, JDefinedClass clazz) {
+        final JClass calendarClass = model.ref(XMLGregorianCalendar.class);
+        JMethod method = clazz.getMethod("calendarCompare", new JType[]{calendarClass, calendarClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.INT, "calendarCompare");
+        final JVar a = method.param(JMod.FINAL, calendarClass, "a");
+        final JVar b = method.param(JMod.FINAL, calendarClass, "b");
+        final JBlock body = method.body();
+        final JClass constants = model.ref(DatatypeConstants.class);
+        final JMethod definedFields = getCalendarDefinedFieldsMethod(model, clazz);
+        final JVar fields = body.decl(JMod.FINAL, model.INT, "fields", JExpr.invoke(definedFields).arg(a));
+        final JVar bFields = body.decl(JMod.FINAL, model.INT, "bFields", JExpr.invoke(definedFields).arg(b));
+        body._if(fields.ne(bFields))._then()
+                ._return(model.INT.boxify().staticInvoke("compare").arg(fields).arg(bFields));
+        // compare(...) skips the normalization of values in the same time zone
+        final JVar result = body.decl(JMod.FINAL, model.INT, "result", JOp.cond(
+                a.invoke("getTimezone").eq(constants.staticRef("FIELD_UNDEFINED")), a.invoke("compare").arg(b),
+                a.invoke("normalize").invoke("compare").arg(b.invoke("normalize"))));
+        body._if(result.eq(constants.staticRef("LESSER")))._then()._return(JExpr.lit(-1));
+        body._if(result.eq(constants.staticRef("GREATER")))._then()._return(JExpr.lit(1));
+        // values with the same defined fields are never indeterminate
+        body._return(JExpr.lit(0));
+        return method;
+    }
+
+    /**
+     * Returns the {@code calendarDefinedFields(XMLGregorianCalendar)} of the class, generating it on first use. It
+     * returns a bit per defined field, with the time zone as the highest one.
+     */
+    private JMethod getCalendarDefinedFieldsMethod(JCodeModel model, JDefinedClass clazz) {
+        final JClass calendarClass = model.ref(XMLGregorianCalendar.class);
+        JMethod method = clazz.getMethod("calendarDefinedFields", new JType[]{calendarClass});
+        if (method != null) {
+            return method;
+        }
+        method = clazz.method(JMod.PRIVATE | JMod.STATIC, model.INT, "calendarDefinedFields");
+        final JVar calendar = method.param(JMod.FINAL, calendarClass, "c");
+        final JExpression undefined = model.ref(DatatypeConstants.class).staticRef("FIELD_UNDEFINED");
+        final String[] getters = {"getTimezone", "getYear", "getMonth", "getDay", "getHour", "getMinute", "getSecond"};
+        JExpression bits = null;
+        for (int i = 0; i < getters.length; i++) {
+            final JExpression bit = JOp.cond(calendar.invoke(getters[i]).eq(undefined), JExpr.lit(0),
+                    JExpr.lit(1 << (getters.length - 1 - i)));
+            bits = bits == null ? bit : bits.bor(bit);
+        }
+        method.body()._return(bits);
+        return method;
+    }
+
+    /**
+     * Leaves the classes whose state cannot be encoded out of {@link #EXTERNALIZABLE_PARAM}, with a warning. A class
+     * is left out with its whole hierarchy, an inherited writeExternal would silently drop the fields of a
+     * subclass, and so are the classes with fields of its types.
+     */
+    private void removeUnencodableClasses(JCodeModel model, Outline outline, ErrorHandler errorHandler) {
+        boolean removed = true;
+        while (removed) {
+            removed = false;
+            for (final ClassOutline classOutline : outline.getClasses()) {
+                final JDefinedClass clazz = classOutline.implClass;
+                if (externalizableClasses.contains(clazz)) {
+                    final String reason = getUnencodableReason(model, clazz);
+                    if (reason != null) {
+                        externalizableClasses.remove(clazz);
+                        removed = true;
+                        reportWarning(errorHandler, classOutline.target.getLocator(),
+                                clazz.name() + " is not made Externalizable, " + reason);
+                    }
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private String getUnencodableReason(JCodeModel model, JDefinedClass clazz) {
+        final JClass superclass = clazz._extends();
+        if (superclass instanceof JDefinedClass ? !externalizableClasses.contains(superclass)
+                : superclass != model.ref(Object.class)) {
+            return "its superclass " + superclass.name() + " is not";
+        }
+        final List<JDefinedClass> descendants = subclasses.get(clazz);
+        for (JDefinedClass subclass : descendants != null ? descendants : Collections.<JDefinedClass>emptyList()) {
+            if (!externalizableClasses.contains(subclass)) {
+                return "its subclass " + subclass.name() + " is not";
+            }
+        }
+        for (JFieldVar field : getInstanceFields(clazz.fields().values())) {
+            if (!isEncodable(model, field.type())) {
+                return "the field " + field.name() + " of type " + field.type().name() + " cannot be encoded";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the generated codec can write and read values of the given type.
+     */
+    protected boolean isEncodable(JCodeModel model, JType type) {
+        if (type.isPrimitive()) {
+            return true;
+        }
+        if (type.isArray()) {
+            return ((JClass) type).elementType() == model.BYTE;
+        }
+        if (type.fullName().startsWith("?")) {
+            return false;
+        }
+        final JType elementType = getListElementType(model, type);
+        if (elementType != null) {
+            // JAXBElements are read with statements
+            return getListElementType(model, elementType) == null && !isJaxbElement(model, elementType)
+                    && isEncodable(model, elementType);
+        }
+        if (isJaxbElement(model, type)) {
+            final List<JClass> typeParameters = ((JClass) type).getTypeParameters();
+            return typeParameters.size() == 1 && getListElementType(model, typeParameters.get(0)) == null
+                    && !isJaxbElement(model, typeParameters.get(0)) && isEncodable(model, typeParameters.get(0));
+        }
+        final JClass clazz = (JClass) type;
+        return clazz.unboxify().isPrimitive() || hasExternalizable(type) || isCalendar(model, type)
+                || getComparisonCost(model, type) == ComparisonCost.ENUM
+                || clazz == model.ref(String.class) || clazz == model.ref(BigDecimal.class)
+                || clazz == model.ref(BigInteger.class) || clazz == model.ref(QName.class)
+                || clazz == model.ref(Duration.class);
+    }
+
+    /**
+     * Returns whether the given type is a bean with a generated {@code writeFields(DataOutput)}.
+     */
+    protected boolean hasExternalizable(JType type) {
+        return type instanceof JDefinedClass && externalizableClasses.contains(type);
+    }
+
+    /**
+     * Generates the {@code BeanCodec} class holding the encodings shared by the beans: zig-zag varints for ints and
+     * longs, varint lengths before byte arrays and UTF-8 strings, the unscaled value and scale of decimals and the
+     * lexical representation of calendars and durations. Lengths read beyond {@link #MAX_ENCODED_LENGTH} are
+     * rejected with a StreamCorruptedException.
+     */
+    protected void generateBeanCodec(JCodeModel model, JPackage targetPackage) {
+        try {
+            beanCodecClass = targetPackage._class(JMod.PUBLIC | JMod.FINAL, BEAN_CODEC_CLASS);
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException("Cannot generate the bean codec in " + targetPackage.name(), e);
+        }
+        beanCodecClass.constructor(JMod.PRIVATE);
+        final JClass datatypeFactoryClass = model.ref(DatatypeFactory.class);
+        final JFieldVar datatypeFactory = beanCodecClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL,
+                datatypeFactoryClass, "DATATYPE_FACTORY");
+        final JTryBlock createFactory = beanCodecClass.init()._try();
+        createFactory.body().assign(datatypeFactory, datatypeFactoryClass.staticInvoke("newInstance"));
+        final JCatchBlock noFactory = createFactory._catch(model.ref(DatatypeConfigurationException.class));
+        noFactory.body()._throw(JExpr._new(model.ref(IllegalStateException.class)).arg(noFactory.param("e")));
+        final JClass codec = beanCodecClass;
+        final JClass stream = model.ref(StreamCorruptedException.class);
+
+        // unsigned LEB128, seven bits per byte, the lowest first
+        JMethod method = codecMethod(model, "writeVarInt", model.VOID);
+        JVar out = method.param(JMod.FINAL, DataOutput.class, "out");
+        JVar value = method.param(model.INT, "value");
+        JWhileLoop loop = method.body()._while(JOp.shrz(value, JExpr.lit(7)).ne(JExpr.lit(0)));
+        loop.body().add(out.invoke("writeByte").arg(value.band(JExpr.lit(0x7F)).bor(JExpr.lit(0x80))));
+        loop.body().assign(value, JOp.shrz(value, JExpr.lit(7)));
+        method.body().add(out.invoke("writeByte").arg(value));
+
+        method = codecMethod(model, "readVarInt", model.INT);
+        JVar in = method.param(JMod.FINAL, DataInput.class, "in");
+        JVar result = method.body().decl(model.INT, "value", JExpr.lit(0));
+        JForLoop readLoop = method.body()._for();
+        JVar shift = readLoop.init(model.INT, "shift", JExpr.lit(0));
+        readLoop.test(shift.lt(JExpr.lit(35)));
+        readLoop.update(JExpr.assignPlus(shift, JExpr.lit(7)));
+        JVar b = readLoop.body().decl(JMod.FINAL, model.INT, "b", in.invoke("readUnsignedByte"));
+        readLoop.body().assign(result, result.bor(b.band(JExpr.lit(0x7F)).shl(shift)));
+        readLoop.body()._if(b.lt(JExpr.lit(0x80)))._then()._return(result);
+        method.body()._throw(JExpr._new(stream).arg("Malformed varint"));
+
+        // checked before anything is allocated for it, a corrupt stream must not cause a huge allocation
+        final JFieldVar maxLength = beanCodecClass.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, model.INT,
+                "MAX_LENGTH", JExpr.lit(MAX_ENCODED_LENGTH));
+        method = codecMethod(model, "readLength", model.INT);
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        final JVar length = method.body().decl(JMod.FINAL, model.INT, "length",
+                codec.staticInvoke("readVarInt").arg(in));
+        method.body()._if(length.lt(JExpr.lit(0)).cor(length.gt(maxLength)))._then()._throw(
+                JExpr._new(stream).arg(JExpr.lit("Invalid length ").plus(length)));
+        method.body()._return(length);
+
+        method = codecMethod(model, "writeVarLong", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(model.LONG, "value");
+        loop = method.body()._while(JOp.shrz(value, JExpr.lit(7)).ne(JExpr.lit(0L)));
+        loop.body().add(out.invoke("writeByte").arg(
+                JOp.bor(JExpr.cast(model.INT, value.band(JExpr.lit(0x7FL))), JExpr.lit(0x80))));
+        loop.body().assign(value, JOp.shrz(value, JExpr.lit(7)));
+        method.body().add(out.invoke("writeByte").arg(JExpr.cast(model.INT, value)));
 
-    @Override
-    public String getOptionName() {
-        return OPTION_NAME;
-    }
+        method = codecMethod(model, "readVarLong", model.LONG);
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        result = method.body().decl(model.LONG, "value", JExpr.lit(0L));
+        readLoop = method.body()._for();
+        shift = readLoop.init(model.INT, "shift", JExpr.lit(0));
+        readLoop.test(shift.lt(JExpr.lit(70)));
+        readLoop.update(JExpr.assignPlus(shift, JExpr.lit(7)));
+        b = readLoop.body().decl(JMod.FINAL, model.INT, "b", in.invoke("readUnsignedByte"));
+        readLoop.body().assign(result, result.bor(JOp.shl(JExpr.cast(model.LONG, b.band(JExpr.lit(0x7F))), shift)));
+        readLoop.body()._if(b.lt(JExpr.lit(0x80)))._then()._return(result);
+        method.body()._throw(JExpr._new(stream).arg("Malformed varint"));
 
-    @Override
-    public String getUsage() {
-        return "  -" + OPTION_NAME + "\t:  enable generation of guava toString, equals and hashCode methods"
-             + "\n    -" + SKIP_TOSTRING_PARAM + "\t:  dont wrap collection parameters with Collections.unmodifiable...";
+        // zig-zag, small negative numbers take few bytes too
+        method = codecMethod(model, "writeSignedVarInt", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, model.INT, "value");
+        method.body().add(codec.staticInvoke("writeVarInt").arg(out)
+                .arg(value.shl(JExpr.lit(1)).xor(value.shr(JExpr.lit(31)))));
 
-    }
+        method = codecMethod(model, "readSignedVarInt", model.INT);
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        JVar raw = method.body().decl(JMod.FINAL, model.INT, "raw", codec.staticInvoke("readVarInt").arg(in));
+        method.body()._return(JOp.shrz(raw, JExpr.lit(1)).xor(JOp.minus(raw.band(JExpr.lit(1)))));
 
-    @VisibleForTesting
-    boolean isSkipToStringEnabled() {
-        return skipToString;
-    }
+        method = codecMethod(model, "writeSignedVarLong", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, model.LONG, "value");
+        method.body().add(codec.staticInvoke("writeVarLong").arg(out)
+                .arg(value.shl(JExpr.lit(1)).xor(value.shr(JExpr.lit(63)))));
 
-    @Override
-    public int parseArgument(@Nullable Options opt, String[] args, int i) throws BadCommandLineException, IOException {
-        checkElementIndex(i, args.length);
-        final String arg = args[i].trim();
-        if (SKIP_TOSTRING_PARAM.equals(arg)) {
-            skipToString = true;
-            return 1;
+        method = codecMethod(model, "readSignedVarLong", model.LONG);
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        raw = method.body().decl(JMod.FINAL, model.LONG, "raw", codec.staticInvoke("readVarLong").arg(in));
+        method.body()._return(JOp.shrz(raw, JExpr.lit(1)).xor(JOp.minus(raw.band(JExpr.lit(1L)))));
+
+        method = codecMethod(model, "writeBytes", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, model.BYTE.array(), "value");
+        method.body().add(codec.staticInvoke("writeVarInt").arg(out).arg(value.ref("length")));
+        method.body().add(out.invoke("write").arg(value));
+
+        method = codecMethod(model, "readBytes", model.BYTE.array());
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        result = method.body().decl(JMod.FINAL, model.BYTE.array(), "value",
+                JExpr.newArray(model.BYTE, codec.staticInvoke("readLength").arg(in)));
+        method.body().add(in.invoke("readFully").arg(result));
+        method.body()._return(result);
+
+        final JExpression utf8 = model.ref(StandardCharsets.class).staticRef("UTF_8");
+        method = codecMethod(model, "writeString", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, String.class, "value");
+        method.body().add(codec.staticInvoke("writeBytes").arg(out).arg(value.invoke("getBytes").arg(utf8)));
+
+        method = codecMethod(model, "readString", model.ref(String.class));
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        method.body()._return(JExpr._new(model.ref(String.class))
+                .arg(codec.staticInvoke("readBytes").arg(in)).arg(utf8));
+
+        method = codecMethod(model, "writeDecimal", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, BigDecimal.class, "value");
+        method.body().add(codec.staticInvoke("writeBytes").arg(out)
+                .arg(value.invoke("unscaledValue").invoke("toByteArray")));
+        method.body().add(codec.staticInvoke("writeSignedVarInt").arg(out).arg(value.invoke("scale")));
+
+        method = codecMethod(model, "readDecimal", model.ref(BigDecimal.class));
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        method.body()._return(JExpr._new(model.ref(BigDecimal.class))
+                .arg(JExpr._new(model.ref(BigInteger.class)).arg(codec.staticInvoke("readBytes").arg(in)))
+                .arg(codec.staticInvoke("readSignedVarInt").arg(in)));
+
+        method = codecMethod(model, "writeInteger", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, BigInteger.class, "value");
+        method.body().add(codec.staticInvoke("writeBytes").arg(out).arg(value.invoke("toByteArray")));
+
+        method = codecMethod(model, "readInteger", model.ref(BigInteger.class));
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        method.body()._return(JExpr._new(model.ref(BigInteger.class)).arg(codec.staticInvoke("readBytes").arg(in)));
+
+        method = codecMethod(model, "writeCalendar", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, XMLGregorianCalendar.class, "value");
+        method.body().add(codec.staticInvoke("writeString").arg(out).arg(value.invoke("toXMLFormat")));
+
+        method = codecMethod(model, "readCalendar", model.ref(XMLGregorianCalendar.class));
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        method.body()._return(datatypeFactory.invoke("newXMLGregorianCalendar")
+                .arg(codec.staticInvoke("readString").arg(in)));
+
+        method = codecMethod(model, "writeDuration", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, Duration.class, "value");
+        method.body().add(codec.staticInvoke("writeString").arg(out).arg(value.invoke("toString")));
+
+        method = codecMethod(model, "readDuration", model.ref(Duration.class));
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        method.body()._return(datatypeFactory.invoke("newDuration").arg(codec.staticInvoke("readString").arg(in)));
+
+        method = codecMethod(model, "writeQName", model.VOID);
+        out = method.param(JMod.FINAL, DataOutput.class, "out");
+        value = method.param(JMod.FINAL, QName.class, "value");
+        for (String part : new String[]{"getNamespaceURI", "getLocalPart", "getPrefix"}) {
+            method.body().add(codec.staticInvoke("writeString").arg(out).arg(value.invoke(part)));
         }
-        return 0;
+
+        method = codecMethod(model, "readQName", model.ref(QName.class));
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        method.body()._return(JExpr._new(model.ref(QName.class)).arg(codec.staticInvoke("readString").arg(in))
+                .arg(codec.staticInvoke("readString").arg(in)).arg(codec.staticInvoke("readString").arg(in)));
+
+        final JClass classClass = model.ref(Class.class);
+        method = codecMethod(model, "readClass", classClass.narrow(model.ref(Object.class).wildcard()));
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        final JVar className = method.body().decl(JMod.FINAL, model.ref(String.class), "name",
+                codec.staticInvoke("readString").arg(in));
+        final JTryBlock loadClass = method.body()._try();
+        loadClass.body()._return(classClass.staticInvoke("forName").arg(className).arg(JExpr.FALSE)
+                .arg(JExpr.dotclass(codec).invoke("getClassLoader")));
+        final JCatchBlock noClass = loadClass._catch(model.ref(ClassNotFoundException.class));
+        noClass.body()._throw(JExpr._new(model.ref(IOException.class)).arg(JExpr.lit("Unknown class ").plus(className))
+                .arg(noClass.param("e")));
+
+        method = codecMethod(model, "checkSchemaHash", model.VOID);
+        in = method.param(JMod.FINAL, DataInput.class, "in");
+        final JVar expected = method.param(JMod.FINAL, model.LONG, "expected");
+        final JVar type = method.param(JMod.FINAL, classClass.narrow(model.ref(Object.class).wildcard()), "type");
+        final JVar actual = method.body().decl(JMod.FINAL, model.LONG, "actual", in.invoke("readLong"));
+        final JClass longClass = model.ref(Long.class);
+        method.body()._if(actual.ne(expected))._then()._throw(JExpr._new(model.ref(InvalidClassException.class))
+                .arg(type.invoke("getName")).arg(JExpr.lit("written with another schema, hash ")
+                        .plus(longClass.staticInvoke("toHexString").arg(actual)).plus(JExpr.lit(" instead of "))
+                        .plus(longClass.staticInvoke("toHexString").arg(expected))));
     }
 
-    @Override
-    public boolean run(final Outline outline, final Options options, final ErrorHandler errorHandler) {
-        // For each defined class
-        final JCodeModel model = outline.getCodeModel();
-        for (final ClassOutline classOutline : outline.getClasses()) {
+    private JMethod codecMethod(JCodeModel model, String name, JType type) {
+        final JMethod method = beanCodecClass.method(JMod.PUBLIC | JMod.STATIC, type, name);
+        method._throws(IOException.class);
+        return method;
+    }
 
-            final JDefinedClass implClass = classOutline.implClass;
+    /**
+     * Generates {@code writeFields(DataOutput)} and {@code readFields(DataInput)}, which encode the instance fields
+     * compactly, and builds Externalizable and a static {@code writeTo(DataOutput, bean)} and
+     * {@code readFrom(DataInput)} on them. Both start with the {@code SCHEMA_HASH} of the layout of every class
+     * the bean can reach, so that entries written with another schema are rejected.
+     * <p>
+     * Each group of up to eight nullable fields is preceded by a bitmap of its null values, lists by their size and
+     * nested beans by a tag selecting one of the concrete classes their field can hold. Subclasses encode the
+     * inherited fields with {@code super.writeFields(out)}.</p>
+     */
+    protected void generateExternalizableMethods(JCodeModel model, JDefinedClass clazz) {
+        externalizableClasses.add(clazz);
+        final boolean callSuper = hasExternalizable(clazz._extends());
+        if (!callSuper) {
+            clazz._implements(Externalizable.class);
+        }
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>();
+        if (!callSuper) {
+            fields.addAll(getInheritedInstanceFields(clazz));
+        }
+        fields.addAll(getInstanceFields(clazz.fields().values()));
+        final JFieldVar schemaHash = clazz.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, model.LONG,
+                SCHEMA_HASH_FIELD, JExpr.lit(getSchemaHash(model, clazz)));
 
-            if (!skipToString && !implClass.isAbstract() && implClass.getMethod("toString",new JType[0]) == null) {
-                generateToStringMethod(model, implClass);
+        final JMethod writeFields = clazz.method(JMod.PUBLIC, model.VOID, "writeFields");
+        writeFields._throws(IOException.class);
+        final JVar out = writeFields.param(JMod.FINAL, DataOutput.class, "out");
+        final JMethod readFields = clazz.method(JMod.PUBLIC, model.VOID, "readFields");
+        readFields._throws(IOException.class);
+        final JVar in = readFields.param(JMod.FINAL, DataInput.class, "in");
+        if (freeze) {
+            readFields.body()._if(JExpr._this().ref(getFrozenField(model, clazz)))._then()._throw(JExpr._new(
+                    model.ref(IllegalStateException.class)).arg("The bean is frozen"));
+        }
+        if (callSuper) {
+            writeFields.annotate(Override.class);
+            writeFields.body().invoke(JExpr._super(), "writeFields").arg(out);
+            readFields.annotate(Override.class);
+            readFields.body().invoke(JExpr._super(), "readFields").arg(in);
+        }
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.CODEC, fields);
+        recordEstimatedSize(GeneratedMethod.CODEC, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            // every chunk has its own null bitmaps, both sides split alike
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.CODEC, fields)) {
+                final JMethod writeChunk = clazz.method(JMod.PRIVATE, model.VOID, "writeFields$" + chunkIndex);
+                writeChunk._throws(IOException.class);
+                generateWriteFields(model, writeChunk.body(),
+                        writeChunk.param(JMod.FINAL, DataOutput.class, "out"), chunk);
+                writeFields.body().invoke(writeChunk).arg(out);
+                final JMethod readChunk = clazz.method(JMod.PRIVATE, model.VOID, "readFields$" + chunkIndex++);
+                readChunk._throws(IOException.class);
+                generateReadFields(model, readChunk.body(), readChunk.param(JMod.FINAL, DataInput.class, "in"), chunk);
+                readFields.body().invoke(readChunk).arg(in);
             }
+        } else {
+            generateWriteFields(model, writeFields.body(), out, fields);
+            generateReadFields(model, readFields.body(), in, fields);
+        }
+        if (isHashCodeCached(model, clazz) && !isSkipped(clazz, "hashCode")) {
+            readFields.body().assign(JExpr._this().ref(getHashCodeCacheField(model, clazz)), JExpr.lit(0));
+        }
 
-            if (!implClass.isAbstract()) {
-                if (implClass.getMethod("hashCode",new JType[0]) == null)
-                    generateHashCodeMethod(model, implClass);
-                if (implClass.getMethod("equals",new JType[]{model._ref(Object.class)}) == null) {
-                    generateEqualsMethod(model,implClass);
-                }
+        final JMethod writeExternal = clazz.method(JMod.PUBLIC, model.VOID, "writeExternal");
+        writeExternal.annotate(Override.class);
+        writeExternal._throws(IOException.class);
+        final JVar objectOut = writeExternal.param(JMod.FINAL, ObjectOutput.class, "out");
+        writeExternal.body().add(objectOut.invoke("writeLong").arg(schemaHash));
+        writeExternal.body().invoke(writeFields).arg(objectOut);
+
+        final JMethod readExternal = clazz.method(JMod.PUBLIC, model.VOID, "readExternal");
+        readExternal.annotate(Override.class);
+        readExternal._throws(IOException.class);
+        final JVar objectIn = readExternal.param(JMod.FINAL, ObjectInput.class, "in");
+        readExternal.body().add(beanCodecClass.staticInvoke("checkSchemaHash").arg(objectIn).arg(schemaHash)
+                .arg(JExpr.dotclass(clazz)));
+        readExternal.body().invoke(readFields).arg(objectIn);
+
+        // the concrete class is written as a tag, 0 stands for null
+        final List<JDefinedClass> concreteClasses = getConcreteClasses(clazz);
+        final JMethod writeTagged = clazz.method(JMod.PUBLIC | JMod.STATIC, model.VOID, "writeTagged");
+        writeTagged._throws(IOException.class);
+        JVar taggedOut = writeTagged.param(JMod.FINAL, DataOutput.class, "out");
+        JVar bean = writeTagged.param(JMod.FINAL, clazz, "bean");
+        final JBlock writeNull = writeTagged.body()._if(bean.eq(JExpr._null()))._then();
+        writeNull.add(beanCodecClass.staticInvoke("writeVarInt").arg(taggedOut).arg(JExpr.lit(0)));
+        writeNull._return();
+        final JVar type = writeTagged.body().decl(JMod.FINAL,
+                model.ref(Class.class).narrow(model.ref(Object.class).wildcard()), "type", bean.invoke("getClass"));
+        JExpression selectTag = JExpr.lit(0);
+        for (int tag = concreteClasses.size(); tag > 0; tag--) {
+            selectTag = JOp.cond(type.eq(JExpr.dotclass(concreteClasses.get(tag - 1))), JExpr.lit(tag), selectTag);
+        }
+        final JVar writtenTag = writeTagged.body().decl(JMod.FINAL, model.INT, "tag", selectTag);
+        writeTagged.body()._if(writtenTag.eq(JExpr.lit(0)))._then()._throw(
+                JExpr._new(model.ref(NotSerializableException.class)).arg(type.invoke("getName")));
+        writeTagged.body().add(beanCodecClass.staticInvoke("writeVarInt").arg(taggedOut).arg(writtenTag));
+        writeTagged.body().add(bean.invoke(writeFields).arg(taggedOut));
+
+        final JMethod readTagged = clazz.method(JMod.PUBLIC | JMod.STATIC, clazz, "readTagged");
+        readTagged._throws(IOException.class);
+        JVar taggedIn = readTagged.param(JMod.FINAL, DataInput.class, "in");
+        final JVar tag = readTagged.body().decl(JMod.FINAL, model.INT, "tag",
+                beanCodecClass.staticInvoke("readVarInt").arg(taggedIn));
+        final JSwitch selectClass = readTagged.body()._switch(tag);
+        selectClass._case(JExpr.lit(0)).body()._return(JExpr._null());
+        for (int i = 1; i <= concreteClasses.size(); i++) {
+            final JDefinedClass concreteClass = concreteClasses.get(i - 1);
+            final JBlock body = selectClass._case(JExpr.lit(i)).body();
+            final JVar read = body.decl(JMod.FINAL, concreteClass, "bean" + i, JExpr._new(concreteClass));
+            body.add(read.invoke("readFields").arg(taggedIn));
+            body._return(read);
+        }
+        selectClass._default().body()._throw(JExpr._new(model.ref(StreamCorruptedException.class))
+                .arg(JExpr.lit("Unknown tag ").plus(tag).plus(JExpr.lit(" of " + clazz.name()))));
+
+        final JMethod writeTo = clazz.method(JMod.PUBLIC | JMod.STATIC, model.VOID, "writeTo");
+        writeTo._throws(IOException.class);
+        taggedOut = writeTo.param(JMod.FINAL, DataOutput.class, "out");
+        bean = writeTo.param(JMod.FINAL, clazz, "bean");
+        writeTo.body().add(taggedOut.invoke("writeLong").arg(schemaHash));
+        writeTo.body().add(clazz.staticInvoke(writeTagged).arg(taggedOut).arg(bean));
+
+        final JMethod readFrom = clazz.method(JMod.PUBLIC | JMod.STATIC, clazz, "readFrom");
+        readFrom._throws(IOException.class);
+        taggedIn = readFrom.param(JMod.FINAL, DataInput.class, "in");
+        readFrom.body().add(beanCodecClass.staticInvoke("checkSchemaHash").arg(taggedIn).arg(schemaHash)
+                .arg(JExpr.dotclass(clazz)));
+        readFrom.body()._return(clazz.staticInvoke(readTagged).arg(taggedIn));
+    }
+
+    private void generateWriteFields(JCodeModel model, JBlock body, JVar out, List<JFieldVar> fields) {
+        final List<JFieldVar> nullableFields = getNullableFields(fields);
+        for (int i = 0; i < nullableFields.size(); i += 8) {
+            JExpression bitmap = null;
+            for (int bit = 0; bit < 8 && i + bit < nullableFields.size(); bit++) {
+                final JExpression isNull = JOp.cond(JExpr._this().ref(nullableFields.get(i + bit)).eq(JExpr._null()),
+                        JExpr.lit(1 << bit), JExpr.lit(0));
+                bitmap = bitmap == null ? isNull : bitmap.bor(isNull);
+            }
+            body.add(out.invoke("writeByte").arg(bitmap));
+        }
+        for (JFieldVar field : fields) {
+            final JFieldRef value = JExpr._this().ref(field);
+            final JBlock block = nullableFields.contains(field) ? body._if(value.ne(JExpr._null()))._then() : body;
+            final JType elementType = getListElementType(model, field.type());
+            if (elementType != null) {
+                block.add(beanCodecClass.staticInvoke("writeVarInt").arg(out).arg(value.invoke("size")));
+                final JForEach forEach = block.forEach(elementType, "e", value);
+                generateWriteNullableValue(model, forEach.body(), out, elementType, forEach.var());
+            } else {
+                generateWriteValue(model, block, out, field.type(), value);
             }
         }
-        return true;
     }
 
-    protected void generateToStringMethod(JCodeModel model, JDefinedClass clazz) {
-        final JMethod toStringMethod = clazz.method(JMod.PUBLIC, String.class,"toString");
-        toStringMethod.annotate(Override.class);
-        final JClass objects = model.ref(com.google.common.base.MoreObjects.class);
-        final Collection<JFieldVar> superClassInstanceFields = getInstanceFields(getSuperclassFields(clazz));
-        final Collection<JFieldVar> thisClassInstanceFields = getInstanceFields(clazz.fields().values());
+    /**
+     * Writes a value that is not null, unless it is a bean, whose tag encodes null.
+     */
+    private void generateWriteValue(JCodeModel model, JBlock block, JVar out, JType type, JExpression value) {
+        if (hasExternalizable(type)) {
+            block.add(((JClass) type).staticInvoke("writeTagged").arg(out).arg(value));
+            return;
+        }
+        if (isJaxbElement(model, type)) {
+            // the declared type is the type parameter, and is not written
+            block.add(beanCodecClass.staticInvoke("writeQName").arg(out).arg(value.invoke("getName")));
+            block.add(beanCodecClass.staticInvoke("writeString").arg(out)
+                    .arg(value.invoke("getScope").invoke("getName")));
+            generateWriteNullableValue(model, block, out, ((JClass) type).getTypeParameters().get(0),
+                    value.invoke("getValue"));
+            block.add(out.invoke("writeBoolean").arg(value.invoke("isNil")));
+            return;
+        }
+        final JType unboxed = type.isPrimitive() ? type : ((JClass) type).unboxify();
+        if (unboxed == model.INT) {
+            block.add(beanCodecClass.staticInvoke("writeSignedVarInt").arg(out).arg(value));
+        } else if (unboxed == model.LONG) {
+            block.add(beanCodecClass.staticInvoke("writeSignedVarLong").arg(out).arg(value));
+        } else if (unboxed.isPrimitive()) {
+            block.add(out.invoke("write" + Character.toUpperCase(unboxed.name().charAt(0))
+                    + unboxed.name().substring(1)).arg(value));
+        } else if (getComparisonCost(model, type) == ComparisonCost.ENUM) {
+            block.add(beanCodecClass.staticInvoke("writeVarInt").arg(out).arg(value.invoke("ordinal")));
+        } else {
+            block.add(beanCodecClass.staticInvoke("write" + getCodecTypeName(model, type)).arg(out).arg(value));
+        }
+    }
 
-        final JBlock content = toStringMethod.body();
+    private void generateWriteNullableValue(JCodeModel model, JBlock block, JVar out, JType type,
+                                            JExpression value) {
+        if (hasExternalizable(type)) {
+            generateWriteValue(model, block, out, type, value);
+            return;
+        }
+        block.add(out.invoke("writeBoolean").arg(value.ne(JExpr._null())));
+        generateWriteValue(model, block._if(value.ne(JExpr._null()))._then(), out, type, value);
+    }
 
-        final JInvocation toStringHelperCall = objects.staticInvoke("toStringHelper");
-        toStringHelperCall.arg(JExpr._this());
-        JInvocation fluentCall = toStringHelperCall;
+    private void generateReadFields(JCodeModel model, JBlock body, JVar in, List<JFieldVar> fields) {
+        final List<JFieldVar> nullableFields = getNullableFields(fields);
+        final List<JVar> bitmaps = new ArrayList<JVar>();
+        for (int i = 0; i < nullableFields.size(); i += 8) {
+            bitmaps.add(body.decl(JMod.FINAL, model.INT, "nulls" + i / 8, in.invoke("readUnsignedByte")));
+        }
+        for (JFieldVar field : fields) {
+            final JFieldRef target = JExpr._this().ref(field);
+            final int index = nullableFields.indexOf(field);
+            JBlock block = body;
+            if (index >= 0) {
+                final JConditional isPresent = body._if(
+                        bitmaps.get(index / 8).band(JExpr.lit(1 << index % 8)).eq(JExpr.lit(0)));
+                isPresent._else().assign(target, JExpr._null());
+                block = isPresent._then();
+            }
+            final JType elementType = getListElementType(model, field.type());
+            if (elementType != null) {
+                final JVar size = block.decl(JMod.FINAL, model.INT, "size",
+                        beanCodecClass.staticInvoke("readLength").arg(in));
+                final JVar list = block.decl(JMod.FINAL, field.type(), "list",
+                        JExpr._new(model.ref(ArrayList.class).narrow((JClass) elementType)).arg(size));
+                final JForLoop loop = block._for();
+                final JVar i = loop.init(model.INT, "i", JExpr.lit(0));
+                loop.test(i.lt(size));
+                loop.update(i.incr());
+                loop.body().add(list.invoke("add").arg(readValueExpression(model, in, elementType, true)));
+                block.assign(target, list);
+            } else if (isJaxbElement(model, field.type())) {
+                final JClass valueType = ((JClass) field.type()).getTypeParameters().get(0);
+                final JVar element = block.decl(JMod.FINAL, field.type(), "element", JExpr._new(field.type())
+                        .arg(beanCodecClass.staticInvoke("readQName").arg(in)).arg(JExpr.dotclass(valueType))
+                        .arg(beanCodecClass.staticInvoke("readClass").arg(in))
+                        .arg(readValueExpression(model, in, valueType, true)));
+                block.add(element.invoke("setNil").arg(in.invoke("readBoolean")));
+                block.assign(target, element);
+            } else {
+                block.assign(target, readValueExpression(model, in, field.type(), false));
+            }
+        }
+    }
 
-        fluentCall.invoke("omitNullValues");
+    private JExpression readValueExpression(JCodeModel model, JVar in, JType type, boolean nullable) {
+        if (hasExternalizable(type)) {
+            return ((JClass) type).staticInvoke("readTagged").arg(in);
+        }
+        final JExpression value;
+        final JType unboxed = type.isPrimitive() ? type : ((JClass) type).unboxify();
+        if (unboxed == model.INT) {
+            value = beanCodecClass.staticInvoke("readSignedVarInt").arg(in);
+        } else if (unboxed == model.LONG) {
+            value = beanCodecClass.staticInvoke("readSignedVarLong").arg(in);
+        } else if (unboxed.isPrimitive()) {
+            value = in.invoke("read" + Character.toUpperCase(unboxed.name().charAt(0)) + unboxed.name().substring(1));
+        } else if (getComparisonCost(model, type) == ComparisonCost.ENUM) {
+            value = beanCodecClass.staticInvoke(getReadEnumMethod(model, (JClass) type)).arg(in);
+        } else {
+            value = beanCodecClass.staticInvoke("read" + getCodecTypeName(model, type)).arg(in);
+        }
+        return nullable ? JOp.cond(in.invoke("readBoolean"), value, JExpr._null()) : value;
+    }
 
-        for (JFieldVar superField : superClassInstanceFields) {
-            fluentCall = fluentCall.invoke("add");
-            fluentCall.arg(JExpr.lit(superField.name()));
-            fluentCall.arg(superField);
+    /**
+     * Returns the {@code BeanCodec} method reading a constant of the given enum by its ordinal, generating it on first
+     * use. It looks the ordinal up in a copy of {@code values()} made once, and rejects ordinals of constants that
+     * the enum does not declare with a StreamCorruptedException.
+     */
+    private JMethod getReadEnumMethod(JCodeModel model, JClass enumType) {
+        JMethod method = enumReaders.get(enumType);
+        if (method != null) {
+            return method;
+        }
+        String constantName = toConstantName(enumType.name()) + "_VALUES";
+        for (int i = 2; beanCodecClass.fields().containsKey(constantName); i++) {
+            constantName = toConstantName(enumType.name()) + "_VALUES_" + i;
+        }
+        final JFieldVar constants = beanCodecClass.field(JMod.PRIVATE | JMod.STATIC | JMod.FINAL, enumType.array(),
+                constantName, enumType.staticInvoke("values"));
+        String methodName = "read" + enumType.name();
+        for (int i = 2; hasMethod(beanCodecClass, methodName); i++) {
+            methodName = "read" + enumType.name() + i;
         }
+        method = codecMethod(model, methodName, enumType);
+        final JVar in = method.param(JMod.FINAL, DataInput.class, "in");
+        final JVar ordinal = method.body().decl(JMod.FINAL, model.INT, "ordinal",
+                beanCodecClass.staticInvoke("readVarInt").arg(in));
+        method.body()._if(ordinal.lt(JExpr.lit(0)).cor(ordinal.gte(constants.ref("length"))))._then()._throw(
+                JExpr._new(model.ref(StreamCorruptedException.class)).arg(JExpr.lit("Unknown ordinal ").plus(ordinal)
+                        .plus(JExpr.lit(" of " + enumType.name()))));
+        method.body()._return(constants.component(ordinal));
+        enumReaders.put(enumType, method);
+        return method;
+    }
 
-        for (JFieldVar thisField : thisClassInstanceFields) {
-            fluentCall = fluentCall.invoke("add");
-            fluentCall.arg(JExpr.lit(thisField.name()));
-            fluentCall.arg(thisField);
+    private static boolean hasMethod(JDefinedClass clazz, String name) {
+        for (JMethod method : clazz.methods()) {
+            if (method.name().equals(name)) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        fluentCall = fluentCall.invoke("toString");
+    private String getCodecTypeName(JCodeModel model, JType type) {
+        if (type.isArray()) {
+            return "Bytes";
+        }
+        if (isCalendar(model, type)) {
+            return "Calendar";
+        }
+        if (type == model.ref(BigDecimal.class)) {
+            return "Decimal";
+        }
+        return type == model.ref(BigInteger.class) ? "Integer" : type.name();
+    }
+
+    /**
+     * Returns the fields covered by the null bitmaps, nested beans encode null in their tag.
+     */
+    private List<JFieldVar> getNullableFields(List<JFieldVar> fields) {
+        final List<JFieldVar> nullableFields = new ArrayList<JFieldVar>();
+        for (JFieldVar field : fields) {
+            if (!field.type().isPrimitive() && !hasExternalizable(field.type())) {
+                nullableFields.add(field);
+            }
+        }
+        return nullableFields;
+    }
 
-        content._return(fluentCall);
+    /**
+     * Returns the given class, unless it is abstract, and its encoded subclasses that are not, ordered by name.
+     * Their positions are the tags written before nested beans. Computed once per class, after the classes that
+     * cannot be encoded have been removed.
+     */
+    private List<JDefinedClass> getConcreteClasses(JDefinedClass clazz) {
+        List<JDefinedClass> classes = concreteClasses.get(clazz);
+        if (classes == null) {
+            classes = new ArrayList<JDefinedClass>();
+            if (!clazz.isAbstract()) {
+                classes.add(clazz);
+            }
+            final List<JDefinedClass> descendants = subclasses.get(clazz);
+            for (JDefinedClass subclass : descendants != null ? descendants : Collections.<JDefinedClass>emptyList()) {
+                if (!subclass.isAbstract() && externalizableClasses.contains(subclass)) {
+                    classes.add(subclass);
+                }
+            }
+            Collections.sort(classes, new Comparator<JDefinedClass>() {
+                @Override
+                public int compare(JDefinedClass a, JDefinedClass b) {
+                    return a.fullName().compareTo(b.fullName());
+                }
+            });
+            classes = Collections.unmodifiableList(classes);
+            concreteClasses.put(clazz, classes);
+        }
+        return classes;
+    }
 
+    /**
+     * Returns a hash of the fields, tags and enum constants of every class the encoding of the given class can
+     * reach. It changes whenever the schema changes the encoding.
+     */
+    protected long getSchemaHash(JCodeModel model, JDefinedClass clazz) {
+        Long hash = schemaHashes.get(clazz);
+        if (hash == null) {
+            // the digests of the layouts, which are computed once per class, in a stable order
+            final Set<String> digests = new TreeSet<String>();
+            final Set<JDefinedClass> visited = new HashSet<JDefinedClass>();
+            final Deque<JDefinedClass> pending = new ArrayDeque<JDefinedClass>();
+            pending.add(clazz);
+            while (!pending.isEmpty()) {
+                final JDefinedClass type = pending.remove();
+                if (visited.add(type)) {
+                    digests.add(getLayoutDigest(model, type));
+                    if (type.getClassType() != ClassType.ENUM) {
+                        pending.addAll(getConcreteClasses(type));
+                        pending.addAll(getFieldClasses(model, type));
+                    }
+                }
+            }
+            final MessageDigest digest = newSha1();
+            for (String layoutDigest : digests) {
+                digest.update(layoutDigest.getBytes(StandardCharsets.UTF_8));
+            }
+            hash = ByteBuffer.wrap(digest.digest()).getLong();
+            schemaHashes.put(clazz, hash);
+        }
+        return hash;
     }
 
-    protected void generateHashCodeMethod(JCodeModel model, JDefinedClass clazz) {
+    /**
+     * Returns the beans and enums the declared and inherited fields of a class refer to, directly, as list elements
+     * or as values of {@code JAXBElement}s.
+     */
+    private Set<JDefinedClass> getFieldClasses(JCodeModel model, JDefinedClass clazz) {
+        Set<JDefinedClass> classes = fieldClasses.get(clazz);
+        if (classes == null) {
+            classes = new HashSet<JDefinedClass>();
+            if (clazz._extends() instanceof JDefinedClass) {
+                classes.addAll(getFieldClasses(model, (JDefinedClass) clazz._extends()));
+            }
+            for (JFieldVar field : getInstanceFields(clazz.fields().values())) {
+                addReferencedClass(model, field.type(), classes);
+            }
+            fieldClasses.put(clazz, classes);
+        }
+        return classes;
+    }
 
-        final JClass objects = model.ref(java.util.Objects.class);
-        final Collection<JFieldVar> thisClassInstanceFields = getInstanceFields(clazz.fields().values());
-        final Collection<JFieldVar> superClassInstanceFields = getInstanceFields(getSuperclassFields(clazz));
-        // Dont create hashCode for empty classes
-        if (thisClassInstanceFields.isEmpty() && superClassInstanceFields.isEmpty()) return;
+    private void addReferencedClass(JCodeModel model, JType type, Collection<JDefinedClass> referenced) {
+        if (getListElementType(model, type) != null) {
+            type = getListElementType(model, type);
+        }
+        if (isJaxbElement(model, type) && ((JClass) type).getTypeParameters().size() == 1) {
+            type = ((JClass) type).getTypeParameters().get(0);
+        }
+        if (type instanceof JDefinedClass) {
+            referenced.add((JDefinedClass) type);
+        }
+    }
 
+    /**
+     * Returns the hex SHA-1 of the name, tags and fields of a bean, or of the constants of an enum.
+     */
+    private String getLayoutDigest(JCodeModel model, JDefinedClass clazz) {
+        String layoutDigest = layoutDigests.get(clazz);
+        if (layoutDigest == null) {
+            final StringBuilder layout = new StringBuilder(clazz.fullName());
+            if (clazz.getClassType() == ClassType.ENUM) {
+                final List<String> constants = enumConstants.get(clazz);
+                layout.append(" constants ").append(constants != null ? constants : "?");
+            } else {
+                layout.append(" tags");
+                for (JDefinedClass concreteClass : getConcreteClasses(clazz)) {
+                    layout.append(' ').append(concreteClass.fullName());
+                }
+                layout.append(" fields");
+                final List<JFieldVar> fields = new ArrayList<JFieldVar>(getInheritedInstanceFields(clazz));
+                fields.addAll(getInstanceFields(clazz.fields().values()));
+                for (JFieldVar field : fields) {
+                    layout.append(' ').append(field.name()).append(':').append(field.type().fullName());
+                }
+            }
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : newSha1().digest(layout.toString().getBytes(StandardCharsets.UTF_8))) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            layoutDigest = hex.toString();
+            layoutDigests.put(clazz, layoutDigest);
+        }
+        return layoutDigest;
+    }
 
-        final JMethod hashCodeMethod = clazz.method(JMod.PUBLIC, model.INT ,"hashCode");
-        final JBlock content = hashCodeMethod.body();
-        hashCodeMethod.annotate(Override.class);
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-        final JInvocation hashCodeCall = objects.staticInvoke("hash");
+    /**
+     * Generates {@code funnelTo(PrimitiveSink)}, which writes the fields hashed by hashCode() into the sink, and a
+     * static {@code FUNNEL} delegating to it, so that beans can be fed into a Hasher or BloomFilter without
+     * serializing them first. Nested beans write their own fields, null values and the length of strings, arrays
+     * and lists are written too to keep adjacent fields apart. Everything else is written as its hash code
+     * consistent with equals.
+     * <p>
+     * The funnel is an enum singleton as recommended by Funnel, so that it survives serialization.</p>
+     */
+    protected void generateFunnel(JCodeModel model, JDefinedClass clazz) {
+        funnelClasses.add(clazz);
+        final JClass primitiveSink = refByName(model, PRIMITIVE_SINK);
+        final boolean callSuper = delegatesToSuper(clazz, "hashCode") && hasFunnelTo(clazz._extends());
+        final List<JFieldVar> fields = new ArrayList<JFieldVar>();
+        if (!callSuper) {
+            fields.addAll(withoutIgnored(getInheritedInstanceFields(clazz), "hashCode"));
+        }
+        fields.addAll(withoutIgnored(getInstanceFields(clazz.fields().values()), "hashCode"));
 
+        final JMethod funnelToMethod = clazz.method(JMod.PUBLIC, model.VOID, "funnelTo");
+        final JVar into = funnelToMethod.param(JMod.FINAL, primitiveSink, "into");
+        final JBlock content = funnelToMethod.body();
+        if (callSuper) {
+            funnelToMethod.annotate(Override.class);
+            content.invoke(JExpr._super(), "funnelTo").arg(into);
+        }
+        final int estimatedSize = estimateMethodSize(model, GeneratedMethod.FUNNEL, fields);
+        recordEstimatedSize(GeneratedMethod.FUNNEL, estimatedSize);
+        if (estimatedSize > maxMethodSize) {
+            int chunkIndex = 0;
+            for (List<JFieldVar> chunk : splitIntoChunks(model, GeneratedMethod.FUNNEL, fields)) {
+                final JMethod chunkMethod = clazz.method(JMod.PRIVATE, model.VOID, "funnelTo$" + chunkIndex++);
+                final JVar chunkInto = chunkMethod.param(JMod.FINAL, primitiveSink, "into");
+                for (JFieldVar field : chunk) {
+                    generateFunnelValue(model, clazz, chunkMethod.body(), chunkInto, field.type(),
+                            JExpr._this().ref(field));
+                }
+                content.invoke(chunkMethod).arg(into);
+            }
+        } else {
+            for (JFieldVar field : fields) {
+                generateFunnelValue(model, clazz, content, into, field.type(), JExpr._this().ref(field));
+            }
+        }
 
-        for (JFieldVar superField : superClassInstanceFields) {
-            hashCodeCall.arg(superField);
+        final JDefinedClass funnelEnum;
+        try {
+            funnelEnum = clazz._class(JMod.STATIC, clazz.name() + "Funnel", ClassType.ENUM);
+        } catch (JClassAlreadyExistsException e) {
+            throw new IllegalStateException("Cannot generate the funnel of " + clazz.fullName(), e);
         }
+        funnelEnum._implements(refByName(model, FUNNEL).narrow(clazz));
+        funnelEnum.enumConstant("INSTANCE");
+        final JMethod funnelMethod = funnelEnum.method(JMod.PUBLIC, model.VOID, "funnel");
+        funnelMethod.annotate(Override.class);
+        final JVar from = funnelMethod.param(JMod.FINAL, clazz, "from");
+        final JVar sink = funnelMethod.param(JMod.FINAL, primitiveSink, "into");
+        funnelMethod.body().invoke(from, "funnelTo").arg(sink);
+        clazz.field(JMod.PUBLIC | JMod.STATIC | JMod.FINAL, refByName(model, FUNNEL).narrow(clazz), FUNNEL_FIELD,
+                funnelEnum.staticRef("INSTANCE"));
+    }
 
-        for (JFieldVar thisField : thisClassInstanceFields) {
-            hashCodeCall.arg(thisField);
+    private void generateFunnelValue(JCodeModel model, JDefinedClass clazz, JBlock block, JVar into, JType type,
+                                     JExpression value) {
+        if (type.isPrimitive()) {
+            block.add(putPrimitive(model, into, type, value));
+            return;
+        }
+        if (isFunnelledAsHashCode(model, type)) {
+            block.add(into.invoke("putInt").arg(hashCodeExpression(model, clazz, type, value)));
+            return;
+        }
+        final JConditional isNull = block._if(value.eq(JExpr._null()));
+        if (nullAsEmpty && getListElementType(model, type) != null) {
+            // written like an empty list, which equals it
+            isNull._then().add(into.invoke("putBoolean").arg(JExpr.TRUE).invoke("putInt").arg(JExpr.lit(0)));
+        } else {
+            isNull._then().add(into.invoke("putBoolean").arg(JExpr.FALSE));
         }
+        final JBlock present = isNull._else();
+        present.add(into.invoke("putBoolean").arg(JExpr.TRUE));
+        if (hasFunnelTo(type)) {
+            present.add(value.invoke("funnelTo").arg(into));
+        } else if (((JClass) type).unboxify().isPrimitive()) {
+            present.add(putPrimitive(model, into, ((JClass) type).unboxify(), value));
+        } else if (type == model.ref(String.class)) {
+            present.add(into.invoke("putInt").arg(value.invoke("length")).invoke("putUnencodedChars").arg(value));
+        } else if (getComparisonCost(model, type) == ComparisonCost.ENUM) {
+            // the name rather than the ordinal, so that hashes stay stable when constants are added to the schema
+            final JExpression name = value.invoke("name");
+            present.add(into.invoke("putInt").arg(name.invoke("length")).invoke("putUnencodedChars").arg(name));
+        } else if (type.isArray()) {
+            present.add(into.invoke("putInt").arg(value.ref("length")).invoke("putBytes").arg(value));
+        } else {
+            present.add(into.invoke("putInt").arg(value.invoke("size")));
+            final JType elementType = getListElementType(model, type);
+            final JForEach forEach = present.forEach(elementType, "e", value);
+            generateFunnelValue(model, clazz, forEach.body(), into, elementType, forEach.var());
+        }
+    }
 
-        content._return(hashCodeCall);
+    /**
+     * Returns whether non-primitive values of the given type are written into a funnel as their hash code, instead
+     * of a null marker followed by their content.
+     */
+    private boolean isFunnelledAsHashCode(JCodeModel model, JType type) {
+        if (hasFunnelTo(type) || type == model.ref(String.class) || type == model.BYTE.array()
+                || getComparisonCost(model, type) == ComparisonCost.ENUM) {
+            return false;
+        }
+        if (type instanceof JClass && ((JClass) type).unboxify().isPrimitive()) {
+            return false;
+        }
+        return getListElementType(model, type) == null || isJaxbElementList(model, type);
     }
 
-    protected void generateEqualsMethod(JCodeModel model, JDefinedClass clazz) {
-        final Collection<JFieldVar> superClassInstanceFields = getInstanceFields(getSuperclassFields(clazz));
-        final Collection<JFieldVar> thisClassInstanceFields = getInstanceFields(clazz.fields().values());
-        // Dont create hashCode for empty classes
-        if (thisClassInstanceFields.isEmpty() && superClassInstanceFields.isEmpty()) return;
+    /**
+     * Writes a primitive value into the sink. Floating point values are written like they are compared by equals,
+     * with all NaNs collapsed into one.
+     */
+    private JInvocation putPrimitive(JCodeModel model, JVar into, JType type, JExpression value) {
+        if (type == model.DOUBLE) {
+            return into.invoke("putLong").arg(model.ref(Double.class).staticInvoke("doubleToLongBits").arg(value));
+        }
+        if (type == model.FLOAT) {
+            return into.invoke("putInt").arg(model.ref(Float.class).staticInvoke("floatToIntBits").arg(value));
+        }
+        final String name = type.name();
+        return into.invoke("put" + Character.toUpperCase(name.charAt(0)) + name.substring(1)).arg(value);
+    }
 
-        final JMethod equalsMethod = clazz.method(JMod.PUBLIC, model.BOOLEAN ,"equals");
-        equalsMethod.annotate(Override.class);
-        final JVar other = equalsMethod.param(Object.class,"other");
-        other.annotate(Nullable.class);
+    /**
+     * Returns whether values of the given type can write themselves into a sink with a generated {@code funnelTo}.
+     */
+    protected boolean hasFunnelTo(JType type) {
+        if (!(type instanceof JDefinedClass)) {
+            return false;
+        }
+        if (funnelClasses.contains(type)) {
+            return true;
+        }
+        // compared by name, PrimitiveSink is referred to by name when Guava is not on the classpath of XJC
+        for (JMethod method : ((JDefinedClass) type).methods()) {
+            if ("funnelTo".equals(method.name()) && method.listParams().length == 1
+                    && PRIMITIVE_SINK.equals(method.listParams()[0].type().fullName())) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        final JClass objects = model.ref(java.util.Objects.class);
+    /**
+     * Returns the fields ordered by the cost of comparing them, so that the generated equals rejects unequal
+     * objects as early as possible. Fields of the same cost keep their order.
+     */
+    protected List<JFieldVar> sortByComparisonCost(final JCodeModel model, Collection<JFieldVar> fields) {
+        final List<ComparisonCost> costs = new ArrayList<ComparisonCost>(fields.size());
+        for (JFieldVar field : fields) {
+            costs.add(getComparisonCost(model, field.type()));
+        }
+        // a stable bucket sort, looking up every cost only once
+        final List<JFieldVar> sorted = new ArrayList<JFieldVar>(fields.size());
+        for (ComparisonCost cost : ComparisonCost.values()) {
+            int i = 0;
+            for (JFieldVar field : fields) {
+                if (costs.get(i++) == cost) {
+                    sorted.add(field);
+                }
+            }
+        }
+        return sorted;
+    }
 
-        final JBlock content = equalsMethod.body();
+    protected ComparisonCost getComparisonCost(JCodeModel model, JType type) {
+        if (type.isPrimitive()) {
+            return ComparisonCost.PRIMITIVE;
+        }
+        ComparisonCost cost = comparisonCosts.get(type);
+        if (cost == null) {
+            // the assignability checks load the referenced classes reflectively
+            cost = computeComparisonCost(model, type);
+            comparisonCosts.put(type, cost);
+        }
+        return cost;
+    }
 
-        final JConditional ifSameRef = content._if(JExpr._this().eq(other));
-        ifSameRef._then()._return(JExpr.TRUE);
+    private ComparisonCost computeComparisonCost(JCodeModel model, JType type) {
+        if (type.isArray()) {
+            return ComparisonCost.COLLECTION;
+        }
+        final JClass clazz = ((JClass) type).erasure();
+        if (clazz instanceof JDefinedClass) {
+            return ((JDefinedClass) clazz).getClassType() == ClassType.ENUM
+                    ? ComparisonCost.ENUM : ComparisonCost.OBJECT;
+        }
+        if (clazz.unboxify().isPrimitive() || clazz == model.ref(String.class)) {
+            return ComparisonCost.VALUE;
+        }
+        if (model.ref(Enum.class).isAssignableFrom(clazz)) {
+            return ComparisonCost.ENUM;
+        }
+        if (model.ref(Collection.class).isAssignableFrom(clazz) || model.ref(Map.class).isAssignableFrom(clazz)) {
+            return ComparisonCost.COLLECTION;
+        }
+        return ComparisonCost.OBJECT;
+    }
 
-        final JConditional isOtherNull = content._if(other.eq(JExpr._null()));
-        isOtherNull._then()._return(JExpr.FALSE);
+    /**
+     * Relative cost of comparing two values of a field, cheapest first.
+     */
+    protected enum ComparisonCost {
+        /** primitives, compared with {@code ==} */
+        PRIMITIVE,
+        /** enum constants, compared by reference */
+        ENUM,
+        /** boxed primitives and strings */
+        VALUE,
+        /** nested beans and any other object */
+        OBJECT,
+        /** collections, maps and arrays */
+        COLLECTION
+    }
 
-        JExpression equalsBuilder = JExpr.TRUE;
+    /**
+     * Returns a rough estimate of the bytecode size of the given generated method for the given fields. A
+     * {@code null} field stands for the call to the superclass implementation.
+     */
+    protected int estimateMethodSize(JCodeModel model, GeneratedMethod method, List<JFieldVar> fields) {
+        int size = method.overhead;
+        for (JFieldVar field : fields) {
+            size += estimateFieldCodeSize(model, method, field);
+        }
+        return size;
+    }
 
-        final JConditional isOtherNotSameClass = content._if(JExpr.invoke("getClass").ne(other.invoke("getClass")));
-        isOtherNotSameClass._then()._return(JExpr.FALSE);
+    /**
+     * Records the estimated size of a method generated for the class being generated in its report, if any.
+     */
+    private void recordEstimatedSize(GeneratedMethod method, int size) {
+        if (estimatedSizes != null) {
+            estimatedSizes.put(method, size);
+        }
+    }
 
-        final JVar otherTypesafe = content.decl(JMod.FINAL, clazz, "o", JExpr.cast(clazz, other));
+    /**
+     * Returns a rough estimate of the bytecode needed to handle the given field in the given generated method.
+     */
+    protected int estimateFieldCodeSize(JCodeModel model, GeneratedMethod method, @Nullable JFieldVar field) {
+        if (field == null) {
+            return 8;
+        }
+        final JType type = field.type();
+        switch (method) {
+            case EQUALS:
+                if (type == model.DOUBLE || type == model.FLOAT) {
+                    return 18;
+                }
+                return type.isPrimitive() ? 12 : 14;
+            case HASH_CODE:
+                // the unrolled computation, which is what the split helpers contain
+                if (type == model.DOUBLE) {
+                    return 28;
+                }
+                return type.isPrimitive() ? 16 : 22;
+            case TO_STRING:
+                return type.isPrimitive() ? 13 : 10;
+            case COMPARE:
+                if (type.isPrimitive()) {
+                    return 18;
+                }
+                return type == model.ref(BigDecimal.class) ? 65 : 47;
+            case ACCEPT:
+                // the name is loaded with ldc_w in classes with large constant pools
+                return 13;
+            case CODEC:
+                // the reading side, which is the larger one
+                if (type.isPrimitive() || hasExternalizable(type)) {
+                    return 12;
+                }
+                if (getListElementType(model, type) != null) {
+                    return 75;
+                }
+                return isJaxbElement(model, type) ? 40 : 22;
+            case DIFF:
+                // the comparison and the report of a change, which boxes primitives
+                if (getListElementType(model, type) != null) {
+                    return 130;
+                }
+                if (hasDiff(type)) {
+                    return 60;
+                }
+                return type.isPrimitive() ? 30 : 28;
+            case FUNNEL:
+                if (type.isPrimitive()) {
+                    return type == model.DOUBLE || type == model.FLOAT ? 14 : 11;
+                }
+                if (isFunnelledAsHashCode(model, type)) {
+                    return hasSpecializedHashCode(model, type) ? 16 : 26;
+                }
+                return getListElementType(model, type) != null ? 110 : 50;
+            default:
+                if (getListElementType(model, type) != null) {
+                    return 90;
+                }
+                return hasAppendTo(type) ? 35 : 16;
+        }
+    }
 
-        for (JFieldVar superField : superClassInstanceFields) {
-            final JInvocation equalsInvocation = objects.staticInvoke("equals");
-            equalsInvocation.arg(JExpr._this().ref(superField));
-            equalsInvocation.arg(otherTypesafe.ref(superField));
-            equalsBuilder = equalsBuilder.cand(equalsInvocation);
+    /**
+     * Splits the fields into consecutive chunks whose code is small enough to be inlined by the JIT. Every chunk
+     * holds at least one field.
+     */
+    protected List<List<JFieldVar>> splitIntoChunks(JCodeModel model, GeneratedMethod method, List<JFieldVar> fields) {
+        final int chunkSize = Math.min(maxMethodSize, CHUNK_SIZE);
+        final List<List<JFieldVar>> chunks = new ArrayList<List<JFieldVar>>();
+        List<JFieldVar> chunk = new ArrayList<JFieldVar>();
+        int size = CHUNK_OVERHEAD;
+        for (JFieldVar field : fields) {
+            final int fieldSize = estimateFieldCodeSize(model, method, field);
+            if (!chunk.isEmpty() && size + fieldSize > chunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<JFieldVar>();
+                size = CHUNK_OVERHEAD;
+            }
+            chunk.add(field);
+            size += fieldSize;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
         }
+        return chunks;
+    }
 
-        for (JFieldVar thisField : thisClassInstanceFields) {
-            final JInvocation equalsInvocation = objects.staticInvoke("equals");
-            equalsInvocation.arg(JExpr._this().ref(thisField));
-            equalsInvocation.arg(otherTypesafe.ref(thisField));
-            equalsBuilder = equalsBuilder.cand(equalsInvocation);
+    /**
+     * The generated methods that are split into helpers when they get too large.
+     */
+    protected enum GeneratedMethod {
+        EQUALS(40, "equals"), HASH_CODE(10, "hashCode"), TO_STRING(15, "toString"), APPEND_TO(20, "appendTo"),
+        FUNNEL(2, "funnel"), ACCEPT(2, "accept"), COMPARE(36, "compare"), CODEC(2, "readFields"), DIFF(2, "diff");
+
+        /** estimated bytecode size of the method without any field */
+        final int overhead;
+        /** the name of the method in the report */
+        final String methodName;
+
+        GeneratedMethod(int overhead, String methodName) {
+            this.overhead = overhead;
+            this.methodName = methodName;
         }
-        content._return(equalsBuilder);
     }
 
 
 
     /**
      * Takes a collection of fields, and returns a new collection containing only the instance
-     * (i.e. non-static) fields.
+     * (i.e. non-static) fields. Transient fields are not part of the bound state and are skipped as well.
      */
     protected Collection<JFieldVar> getInstanceFields(final Collection<JFieldVar> fields) {
         final List<JFieldVar> instanceFields = new ArrayList<JFieldVar>();
         for (final JFieldVar field : fields) {
-            if (!isStatic(field)) {
+            if (!isStatic(field) && !isTransient(field)) {
                 instanceFields.add(field);
             }
         }
@@ -232,14 +4379,32 @@ public class XjcGuavaPlugin extends Plugin {
     }
 
     protected List<JFieldVar> getSuperclassFields(final JDefinedClass implClass) {
-        final List<JFieldVar> fieldList = new LinkedList<JFieldVar>();
-
-        JClass superclass = implClass._extends();
-        while (superclass instanceof JDefinedClass) {
-            fieldList.addAll(0, ((JDefinedClass) superclass).fields().values());
-            superclass = superclass._extends();
+        List<JFieldVar> fieldList = superclassFields.get(implClass);
+        if (fieldList == null) {
+            final JClass superclass = implClass._extends();
+            if (superclass instanceof JDefinedClass) {
+                // reuses the memoized fields of the superclass instead of walking the whole chain again
+                fieldList = new ArrayList<JFieldVar>(getSuperclassFields((JDefinedClass) superclass));
+                fieldList.addAll(((JDefinedClass) superclass).fields().values());
+                fieldList = Collections.unmodifiableList(fieldList);
+            } else {
+                fieldList = Collections.emptyList();
+            }
+            superclassFields.put(implClass, fieldList);
         }
+        return fieldList;
+    }
 
+    /**
+     * Returns the instance fields of all generated superclasses, the topmost first. Computed once per class.
+     */
+    protected List<JFieldVar> getInheritedInstanceFields(final JDefinedClass implClass) {
+        List<JFieldVar> fieldList = inheritedInstanceFields.get(implClass);
+        if (fieldList == null) {
+            fieldList = Collections.unmodifiableList(
+                    new ArrayList<JFieldVar>(getInstanceFields(getSuperclassFields(implClass))));
+            inheritedInstanceFields.put(implClass, fieldList);
+        }
         return fieldList;
     }
 
@@ -247,4 +4412,8 @@ public class XjcGuavaPlugin extends Plugin {
         final JMods fieldMods = field.mods();
         return (fieldMods.getValue() & JMod.STATIC) > 0;
     }
+
+    protected boolean isTransient(final JFieldVar field) {
+        return (field.mods().getValue() & JMod.TRANSIENT) > 0;
+    }
 }
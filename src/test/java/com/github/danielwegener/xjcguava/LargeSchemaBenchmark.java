@@ -0,0 +1,117 @@
+package com.github.danielwegener.xjcguava;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import com.sun.codemodel.JCodeModel;
+import com.sun.tools.xjc.ErrorReceiver;
+import com.sun.tools.xjc.ModelLoader;
+import com.sun.tools.xjc.Options;
+import com.sun.tools.xjc.model.Model;
+import com.sun.tools.xjc.outline.Outline;
+import org.xml.sax.SAXParseException;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link XjcGuavaPlugin#run} on a synthetic schema with thousands of types in deep inheritance chains, to
+ * keep the plugin from slowing down builds of large enterprise schemas. Parsing the schema and writing the code is
+ * not measured.
+ *
+ * <p>Usage: {@code ./gradlew largeSchemaBenchmark -PbenchmarkArgs="chains depth iterations [plugin options]"},
+ * for example {@code -PbenchmarkArgs="100 50 5 -Xguava:copy"}.
+ */
+public final class LargeSchemaBenchmark {
+
+  private static final String[] TYPES = {"xs:string", "xs:int", "xs:dateTime", "xs:decimal"};
+
+  private LargeSchemaBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int chains = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    final int depth = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    final String[] pluginArgs = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
+
+    final File schema = File.createTempFile("large", ".xsd");
+    schema.deleteOnExit();
+    Files.write(largeSchema(chains, depth), schema, Charsets.UTF_8);
+
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      final Options options = new Options();
+      options.addGrammar(schema);
+      final ErrorReceiver errorReceiver = new FailingErrorReceiver();
+      final Model model = ModelLoader.load(options, new JCodeModel(), errorReceiver);
+      final Outline outline = model.generateCode(options, errorReceiver);
+
+      final XjcGuavaPlugin plugin = new XjcGuavaPlugin();
+      for (int i = 0; i < pluginArgs.length; i++) {
+        if (plugin.parseArgument(options, pluginArgs, i) == 0) {
+          throw new IllegalArgumentException("Unknown option " + pluginArgs[i]);
+        }
+      }
+      final long start = System.nanoTime();
+      plugin.run(outline, options, errorReceiver);
+      final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      System.out.println("iteration " + iteration + ": " + outline.getClasses().size() + " types in " + millis + " ms");
+    }
+  }
+
+  /**
+   * Returns a schema with {@code chains} inheritance chains of {@code depth} complex types, each declaring a field of
+   * every type in {@link #TYPES} and a list.
+   */
+  static String largeSchema(int chains, int depth) {
+    final StringBuilder schema = new StringBuilder()
+        .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+        .append("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns:tns=\"urn:large\"\n")
+        .append("           targetNamespace=\"urn:large\" elementFormDefault=\"qualified\">\n");
+    for (int chain = 0; chain < chains; chain++) {
+      for (int level = 0; level < depth; level++) {
+        final String name = String.format("c%04dd%04d", chain, level);
+        schema.append("  <xs:complexType name=\"").append(name).append("\">");
+        if (level > 0) {
+          schema.append("<xs:complexContent><xs:extension base=\"tns:")
+              .append(String.format("c%04dd%04d", chain, level - 1)).append("\">");
+        }
+        schema.append("<xs:sequence>");
+        for (int field = 0; field < TYPES.length; field++) {
+          schema.append("<xs:element name=\"").append(name).append('f').append(field)
+              .append("\" type=\"").append(TYPES[field]).append("\"/>");
+        }
+        schema.append("<xs:element name=\"").append(name)
+            .append("l\" type=\"xs:string\" maxOccurs=\"unbounded\"/>");
+        schema.append("</xs:sequence>");
+        if (level > 0) {
+          schema.append("</xs:extension></xs:complexContent>");
+        }
+        schema.append("</xs:complexType>\n");
+      }
+    }
+    return schema.append("</xs:schema>\n").toString();
+  }
+
+  private static final class FailingErrorReceiver extends ErrorReceiver {
+
+    @Override
+    public void error(SAXParseException exception) {
+      throw new IllegalStateException(exception);
+    }
+
+    @Override
+    public void fatalError(SAXParseException exception) {
+      throw new IllegalStateException(exception);
+    }
+
+    @Override
+    public void warning(SAXParseException exception) {
+    }
+
+    @Override
+    public void info(SAXParseException exception) {
+    }
+  }
+}
@@ -1,7 +1,11 @@
 package com.github.danielwegener.xjcguava;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
 
+import com.sun.codemodel.ClassType;
 import com.sun.codemodel.JCodeModel;
 import com.sun.codemodel.JDefinedClass;
 import com.sun.codemodel.JFieldVar;
@@ -10,12 +14,51 @@ import com.sun.codemodel.JMod;
 import com.sun.codemodel.JPackage;
 import com.sun.codemodel.JType;
 import com.sun.codemodel.writer.SingleStreamCodeWriter;
+import com.sun.tools.xjc.BadCommandLineException;
+import com.sun.tools.xjc.Driver;
+import com.sun.tools.xjc.ModelLoader;
+import com.sun.tools.xjc.Options;
+import com.sun.tools.xjc.Plugin;
+import com.sun.tools.xjc.model.Model;
+import com.sun.tools.xjc.outline.Outline;
+import com.sun.tools.xjc.util.ErrorReceiverFilter;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.namespace.QName;
+import javax.xml.datatype.XMLGregorianCalendar;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
@@ -50,11 +93,63 @@ public class XjcGuavaPluginTest {
       public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
         plugin.generateToStringMethod(model, clazz);
       }
+    },
+    FUNNEL {
+      @Override
+      public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
+        plugin.generateFunnel(model, clazz);
+      }
+    },
+    COPY {
+      @Override
+      public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
+        plugin.generateCopyMethods(model, clazz);
+      }
+    },
+    INTERN {
+      @Override
+      public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
+        plugin.generateInternMethod(model, clazz);
+      }
+    },
+    FREEZE {
+      @Override
+      public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
+        plugin.generateFreezeMethods(model, clazz);
+      }
+    },
+    ACCEPT {
+      @Override
+      public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
+        plugin.generateAcceptMethod(model, clazz);
+      }
+    },
+    COMPARATOR {
+      @Override
+      public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
+        plugin.generateComparator(model, clazz, Collections.<JFieldVar>emptyList());
+      }
+    },
+    EXTERNALIZABLE {
+      @Override
+      public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
+        plugin.generateBeanCodec(model, clazz._package());
+        plugin.generateExternalizableMethods(model, clazz);
+      }
+    },
+    DIFF {
+      @Override
+      public void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz) {
+        plugin.generateDiffMethod(model, clazz);
+      }
     };
 
     public abstract void apply(XjcGuavaPlugin plugin, JCodeModel model, JDefinedClass clazz);
   }
 
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private final XjcGuavaPlugin plugin = new XjcGuavaPlugin();
   private final JCodeModel aModel = new JCodeModel();
   private final JPackage aPackage;
@@ -103,6 +198,21 @@ public class XjcGuavaPluginTest {
     assertThat(plugin.getSuperclassFields(aClass)).containsOnly(aSuperClassField);
   }
 
+  @Test
+  public void testGetSuperclassFields_deepHierarchy() throws Exception {
+    final JDefinedClass aSubClass = aPackage._class("ASubClass");
+    aSubClass._extends(aClass);
+    aSubClass.field(JMod.PRIVATE, aModel.LONG, "subClassField");
+
+    assertThat(plugin.getSuperclassFields(aSubClass)).containsExactlyElementsOf(ImmutableList.<JFieldVar>builder()
+        .add(aSuperClassField).addAll(aClass.fields().values()).build());
+    // subclasses reuse the fields of their superclass
+    assertThat(plugin.getSuperclassFields(aSubClass)).isSameAs(plugin.getSuperclassFields(aSubClass));
+    assertThat(plugin.getInheritedInstanceFields(aSubClass))
+        .containsExactly(aSuperClassField, aField, aClass.fields().get("anotherField"));
+    assertThat(plugin.getInheritedInstanceFields(aSuperClass)).isEmpty();
+  }
+
   @Test
   public void testIsStatic() {
     assertThat(plugin.isStatic(aStaticField), equalTo(true));
@@ -134,9 +244,9 @@ public class XjcGuavaPluginTest {
                          + "            return false;\n"
                          + "        }\n"
                          + "        final AClass o = ((AClass) other);\n"
-                         + "        return ((Objects.equals(this.superClassField, o.superClassField)"
-                         + "&&Objects.equals(this.field, o.field))&&Objects.equals(this.anotherField, "
-                         + "o.anotherField));\n"
+                         + "        return (((Double.doubleToLongBits(this.superClassField) == "
+                         + "Double.doubleToLongBits(o.superClassField))&&(this.field == o.field))"
+                         + "&&(this.anotherField == o.anotherField));\n"
                          + "    }");
   }
 
@@ -161,7 +271,7 @@ public class XjcGuavaPluginTest {
                         + "            return false;\n"
                         + "        }\n"
                         + "        final WithEmptySuperClass o = ((WithEmptySuperClass) other);\n"
-                        + "        return Objects.equals(this.field, o.field);\n"
+                        + "        return (this.field == o.field);\n"
                         + "    }");
   }
 
@@ -182,7 +292,8 @@ public class XjcGuavaPluginTest {
                               + "            return false;\n"
                               + "        }\n"
                               + "        final ASuperClass o = ((ASuperClass) other);\n"
-                              + "        return Objects.equals(this.superClassField, o.superClassField);");
+                              + "        return (Double.doubleToLongBits(this.superClassField) == "
+                              + "Double.doubleToLongBits(o.superClassField));");
   }
 
   @Test
@@ -205,10 +316,33 @@ public class XjcGuavaPluginTest {
                         + "            return false;\n"
                         + "        }\n"
                         + "        final OnlySuperClass o = ((OnlySuperClass) other);\n"
-                        + "        return Objects.equals(this.superClassField, o.superClassField);\n"
+                        + "        return (Double.doubleToLongBits(this.superClassField) == "
+                        + "Double.doubleToLongBits(o.superClassField));\n"
                         + "    }");
   }
 
+  @Test
+  public void testEquals_orderedByComparisonCost() throws Exception {
+    JDefinedClass anEnum = aPackage._class(JMod.PUBLIC, "AnEnum", ClassType.ENUM);
+    JDefinedClass clazz = aPackage._class("CostOrdered");
+    clazz.field(JMod.PRIVATE, aModel.ref(List.class).narrow(String.class), "aList");
+    clazz.field(JMod.PRIVATE, aSuperClass, "aBean");
+    clazz.field(JMod.PRIVATE, aModel.ref(String.class), "aString");
+    clazz.field(JMod.PRIVATE, anEnum, "anEnum");
+    clazz.field(JMod.PRIVATE, aModel.ref(TimeUnit.class), "aJdkEnum");
+    clazz.field(JMod.PRIVATE, aModel.LONG, "aLong");
+    clazz.field(JMod.PRIVATE, aModel.FLOAT, "aFloat");
+
+    assertThat(definedClassToString(TestMode.EQUALS, clazz)).contains(
+        "        return (((((((this.aLong == o.aLong)"
+        + "&&(Float.floatToIntBits(this.aFloat) == Float.floatToIntBits(o.aFloat)))"
+        + "&&(this.anEnum == o.anEnum))"
+        + "&&(this.aJdkEnum == o.aJdkEnum))"
+        + "&&Objects.equals(this.aString, o.aString))"
+        + "&&Objects.equals(this.aBean, o.aBean))"
+        + "&&Objects.equals(this.aList, o.aList));\n");
+  }
+
   @Test
   public void testEquals_noFields() throws Exception {
     // false, false
@@ -264,11 +398,198 @@ public class XjcGuavaPluginTest {
     doTestHashCode_noFields(anEmptySuperClass);
   }
 
+  @Test
+  public void testHashCode_unrolled() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:unrolledHashCode"}, 0);
+    aClass.field(JMod.PRIVATE, aModel.LONG, "longField");
+    aClass.field(JMod.PRIVATE, aModel.ref(String.class), "stringField");
+
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass)).contains(
+        "    @Override\n"
+        + "    public int hashCode() {\n"
+        + "        int h = 1;\n"
+        + "        long bits;\n"
+        + "        bits = Double.doubleToLongBits(this.superClassField);\n"
+        + "        h = ((31 *h)+((int)(bits^(bits >>> 32))));\n"
+        + "        h = ((31 *h)+ this.field);\n"
+        + "        h = ((31 *h)+(this.anotherField? 1231 : 1237));\n"
+        + "        h = ((31 *h)+((int)(this.longField^(this.longField >>> 32))));\n"
+        + "        h = ((31 *h)+((this.stringField == null)? 0 :this.stringField.hashCode()));\n"
+        + "        return h;\n"
+        + "    }"
+    );
+  }
+
+  @Test
+  public void testHashCode_cached() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:cacheHashCode"}, 0);
+    final String generated = definedClassToString(TestMode.HASH_CODE, aClass);
+
+    assertThat(generated).contains(
+        "    @Override\n"
+        + "    public int hashCode() {\n"
+        + "        final int cached = this.cachedHashCode;\n"
+        + "        if (cached!= 0) {\n"
+        + "            return cached;\n"
+        + "        }\n"
+        + "        final int h = Objects.hash(this.superClassField, this.field, this.anotherField);\n"
+        + "        this.cachedHashCode = h;\n"
+        + "        return h;\n"
+        + "    }"
+    );
+    // declared once on the root of the hierarchy and reset by the setters
+    assertThat(aSuperClass.fields()).containsKey("cachedHashCode");
+    assertThat(aClass.fields()).doesNotContainKey("cachedHashCode");
+    assertThat(generated).contains(
+        "    public void setField(int field) {\n"
+        + "        field = field;\n"
+        + "        this.cachedHashCode = 0;\n"
+        + "    }");
+    assertThat(plugin.getInstanceFields(aSuperClass.fields().values())).containsOnly(aSuperClassField);
+  }
+
+  @Test
+  public void testEquals_cachedHashCode() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:cacheHashCode"}, 0);
+
+    assertThat(definedClassToString(TestMode.EQUALS, aClass)).contains(
+        "        final AClass o = ((AClass) other);\n"
+        + "        if (((this.cachedHashCode!= 0)&&(o.cachedHashCode!= 0))&&(this.cachedHashCode!= o.cachedHashCode)) {\n"
+        + "            return false;\n"
+        + "        }\n");
+  }
+
+  @Test
+  public void testHashCode_cachedMutableFields() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:cacheHashCode"}, 0);
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(String.class), "tags");
+    plugin.generateEqualsMethod(aModel, aClass);
+
+    // the list can be modified through its getter, the hash code of ASuperClass could be cached still
+    assertThat(plugin.isHashCodeCached(aModel, aClass)).isFalse();
+    assertThat(plugin.isHashCodeCached(aModel, aSuperClass)).isFalse();
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass))
+        .contains("        return Objects.hash(superClassField, field, anotherField, tags);\n")
+        .doesNotContain("cachedHashCode");
+  }
+
+  @Test
+  public void testRun_cachedHashCodeOfMutableBeans() throws Exception {
+    final File mutableXsd = new File(getClass().getResource("/mutable.xsd").toURI());
+    final File targetDir = temporaryFolder.getRoot();
+    // not quiet, the beans that are not cached are reported as warnings
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final PrintStream printStream = new PrintStream(output, true, "UTF-8");
+    assertEquals(0, Driver.run(new String[]{"-extension", "-Xguava", "-Xguava:cacheHashCode", "-d",
+        targetDir.getPath(), mutableXsd.getPath()}, printStream, printStream));
+    assertThat(output.toString("UTF-8"))
+        .contains("The hash code of Tagged is not cached, its field tag can change without calling a setter (with "
+            + "-Xguava:freeze frozen beans with lists and nested beans cache it)")
+        .contains("The hash code of Located is not cached, its field point can change")
+        .doesNotContain("The hash code of Point");
+    final File packageDir = new File(targetDir, "com/github/danielwegener/xjcguava/mutable");
+    assertThat(Files.toString(new File(packageDir, "Point.java"), Charsets.UTF_8))
+        .contains("        this.cachedHashCode = h;\n");
+    // the tags and the point can be modified without calling a setter of the bean
+    assertThat(Files.toString(new File(packageDir, "Tagged.java"), Charsets.UTF_8)).doesNotContain("cachedHashCode");
+    assertThat(Files.toString(new File(packageDir, "Located.java"), Charsets.UTF_8)).doesNotContain("cachedHashCode");
+
+    final Class<?> tagged = compile(targetDir).loadClass("com.github.danielwegener.xjcguava.mutable.Tagged");
+    final Object modified = tagged.newInstance();
+    getList(modified, "getTag").add("a");
+    modified.hashCode();
+    getList(modified, "getTag").add("b");
+    final Object other = tagged.newInstance();
+    getList(other, "getTag").addAll(Arrays.asList("a", "b"));
+    other.hashCode();
+    assertThat(modified).isEqualTo(other);
+    assertThat(modified.hashCode()).isEqualTo(other.hashCode());
+  }
+
+  @Test
+  public void testDelegateToSuper() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:delegateToSuper"}, 0);
+    JDefinedClass noOwnFields = aPackage._class("NoOwnFields");
+    noOwnFields._extends(aSuperClass);
+    aClass.field(JMod.PRIVATE, aModel.ref(String.class), "aString");
+    plugin.generateHashCodeMethod(aModel, noOwnFields);
+    plugin.generateEqualsMethod(aModel, noOwnFields);
+    plugin.generateHashCodeMethod(aModel, aClass);
+
+    assertThat(definedClassToString(TestMode.EQUALS, aClass))
+        .contains("        return ((((this.field == o.field)&&(this.anotherField == o.anotherField))"
+                  + "&&super.equals(other))&&Objects.equals(this.aString, o.aString));\n")
+        .contains("        return Objects.hash(super.hashCode(), field, anotherField, aString);\n");
+    // inherits both methods from its superclass
+    assertThat(noOwnFields.methods()).isEmpty();
+  }
+
+  @Test
+  public void testDelegateToSuper_cachedHashCode() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:delegateToSuper"}, 0);
+    plugin.parseArgument(null, new String[]{"-Xguava:cacheHashCode"}, 0);
+    plugin.generateHashCodeMethod(aModel, aSuperClass);
+
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass))
+        .contains("    @Override\n"
+                  + "    public int hashCode() {\n"
+                  + "        final int cached = this.cachedHashCode;\n"
+                  + "        if (cached!= 0) {\n"
+                  + "            return cached;\n"
+                  + "        }\n"
+                  + "        final int h = computeHashCode();\n"
+                  + "        this.cachedHashCode = h;\n"
+                  + "        return h;\n"
+                  + "    }\n"
+                  + "\n"
+                  + "    protected int computeHashCode() {\n"
+                  + "        return Objects.hash(superClassField);\n"
+                  + "    }")
+        .contains("    @Override\n"
+                  + "    protected int computeHashCode() {\n"
+                  + "        return Objects.hash(super.computeHashCode(), field, anotherField);\n"
+                  + "    }");
+    assertThat(aClass.getMethod("hashCode", new JType[0])).isNull();
+  }
+
   @Test
   public void testGetUsage() throws Exception {
     assertThat(plugin.getUsage()).isEqualTo(
         "  -Xguava\t:  enable generation of guava toString, equals and hashCode methods\n"
-        + "    --Xguava:skipToString\t:  dont wrap collection parameters with Collections.unmodifiable...");
+        + "    --Xguava:skipToString\t:  dont wrap collection parameters with Collections.unmodifiable...\n"
+        + "    --Xguava:unrolledHashCode\t:  generate an allocation free hashCode instead of Objects.hash(...)\n"
+        + "    --Xguava:cacheHashCode\t:  cache the hashCode of beans that hash immutable values only (or frozen "
+        + "ones, see -Xguava:freeze) in a transient field that is reset by the setters, and warn about the beans "
+        + "that hash calendars, arrays, JAXBElements, lists or nested beans and are not cached\n"
+        + "    --Xguava:appendToString\t:  generate appendTo(StringBuilder) and let toString delegate to it\n"
+        + "    --Xguava:toStringMaxElements=N\t:  print at most N elements of each list in toString (implies "
+        + "-Xguava:appendToString)\n"
+        + "    --Xguava:toStringMaxDepth=N\t:  print nested beans up to depth N in toString (implies "
+        + "-Xguava:appendToString)\n"
+        + "    --Xguava:delegateToSuper\t:  let subclasses call super.equals/hashCode instead of repeating the "
+        + "inherited fields\n"
+        + "    --Xguava:maxMethodSize=N\t:  split generated methods estimated larger than N bytes of bytecode into "
+        + "helpers (default 8000)\n"
+        + "    --Xguava:maxArrayHashLength=N\t:  hash primitive arrays longer than N by their length and their first "
+        + "and last N/2 elements\n"
+        + "    --Xguava:funnel\t:  generate a static Funnel FUNNEL writing the fields into a PrimitiveSink\n"
+        + "    --Xguava:copy\t:  generate a deep copy constructor and copy()\n"
+        + "    --Xguava:intern\t:  generate intern() returning a canonical instance from a weak Interner\n"
+        + "    --Xguava:internFields\t:  let intern() intern nested beans and strings first (implies -Xguava:intern)\n"
+        + "    --Xguava:freeze\t:  generate freeze(), which makes lists immutable and setters fail, and a Builder\n"
+        + "    --Xguava:fieldVisitor\t:  generate accept(FieldVisitor) with a typed callback per field\n"
+        + "    --Xguava:comparator\t:  generate a static COMPARATOR consistent with equals for types whose fields "
+        + "can all be ordered\n"
+        + "    --Xguava:jdkOnly\t:  generate code depending on the JDK only, without Guava and JSR-305 annotations "
+        + "(excludes -Xguava:funnel, -Xguava:intern and -Xguava:freeze)\n"
+        + "    --Xguava:externalizable\t:  implement Externalizable with a compact binary encoding checked by a "
+        + "schema hash\n"
+        + "    --Xguava:diff\t:  generate diff(Object, DiffSink) reporting the paths of the fields that differ\n"
+        + "    --Xguava:instrument\t:  count the calls of equals, hashCode and toString in a BeanStats registry "
+        + "(needs Java 8)\n"
+        + "    --Xguava:report\t:  write the fields, generated methods, their estimated sizes and the time per phase of "
+        + "every class into xjc-guava-report.json\n"
+        + "    --Xguava:nullAsEmpty\t:  let equals, hashCode and toString treat a null list like an empty one");
   }
 
   @Test
@@ -295,6 +616,1173 @@ public class XjcGuavaPluginTest {
     doTestParseArgument(1, 0, "-Xguava:skipToString", "-Xignored:parameter");
   }
 
+  @Test
+  public void testParseArgument_unrolledHashCode() throws Exception {
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:unrolledHashCode"}, 0));
+    assertThat(plugin.isUnrolledHashCodeEnabled()).isTrue();
+    assertThat(plugin.isSkipToStringEnabled()).isFalse();
+  }
+
+  @Test
+  public void testParseArgument_funnel() throws Exception {
+    assertThat(plugin.isFunnelEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:funnel"}, 0));
+    assertThat(plugin.isFunnelEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_copy() throws Exception {
+    assertThat(plugin.isCopyEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:copy"}, 0));
+    assertThat(plugin.isCopyEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_internFields() throws Exception {
+    assertThat(plugin.isInternEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:internFields"}, 0));
+    assertThat(plugin.isInternEnabled()).isTrue();
+    assertThat(plugin.isInternFieldsEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_freeze() throws Exception {
+    assertThat(plugin.isFreezeEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:freeze"}, 0));
+    assertThat(plugin.isFreezeEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_fieldVisitor() throws Exception {
+    assertThat(plugin.isFieldVisitorEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:fieldVisitor"}, 0));
+    assertThat(plugin.isFieldVisitorEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_comparator() throws Exception {
+    assertThat(plugin.isComparatorEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:comparator"}, 0));
+    assertThat(plugin.isComparatorEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_jdkOnly() throws Exception {
+    assertThat(plugin.isJdkOnlyEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:jdkOnly"}, 0));
+    assertThat(plugin.isJdkOnlyEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_externalizable() throws Exception {
+    assertThat(plugin.isExternalizableEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:externalizable"}, 0));
+    assertThat(plugin.isExternalizableEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_diff() throws Exception {
+    assertThat(plugin.isDiffEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:diff"}, 0));
+    assertThat(plugin.isDiffEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_instrument() throws Exception {
+    assertThat(plugin.isInstrumentEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:instrument"}, 0));
+    assertThat(plugin.isInstrumentEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_report() throws Exception {
+    assertThat(plugin.isReportEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:report"}, 0));
+    assertThat(plugin.isReportEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_nullAsEmpty() throws Exception {
+    assertThat(plugin.isNullAsEmptyEnabled()).isFalse();
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:nullAsEmpty"}, 0));
+    assertThat(plugin.isNullAsEmptyEnabled()).isTrue();
+  }
+
+  @Test
+  public void testParseArgument_jdkOnlyWithGuavaFeature() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:freeze"}, 0);
+    try {
+      plugin.parseArgument(null, new String[]{"-Xguava:jdkOnly"}, 0);
+      failBecauseExceptionWasNotThrown(BadCommandLineException.class);
+    } catch (BadCommandLineException e) {
+      assertThat(e).hasMessage("-Xguava:jdkOnly cannot be combined with -Xguava:funnel, -Xguava:intern or "
+          + "-Xguava:freeze, they generate Guava types");
+    }
+    final XjcGuavaPlugin jdkOnlyPlugin = new XjcGuavaPlugin();
+    jdkOnlyPlugin.parseArgument(null, new String[]{"-Xguava:jdkOnly"}, 0);
+    try {
+      jdkOnlyPlugin.parseArgument(null, new String[]{"-Xguava:funnel"}, 0);
+      failBecauseExceptionWasNotThrown(BadCommandLineException.class);
+    } catch (BadCommandLineException e) {
+      assertThat(e.getMessage()).startsWith("-Xguava:jdkOnly cannot be combined with");
+    }
+  }
+
+  @Test
+  public void testParseArgument_maxMethodSize() throws Exception {
+    assertThat(plugin.getMaxMethodSize()).isEqualTo(XjcGuavaPlugin.DEFAULT_MAX_METHOD_SIZE);
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:maxMethodSize=300"}, 0));
+    assertThat(plugin.getMaxMethodSize()).isEqualTo(300);
+    try {
+      plugin.parseArgument(null, new String[]{"-Xguava:maxMethodSize=big"}, 0);
+      failBecauseExceptionWasNotThrown(BadCommandLineException.class);
+    } catch (BadCommandLineException e) {
+      assertThat(e.getMessage()).isEqualTo("-Xguava:maxMethodSize expects a non-negative number but was: big");
+    }
+  }
+
+  @Test
+  public void testEquals_split() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:maxMethodSize=0"}, 0);
+    final String generated = definedClassToString(TestMode.EQUALS, aClass);
+    assertThat(generated).contains(
+        "        final AClass o = ((AClass) other);\n"
+        + "        return ((equals$0(o)&&equals$1(o))&&equals$2(o));\n"
+        + "    }\n"
+        + "\n"
+        + "    private boolean equals$0(final AClass o) {\n"
+        + "        return (Double.doubleToLongBits(this.superClassField) == Double.doubleToLongBits(o.superClassField));\n"
+        + "    }\n"
+        + "\n"
+        + "    private boolean equals$1(final AClass o) {\n"
+        + "        return (this.field == o.field);\n"
+        + "    }\n");
+  }
+
+  @Test
+  public void testHashCode_split() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:maxMethodSize=0"}, 0);
+    final String generated = definedClassToString(TestMode.HASH_CODE, aClass);
+    assertThat(generated).contains(
+        "    public int hashCode() {\n"
+        + "        int h = 1;\n"
+        + "        h = hashCode$0(h);\n"
+        + "        h = hashCode$1(h);\n"
+        + "        h = hashCode$2(h);\n"
+        + "        return h;\n"
+        + "    }\n");
+    assertThat(generated).contains(
+        "    private int hashCode$1(int h) {\n"
+        + "        h = ((31 *h)+ this.field);\n"
+        + "        return h;\n"
+        + "    }\n");
+  }
+
+  @Test
+  public void testToString_split() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:maxMethodSize=0"}, 0);
+    final String generated = definedClassToString(TestMode.TO_STRING, aClass);
+    assertThat(generated).contains(
+        "        final ToStringHelper helper = MoreObjects.toStringHelper(this);\n"
+        + "        toString$0(helper);\n"
+        + "        toString$1(helper);\n"
+        + "        toString$2(helper);\n"
+        + "        return helper.toString();\n"
+        + "    }\n"
+        + "\n"
+        + "    private void toString$0(final ToStringHelper helper) {\n"
+        + "        helper.add(\"superClassField\", this.superClassField);\n"
+        + "    }\n");
+  }
+
+  @Test
+  public void testRun_wideType() throws Exception {
+    final File wideXsd = new File(getClass().getResource("/wide.xsd").toURI());
+    final File targetDir = temporaryFolder.getRoot();
+    assertEquals(0, Driver.run(new String[]{"-quiet", "-extension", "-Xguava", "-d", targetDir.getPath(),
+        wideXsd.getPath()}, System.out, System.out));
+    final String generated = Files.toString(
+        new File(targetDir, "com/github/danielwegener/xjcguava/wide/Wide.java"), Charsets.UTF_8);
+    // 640 fields exceed the HugeMethodLimit in equals and hashCode but not in toString
+    assertThat(generated)
+        .contains("    private boolean equals$0(final Wide o) {\n")
+        .contains("        h = hashCode$0(h);\n")
+        .doesNotContain("toString$0");
+  }
+
+  @Test
+  public void testRun_report() throws Exception {
+    final File wideXsd = new File(getClass().getResource("/wide.xsd").toURI());
+    final File targetDir = temporaryFolder.getRoot();
+    assertEquals(0, Driver.run(new String[]{"-quiet", "-extension", "-Xguava", "-Xguava:report", "-d",
+        targetDir.getPath(), wideXsd.getPath()}, System.out, System.out));
+    final String report = Files.toString(new File(targetDir, "xjc-guava-report.json"), Charsets.UTF_8);
+    assertThat(report)
+        .contains("  \"maxMethodSize\": 8000,\n  \"inlineLimit\": 325,\n  \"hugeMethodLimit\": 8000,\n")
+        .contains("  \"phaseMicros\": {\"prepare\": ")
+        .contains(", \"comparator\": ")
+        .contains("    {\"name\": \"com.github.danielwegener.xjcguava.wide.Wide\", \"fields\": 640, "
+            + "\"inheritedFields\": 0, \"methods\": [\"toString\", \"hashCode\", \"hashCode$0\", ")
+        .contains("      \"estimates\": [{\"method\": \"equals\", \"estimatedBytes\": 9096, \"split\": true, "
+            + "\"inlinable\": false, \"huge\": true}, {\"method\": \"hashCode\", \"estimatedBytes\": 12746, "
+            + "\"split\": true, \"inlinable\": false, \"huge\": true}, {\"method\": \"toString\", "
+            + "\"estimatedBytes\": 7567, \"split\": false, \"inlinable\": false, \"huge\": false}]}");
+  }
+
+  @Test
+  public void testCalendar() throws Exception {
+    aClass.field(JMod.PRIVATE, XMLGregorianCalendar.class, "date");
+
+    final String equals = definedClassToString(TestMode.EQUALS, aClass);
+    assertThat(equals)
+        .contains("&&calendarEquals(this.date, o.date));\n")
+        .contains("    private static boolean calendarEquals(final XMLGregorianCalendar a, final XMLGregorianCalendar b) {\n")
+        .contains("        if (a.getTimezone()!= b.getTimezone()) {\n"
+            + "            return a.equals(b);\n"
+            + "        }\n");
+    final String hashCode = definedClassToString(TestMode.HASH_CODE, aClass);
+    assertThat(hashCode)
+        .contains("return Objects.hash(superClassField, field, anotherField, calendarHashCode(date));")
+        .contains("    private static int calendarHashCode(final XMLGregorianCalendar c) {\n");
+  }
+
+  @Test
+  public void testArrays() throws Exception {
+    aClass.field(JMod.PRIVATE, byte[].class, "payload");
+    aClass.field(JMod.PRIVATE, String[][].class, "table");
+
+    assertThat(definedClassToString(TestMode.EQUALS, aClass))
+        .contains("&&Arrays.equals(this.payload, o.payload))&&Arrays.deepEquals(this.table, o.table));");
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass))
+        .contains("Objects.hash(superClassField, field, anotherField, Arrays.hashCode(payload), "
+            + "Arrays.deepHashCode(table));");
+  }
+
+  @Test
+  public void testArrays_boundedHashCode() throws Exception {
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:maxArrayHashLength=64"}, 0));
+    assertThat(plugin.getMaxArrayHashLength()).isEqualTo(64);
+    aClass.field(JMod.PRIVATE, byte[].class, "payload");
+
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass))
+        .contains("Objects.hash(superClassField, field, anotherField, arrayHashCode(payload));")
+        .contains("    private static int arrayHashCode(final byte[] a) {\n"
+            + "        if ((a == null)||(a.length<= 64)) {\n"
+            + "            return Arrays.hashCode(a);\n"
+            + "        }\n"
+            + "        int h = (31 + a.length);\n"
+            + "        for (int i = 0; (i< 64); i ++) {\n"
+            + "            h = ((31 *h)+ a[((i< 32)?i:((a.length- 64)+ i))]);\n"
+            + "        }\n"
+            + "        return h;\n"
+            + "    }\n");
+  }
+
+  @Test
+  public void testJaxbElements() throws Exception {
+    aClass.field(JMod.PRIVATE, aModel.ref(JAXBElement.class).narrow(String.class), "note");
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(Serializable.class), "content");
+
+    assertThat(definedClassToString(TestMode.EQUALS, aClass))
+        .contains("&&jaxbElementEquals(this.note, o.note))&&jaxbElementListEquals(this.content, o.content));")
+        .contains("        if ((((a.getDeclaredType()!= b.getDeclaredType())||(a.getScope()!= b.getScope()))"
+            + "||(a.isNil()!= b.isNil()))||(!a.getName().equals(b.getName()))) {\n"
+            + "            return false;\n"
+            + "        }\n")
+        .contains("    private static boolean jaxbElementListEquals(final List<?> a, final List<?> b) {\n");
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass))
+        .contains("Objects.hash(superClassField, field, anotherField, jaxbElementHashCode(note), "
+            + "jaxbElementListHashCode(content));")
+        .contains("            h = ((31 *h)+((e instanceof JAXBElement)?jaxbElementHashCode(((JAXBElement<?> ) e))"
+            + ":Objects.hashCode(e)));\n");
+  }
+
+  @Test
+  public void testNullAsEmpty() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:nullAsEmpty"}, 0);
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(String.class), "tags");
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(Serializable.class), "content");
+
+    assertThat(definedClassToString(TestMode.EQUALS, aClass))
+        .contains("&&listEquals(this.tags, o.tags))&&jaxbElementListEquals(this.content, o.content));")
+        .contains("    private static boolean listEquals(final List<?> a, final List<?> b) {\n"
+            + "        if (a == b) {\n"
+            + "            return true;\n"
+            + "        }\n"
+            + "        final int size = ((a == null)? 0 :a.size());\n"
+            + "        if (size!= ((b == null)? 0 :b.size())) {\n"
+            + "            return false;\n"
+            + "        }\n"
+            + "        for (int i = 0; (i<size); i ++) {\n"
+            + "            final Object aElement = a.get(i);\n"
+            + "            final Object bElement = b.get(i);\n"
+            + "            if (!Objects.equals(aElement, bElement)) {\n"
+            + "                return false;\n"
+            + "            }\n"
+            + "        }\n"
+            + "        return true;\n"
+            + "    }")
+        .contains("    private static boolean jaxbElementListEquals(final List<?> a, final List<?> b) {\n"
+            + "        if (a == b) {\n"
+            + "            return true;\n"
+            + "        }\n"
+            + "        final int size = ((a == null)? 0 :a.size());\n");
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass))
+        .contains("Objects.hash(superClassField, field, anotherField, listHashCode(tags), "
+            + "jaxbElementListHashCode(content));")
+        .contains("    private static int listHashCode(final List<?> list) {\n"
+            + "        if (list == null) {\n"
+            + "            return  1;\n"
+            + "        }\n");
+    assertThat(definedClassToString(TestMode.TO_STRING, aClass))
+        .contains(".add(\"tags\", ((tags == null)?Collections.emptyList():tags))");
+  }
+
+  @Test
+  public void testNullAsEmpty_appendTo() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:nullAsEmpty"}, 0);
+    plugin.parseArgument(null, new String[]{"-Xguava:appendToString"}, 0);
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(String.class), "tags");
+    plugin.generateAppendToMethod(aModel, aClass);
+
+    assertThat(definedClassToString(TestMode.TO_STRING, aClass))
+        .contains("        sb.append(\", tags=\").append(((this.tags == null)?\"[]\":this.tags));\n");
+  }
+
+  @Test
+  public void testFunnel() throws Exception {
+    plugin.generateFunnel(aModel, aSuperClass);
+    aClass.field(JMod.PRIVATE, String.class, "name");
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(aSuperClass), "children");
+    aClass.field(JMod.PRIVATE, XMLGregorianCalendar.class, "lastModified");
+
+    assertThat(definedClassToString(TestMode.FUNNEL, aClass)).contains(
+        "    public final static Funnel<AClass> FUNNEL = AClassFunnel.INSTANCE;\n")
+        .contains(
+        "    public void funnelTo(final PrimitiveSink into) {\n"
+            + "        into.putLong(Double.doubleToLongBits(this.superClassField));\n"
+            + "        into.putInt(this.field);\n"
+            + "        into.putBoolean(this.anotherField);\n"
+            + "        if (this.name == null) {\n"
+            + "            into.putBoolean(false);\n"
+            + "        } else {\n"
+            + "            into.putBoolean(true);\n"
+            + "            into.putInt(this.name.length()).putUnencodedChars(this.name);\n"
+            + "        }\n"
+            + "        if (this.children == null) {\n"
+            + "            into.putBoolean(false);\n"
+            + "        } else {\n"
+            + "            into.putBoolean(true);\n"
+            + "            into.putInt(this.children.size());\n"
+            + "            for (ASuperClass e: this.children) {\n"
+            + "                if (e == null) {\n"
+            + "                    into.putBoolean(false);\n"
+            + "                } else {\n"
+            + "                    into.putBoolean(true);\n"
+            + "                    e.funnelTo(into);\n"
+            + "                }\n"
+            + "            }\n"
+            + "        }\n"
+            + "        into.putInt(calendarHashCode(this.lastModified));\n"
+            + "    }\n")
+        .contains(
+        "    static enum AClassFunnel\n"
+            + "        implements Funnel<AClass>\n"
+            + "    {\n"
+            + "\n"
+            + "        INSTANCE;\n"
+            + "\n"
+            + "        @Override\n"
+            + "        public void funnel(final AClass from, final PrimitiveSink into) {\n"
+            + "            from.funnelTo(into);\n"
+            + "        }\n");
+  }
+
+  @Test
+  public void testFunnel_delegateToSuper() throws Exception {
+    plugin.parseArgument(null, new String[]{XjcGuavaPlugin.DELEGATE_TO_SUPER_PARAM}, 0);
+    plugin.generateFunnel(aModel, aSuperClass);
+
+    assertThat(definedClassToString(TestMode.FUNNEL, aClass)).contains(
+        "    @Override\n"
+            + "    public void funnelTo(final PrimitiveSink into) {\n"
+            + "        super.funnelTo(into);\n"
+            + "        into.putInt(this.field);\n"
+            + "        into.putBoolean(this.anotherField);\n"
+            + "    }\n");
+  }
+
+  @Test
+  public void testCopy() throws Exception {
+    aClass.field(JMod.PRIVATE, String.class, "name");
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(aClass), "children");
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(String.class), "tags");
+    aClass.field(JMod.PRIVATE, XMLGregorianCalendar.class, "lastModified");
+    aClass.field(JMod.PRIVATE, aModel.BYTE.array(), "payload");
+
+    final String generated = definedClassToString(TestMode.COPY, aClass);
+    assertThat(generated).contains(
+        "    public AClass() {\n"
+            + "    }\n")
+        .contains(
+        "    public AClass(final AClass other) {\n"
+            + "        this.superClassField = other.superClassField;\n"
+            + "        this.field = other.field;\n"
+            + "        this.anotherField = other.anotherField;\n"
+            + "        this.name = other.name;\n"
+            + "        if (other.children!= null) {\n"
+            + "            this.children = new ArrayList<AClass>(other.children.size());\n"
+            + "            for (AClass e: other.children) {\n"
+            + "                this.children.add(((e == null)?null:e.copy()));\n"
+            + "            }\n"
+            + "        }\n"
+            + "        if (other.tags!= null) {\n"
+            + "            this.tags = new ArrayList<String>(other.tags);\n"
+            + "        }\n"
+            + "        this.lastModified = ((other.lastModified == null)?null:((XMLGregorianCalendar) "
+            + "other.lastModified.clone()));\n"
+            + "        this.payload = ((other.payload == null)?null:other.payload.clone());\n"
+            + "    }\n")
+        .contains(
+        "    public AClass copy() {\n"
+            + "        return new AClass(this);\n"
+            + "    }\n");
+    assertThat(generated).doesNotContain("staticField = ");
+  }
+
+  @Test
+  public void testCopy_superClass() throws Exception {
+    plugin.generateCopyMethods(aModel, aSuperClass);
+
+    assertThat(definedClassToString(TestMode.COPY, aClass)).contains(
+        "    public AClass(final AClass other) {\n"
+            + "        super(other);\n"
+            + "        this.field = other.field;\n"
+            + "        this.anotherField = other.anotherField;\n"
+            + "    }\n")
+        .contains(
+        "    @Override\n"
+            + "    public AClass copy() {\n");
+  }
+
+  @Test
+  public void testRun_copyMixedContent() throws Exception {
+    final File mutableXsd = new File(getClass().getResource("/mutable.xsd").toURI());
+    final File targetDir = temporaryFolder.getRoot();
+    assertEquals(0, Driver.run(new String[]{"-quiet", "-extension", "-Xguava", "-Xguava:copy", "-d",
+        targetDir.getPath(), mutableXsd.getPath()}, System.out, System.out));
+    final File packageDir = new File(targetDir, "com/github/danielwegener/xjcguava/mutable");
+    assertThat(Files.toString(new File(packageDir, "Note.java"), Charsets.UTF_8))
+        .contains("            return copyJaxbElement(element, copyMixedValue(element.getValue()));\n")
+        .contains("        if (value instanceof Label) {\n"
+            + "            return ((Label) value).copy();\n"
+            + "        }\n");
+    assertThat(Files.toString(new File(packageDir, "Envelope.java"), Charsets.UTF_8))
+        .contains("copyMixedValue(e)");
+
+    // the beans in the mixed content are copied, not shared with the original
+    final ClassLoader classLoader = compile(targetDir);
+    final Class<?> noteClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Note");
+    final Class<?> labelClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Label");
+    final Class<?> pointClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Point");
+    final Object label = labelClass.newInstance();
+    labelClass.getMethod("setText", String.class).invoke(label, "original");
+    final Object point = pointClass.newInstance();
+    final Object note = noteClass.newInstance();
+    getList(note, "getContent").addAll(Arrays.asList("text", label, new JAXBElement<Object>(
+        new QName("http://danielwegener.github.com/xjcguava/mutable", "point"), Object.class, noteClass, point)));
+
+    final List<Object> copied = getList(noteClass.getMethod("copy").invoke(note), "getContent");
+    assertThat(copied.get(0)).isEqualTo("text");
+    assertThat(copied.get(1)).isEqualTo(label).isNotSameAs(label);
+    labelClass.getMethod("setText", String.class).invoke(copied.get(1), "changed");
+    assertThat(labelClass.getMethod("getText").invoke(label)).isEqualTo("original");
+    assertThat(((JAXBElement<?>) copied.get(2)).getValue()).isEqualTo(point).isNotSameAs(point);
+  }
+
+  @Test
+  public void testIntern() throws Exception {
+    aClass.field(JMod.PRIVATE, String.class, "name");
+
+    assertThat(definedClassToString(TestMode.INTERN, aClass)).contains(
+        "    private final static Interner<AClass> INTERNER = Interners.newWeakInterner();\n")
+        .contains(
+        "    public AClass intern() {\n"
+            + "        return INTERNER.intern(this);\n"
+            + "    }\n");
+  }
+
+  @Test
+  public void testIntern_fields() throws Exception {
+    plugin.parseArgument(null, new String[]{XjcGuavaPlugin.INTERN_FIELDS_PARAM}, 0);
+    plugin.generateInternMethod(aModel, aSuperClass);
+    aClass.field(JMod.PRIVATE, String.class, "name");
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(aSuperClass), "children");
+
+    assertThat(definedClassToString(TestMode.INTERN, aClass)).contains(
+        "    @Override\n"
+            + "    public AClass intern() {\n"
+            + "        if (this.name!= null) {\n"
+            + "            this.name = this.name.intern();\n"
+            + "        }\n"
+            + "        if (this.children!= null) {\n"
+            + "            for (int i = 0; (i<this.children.size()); i ++) {\n"
+            + "                final ASuperClass e = this.children.get(i);\n"
+            + "                if (e!= null) {\n"
+            + "                    this.children.set(i, e.intern());\n"
+            + "                }\n"
+            + "            }\n"
+            + "        }\n"
+            + "        return INTERNER.intern(this);\n"
+            + "    }\n");
+  }
+
+  @Test
+  public void testFreeze() throws Exception {
+    plugin.generateFreezeMethods(aModel, aSuperClass);
+    final JFieldVar children = aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(aSuperClass), "children");
+    aClass.method(JMod.PUBLIC, children.type(), "getChildren").body()._return(children);
+
+    final String generated = definedClassToString(TestMode.FREEZE, aClass);
+    assertThat(generated).contains(
+        "    @Override\n"
+            + "    protected void freezeFields() {\n"
+            + "        super.freezeFields();\n"
+            + "        if (this.children!= null) {\n"
+            + "            this.children = (this.children.contains(null)?Collections.unmodifiableList(new ArrayList<ASuperClass>"
+            + "(this.children)):ImmutableList.copyOf(this.children));\n"
+            + "            for (ASuperClass e: this.children) {\n"
+            + "                if (e!= null) {\n"
+            + "                    e.freeze();\n"
+            + "                }\n"
+            + "            }\n"
+            + "        }\n"
+            + "    }\n")
+        .contains(
+        "    @Override\n"
+            + "    public AClass freeze() {\n"
+            + "        super.freeze();\n"
+            + "        return this;\n"
+            + "    }\n")
+        .contains(
+        "    public void setField(int field) {\n"
+            + "        if (this.frozen) {\n"
+            + "            throw new IllegalStateException(\"The bean is frozen\");\n"
+            + "        }\n"
+            + "        field = field;\n")
+        .contains(
+        "    public List<ASuperClass> getChildren() {\n"
+            + "        if ((this.children == null)&&this.frozen) {\n"
+            + "            return ImmutableList.of();\n"
+            + "        }\n")
+        .contains(
+        "        public test.AClass.Builder withSuperClassField(final double superClassField) {\n"
+            + "            if (this.bean.frozen) {\n"
+            + "                throw new IllegalStateException(\"The bean has been built already\");\n"
+            + "            }\n"
+            + "            this.bean.superClassField = superClassField;\n"
+            + "            return this;\n"
+            + "        }\n")
+        .contains("            this.bean.children = (children.contains(null)?Collections.unmodifiableList(new "
+            + "ArrayList<ASuperClass>(children)):ImmutableList.copyOf(children));\n")
+        .contains(
+        "        public AClass build() {\n"
+            + "            return this.bean.freeze();\n"
+            + "        }\n");
+    assertThat(generated).contains(
+        "    protected transient boolean frozen;\n")
+        .contains(
+        "    public ASuperClass freeze() {\n"
+            + "        if (!this.frozen) {\n"
+            + "            this.frozen = true;\n"
+            + "            freezeFields();\n"
+            + "        }\n"
+            + "        return this;\n"
+            + "    }\n");
+  }
+
+  @Test
+  public void testFreeze_nullElements() throws Exception {
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(Integer.class), "lineNumbers");
+
+    // ImmutableList rejects the nulls of nillable elements
+    assertThat(definedClassToString(TestMode.FREEZE, aClass))
+        .contains("            this.lineNumbers = (this.lineNumbers.contains(null)?Collections.unmodifiableList(new "
+            + "ArrayList<Integer>(this.lineNumbers)):ImmutableList.copyOf(this.lineNumbers));\n")
+        .contains("            this.bean.lineNumbers = (lineNumbers.contains(null)?Collections.unmodifiableList(new "
+            + "ArrayList<Integer>(lineNumbers)):ImmutableList.copyOf(lineNumbers));\n");
+  }
+
+  @Test
+  public void testFreeze_cachedHashCode() throws Exception {
+    plugin.parseArgument(null, new String[]{XjcGuavaPlugin.CACHE_HASHCODE_PARAM}, 0);
+    plugin.parseArgument(null, new String[]{XjcGuavaPlugin.FREEZE_PARAM}, 0);
+
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(String.class), "tags");
+    plugin.generateEqualsMethod(aModel, aClass);
+
+    // freeze() makes the list immutable, only frozen beans cache their hash code
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass)).contains(
+        "        if (this.frozen) {\n"
+            + "            this.cachedHashCode = h;\n"
+            + "        }\n"
+            + "        return h;\n")
+        .contains("        if (((this.frozen&&o.frozen)&&((this.cachedHashCode!= 0)&&(o.cachedHashCode!= 0)))"
+            + "&&(this.cachedHashCode!= o.cachedHashCode)) {\n");
+  }
+
+  @Test
+  public void testRun_frozenBeansRejectMutations() throws Exception {
+    final ClassLoader classLoader = generateBeans("/mutable.xsd", "-Xguava:freeze");
+    final Class<?> taggedClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Tagged");
+    final Class<?> locatedClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Located");
+    final Class<?> pointClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Point");
+
+    final Object tagged = taggedClass.newInstance();
+    taggedClass.getMethod("setName", String.class).invoke(tagged, "tagged");
+    getList(tagged, "getTag").addAll(Arrays.asList("a", null));
+    final Object unfrozen = taggedClass.newInstance();
+    taggedClass.getMethod("setName", String.class).invoke(unfrozen, "tagged");
+    getList(unfrozen, "getTag").addAll(Arrays.asList("a", null));
+    assertThat(taggedClass.getMethod("freeze").invoke(tagged)).isSameAs(tagged);
+    assertThat(tagged).isEqualTo(unfrozen);
+    assertMutationFails(IllegalStateException.class, taggedClass.getMethod("setName", String.class), tagged, "b");
+    assertMutationFails(UnsupportedOperationException.class, List.class.getMethod("add", Object.class),
+        getList(tagged, "getTag"), "b");
+    assertMutationFails(UnsupportedOperationException.class, List.class.getMethod("clear"), getList(tagged, "getTag"));
+    assertThat(taggedClass.getMethod("getName").invoke(tagged)).isEqualTo("tagged");
+    assertThat(getList(tagged, "getTag")).containsExactly("a", null);
+
+    // absent lists stay absent, nested beans are frozen with their parent
+    final Object empty = taggedClass.getMethod("freeze").invoke(taggedClass.newInstance());
+    assertMutationFails(UnsupportedOperationException.class, List.class.getMethod("add", Object.class),
+        getList(empty, "getTag"), "a");
+    final Object point = newPoint(pointClass, 1, 2);
+    final Object located = locatedClass.newInstance();
+    locatedClass.getMethod("setPoint", pointClass).invoke(located, point);
+    locatedClass.getMethod("freeze").invoke(located);
+    assertMutationFails(IllegalStateException.class, locatedClass.getMethod("setPoint", pointClass), located, point);
+    assertMutationFails(IllegalStateException.class, pointClass.getMethod("setX", int.class), point, 3);
+
+    final Class<?> builderClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Point$Builder");
+    final Object builder = builderClass.newInstance();
+    builderClass.getMethod("withX", int.class).invoke(builder, 1);
+    builderClass.getMethod("withY", int.class).invoke(builder, 2);
+    final Object built = builderClass.getMethod("build").invoke(builder);
+    assertThat(built).isEqualTo(newPoint(pointClass, 1, 2));
+    assertMutationFails(IllegalStateException.class, pointClass.getMethod("setY", int.class), built, 3);
+    assertMutationFails(IllegalStateException.class, builderClass.getMethod("withX", int.class), builder, 3);
+  }
+
+  @Test
+  public void testFieldVisitor() throws Exception {
+    plugin.generateFieldVisitorInterfaces(aModel, aPackage);
+    plugin.generateAcceptMethod(aModel, aSuperClass);
+    aClass.field(JMod.PRIVATE, String.class, "name");
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(String.class), "tags");
+    aClass.field(JMod.PRIVATE, aSuperClass, "parent");
+
+    final String generated = definedClassToString(TestMode.ACCEPT, aClass);
+    assertThat(generated).contains(
+        "public interface FieldVisitor {\n"
+            + "\n"
+            + "\n"
+            + "    void visitBoolean(String name, boolean value);\n")
+        .contains("    void visitDouble(String name, double value);\n")
+        .contains("    void visitBean(String name,\n"
+            + "        @Nullable\n"
+            + "        FieldVisitable value);\n")
+        .contains("    void accept(FieldVisitor visitor);\n")
+        .contains("public class ASuperClass implements FieldVisitable\n")
+        .contains(
+        "    @Override\n"
+            + "    public void accept(final FieldVisitor visitor) {\n"
+            + "        super.accept(visitor);\n"
+            + "        visitor.visitInt(\"field\", this.field);\n"
+            + "        visitor.visitBoolean(\"anotherField\", this.anotherField);\n"
+            + "        visitor.visitObject(\"name\", this.name);\n"
+            + "        visitor.visitList(\"tags\", this.tags);\n"
+            + "        visitor.visitBean(\"parent\", this.parent);\n"
+            + "    }\n");
+  }
+
+  @Test
+  public void testDiff() throws Exception {
+    plugin.generateDiffSinkInterface(aModel, aPackage);
+    plugin.generateDiffMethod(aModel, aSuperClass);
+    aClass.field(JMod.PRIVATE, String.class, "displayName");
+    aClass.field(JMod.PRIVATE, aModel.ref(List.class).narrow(aSuperClass), "children");
+    aClass.field(JMod.PRIVATE, aSuperClass, "parent");
+
+    final String generated = definedClassToString(TestMode.DIFF, aClass);
+    assertThat(generated).contains(
+        "public interface DiffSink {\n"
+            + "\n"
+            + "\n"
+            + "    void enterField(int field, String name);\n")
+        .contains("    void changedElement(int index,\n"
+            + "        @Nullable\n"
+            + "        Object left,\n")
+        .contains("    public final static int FIELD_SUPER_CLASS_FIELD = 0;\n")
+        .contains("    public final static int FIELD_DISPLAY_NAME = 3;\n")
+        .contains(
+        "    @Override\n"
+            + "    public void diff(\n"
+            + "        @Nullable\n"
+            + "        final Object other, final DiffSink sink) {\n"
+            + "        if (this == other) {\n"
+            + "            return ;\n"
+            + "        }\n"
+            + "        if ((other == null)||(getClass()!= other.getClass())) {\n"
+            + "            sink.changed(this, other);\n"
+            + "            return ;\n"
+            + "        }\n"
+            + "        final AClass o = ((AClass) other);\n"
+            + "        if (!(Double.doubleToLongBits(this.superClassField) == Double.doubleToLongBits(o.superClassField))) {\n"
+            + "            sink.changedField(ASuperClass.FIELD_SUPER_CLASS_FIELD, \"superClassField\", this.superClassField, o.superClassField);\n"
+            + "        }\n"
+            + "        if (!(this.field == o.field)) {\n"
+            + "            sink.changedField(FIELD_FIELD, \"field\", this.field, o.field);\n"
+            + "        }\n")
+        .contains(
+        "        if (this.children!= o.children) {\n"
+            + "            if (((this.children == null)||(o.children == null))||(this.children.size()!= o.children.size())) {\n"
+            + "                sink.changedField(FIELD_CHILDREN, \"children\", this.children, o.children);\n"
+            + "            } else {\n"
+            + "                boolean entered = false;\n"
+            + "                for (int i = 0; (i<this.children.size()); i ++) {\n"
+            + "                    final ASuperClass a = this.children.get(i);\n"
+            + "                    final ASuperClass b = o.children.get(i);\n"
+            + "                    if (!Objects.equals(a, b)) {\n"
+            + "                        if (!entered) {\n"
+            + "                            sink.enterField(FIELD_CHILDREN, \"children\");\n"
+            + "                            entered = true;\n"
+            + "                        }\n"
+            + "                        if (((a!= null)&&(b!= null))&&(a.getClass() == b.getClass())) {\n"
+            + "                            sink.enterElement(i);\n"
+            + "                            a.diff(b, sink);\n"
+            + "                            sink.exit();\n"
+            + "                        } else {\n"
+            + "                            sink.changedElement(i, a, b);\n"
+            + "                        }\n"
+            + "                    }\n"
+            + "                }\n"
+            + "                if (entered) {\n"
+            + "                    sink.exit();\n"
+            + "                }\n"
+            + "            }\n"
+            + "        }\n")
+        .contains(
+        "        if (!Objects.equals(this.parent, o.parent)) {\n"
+            + "            if (((this.parent!= null)&&(o.parent!= null))&&(this.parent.getClass() == o.parent.getClass())) {\n"
+            + "                sink.enterField(FIELD_PARENT, \"parent\");\n"
+            + "                this.parent.diff(o.parent, sink);\n"
+            + "                sink.exit();\n"
+            + "            } else {\n"
+            + "                sink.changedField(FIELD_PARENT, \"parent\", this.parent, o.parent);\n"
+            + "            }\n"
+            + "        }\n");
+  }
+
+  @Test
+  public void testRun_diffPaths() throws Exception {
+    final ClassLoader classLoader = generateBeans("/mutable.xsd", "-Xguava:diff");
+    final Class<?> diffSinkClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.DiffSink");
+    final Class<?> taggedClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Tagged");
+    final Class<?> locatedClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Located");
+    final Class<?> pointClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Point");
+
+    final Object located = locatedClass.newInstance();
+    locatedClass.getMethod("setPoint", pointClass).invoke(located, newPoint(pointClass, 1, 2));
+    final Object moved = locatedClass.newInstance();
+    locatedClass.getMethod("setPoint", pointClass).invoke(moved, newPoint(pointClass, 1, 3));
+    assertThat(diff(diffSinkClass, located, moved)).containsExactly("point.y: 2 -> 3");
+    assertThat(diff(diffSinkClass, located, located)).isEmpty();
+    assertThat(diff(diffSinkClass, located, locatedClass.newInstance()))
+        .containsExactly("point: Point{x=1, y=2} -> null");
+
+    final Object tagged = taggedClass.newInstance();
+    taggedClass.getMethod("setName", String.class).invoke(tagged, "n");
+    getList(tagged, "getTag").addAll(Arrays.asList("a", "b", "c"));
+    final Object retagged = taggedClass.newInstance();
+    taggedClass.getMethod("setName", String.class).invoke(retagged, "m");
+    getList(retagged, "getTag").addAll(Arrays.asList("a", "x", "c"));
+    assertThat(diff(diffSinkClass, tagged, retagged)).containsExactly("name: n -> m", "tag[1]: b -> x");
+    getList(retagged, "getTag").remove(2);
+    assertThat(diff(diffSinkClass, tagged, retagged)).containsExactly("name: n -> m", "tag: [a, b, c] -> [a, x]");
+    assertThat(diff(diffSinkClass, tagged, located)).containsExactly(": " + tagged + " -> " + located);
+  }
+
+  @Test
+  public void testInstrument() throws Exception {
+    plugin.generateBeanStats(aModel, aPackage);
+    plugin.generateEqualsMethod(aModel, aClass);
+    plugin.generateToStringMethod(aModel, aClass);
+
+    final String generated = definedClassToString(TestMode.HASH_CODE, aClass);
+    assertThat(generated).contains(
+        "public final class BeanStats\n"
+            + "    implements BeanStatsMXBean\n")
+        .contains(
+        "    public int recordHashCode(final int hash) {\n"
+            + "        hashCodeCalls.increment();\n"
+            + "        if ((ThreadLocalRandom.current().nextInt()&SAMPLE_MASK) == 0) {\n"
+            + "            hashBuckets[((hash^(hash >>> 16))&(HASH_BUCKETS- 1))].increment();\n"
+            + "        }\n"
+            + "        return hash;\n"
+            + "    }\n")
+        .contains("    private final static BeanStats STATS = BeanStats.register(AClass.class);\n")
+        .contains(
+        "    public boolean equals(\n"
+            + "        @Nullable\n"
+            + "        Object other) {\n"
+            + "        STATS.recordEquals();\n"
+            + "        if (this == other) {\n")
+        .contains("        return STATS.recordToString(MoreObjects.toStringHelper(this).add(\"superClassField\", superClassField)")
+        .contains("        return STATS.recordHashCode(Objects.hash(superClassField, field, anotherField));\n");
+  }
+
+  @Test
+  public void testInstrument_cachedHashCode() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:cacheHashCode"}, 0);
+    plugin.generateBeanStats(aModel, aPackage);
+
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass))
+        .contains("            return STATS.recordHashCode(cached);\n")
+        .contains("        return STATS.recordHashCode(h);\n");
+  }
+
+  @Test
+  public void testInstrument_delegateToSuper() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:delegateToSuper"}, 0);
+    plugin.generateBeanStats(aModel, aPackage);
+    plugin.generateHashCodeMethod(aModel, aSuperClass);
+    plugin.generateEqualsMethod(aModel, aSuperClass);
+    plugin.generateHashCodeMethod(aModel, aClass);
+
+    // the calls of the subclass are not counted for the superclass too
+    assertThat(definedClassToString(TestMode.EQUALS, aClass))
+        .contains("    public int hashCode() {\n"
+            + "        return STATS.recordHashCode(computeHashCode());\n"
+            + "    }\n")
+        .contains("    @Override\n"
+            + "    protected int computeHashCode() {\n"
+            + "        return Objects.hash(super.computeHashCode(), field, anotherField);\n"
+            + "    }\n")
+        .contains("        Object other) {\n"
+            + "        STATS.recordEquals();\n"
+            + "        return equalsFields(other);\n"
+            + "    }\n")
+        .contains("    @Override\n"
+            + "    protected boolean equalsFields(\n"
+            + "        @Nullable\n"
+            + "        Object other) {\n"
+            + "        if (this == other) {\n")
+        .contains("        return (((this.field == o.field)&&(this.anotherField == o.anotherField))"
+            + "&&super.equalsFields(other));\n")
+        .doesNotContain("super.hashCode()")
+        .doesNotContain("super.equals(");
+  }
+
+  @Test
+  public void testComparator() throws Exception {
+    final JFieldVar name = aClass.field(JMod.PRIVATE, String.class, "name");
+    aClass.field(JMod.PRIVATE, XMLGregorianCalendar.class, "created");
+
+    assertThat(plugin.isOrderable(aModel, name.type())).isTrue();
+    assertThat(plugin.isOrderable(aModel, aModel.ref(List.class).narrow(String.class))).isFalse();
+    assertThat(plugin.isOrderable(aModel, aSuperClass)).isFalse();
+    assertThat(definedClassToString(TestMode.COMPARATOR, aClass)).contains(
+        "    public final static Comparator<AClass> COMPARATOR = AClassComparator.INSTANCE;\n")
+        .contains(
+        "    private static int calendarCompare(final XMLGregorianCalendar a, final XMLGregorianCalendar b) {\n"
+            + "        final int fields = calendarDefinedFields(a);\n")
+        .contains(
+        "        public int compare(final AClass a, final AClass b) {\n"
+            + "            if (a == b) {\n"
+            + "                return  0;\n"
+            + "            }\n"
+            + "            int c;\n"
+            + "            c = Double.compare(a.superClassField, b.superClassField);\n"
+            + "            if (c!= 0) {\n"
+            + "                return c;\n"
+            + "            }\n"
+            + "            c = Integer.compare(a.field, b.field);\n"
+            + "            if (c!= 0) {\n"
+            + "                return c;\n"
+            + "            }\n"
+            + "            c = Boolean.compare(a.anotherField, b.anotherField);\n"
+            + "            if (c!= 0) {\n"
+            + "                return c;\n"
+            + "            }\n"
+            + "            if (a.name!= b.name) {\n"
+            + "                if (a.name == null) {\n"
+            + "                    return -1;\n"
+            + "                }\n"
+            + "                if (b.name == null) {\n"
+            + "                    return  1;\n"
+            + "                }\n"
+            + "                c = a.name.compareTo(b.name);\n"
+            + "                if (c!= 0) {\n"
+            + "                    return c;\n"
+            + "                }\n"
+            + "            }\n"
+            + "            if (a.created!= b.created) {\n");
+  }
+
+  @Test
+  public void testComparator_keyFields() throws Exception {
+    final JFieldVar name = aClass.field(JMod.PRIVATE, String.class, "name");
+    plugin.generateComparator(aModel, aClass, Collections.singletonList(name));
+    assertThat(definedClassToString(TestMode.TO_STRING, aClass)).contains(
+        "            int c;\n"
+            + "            if (a.name!= b.name) {\n")
+        .contains("return ((a.getClass() == b.getClass())? 0 :a.getClass().getName().compareTo(b.getClass()"
+            + ".getName()));\n");
+  }
+
+  @Test
+  public void testComparator_hierarchy() throws Exception {
+    final File hierarchyXsd = new File(getClass().getResource("/hierarchy.xsd").toURI());
+    final File targetDir = temporaryFolder.getRoot();
+    assertEquals(0, Driver.run(new String[]{"-quiet", "-extension", "-Xguava", "-Xguava:comparator", "-d",
+        targetDir.getPath(), hierarchyXsd.getPath()}, System.out, System.out));
+    final File packageDir = new File(targetDir, "com/github/danielwegener/xjcguava/hierarchy");
+
+    // Item.COMPARATOR would otherwise resolve to the one of Base, which ignores the payload
+    assertThat(Files.toString(new File(packageDir, "Base.java"), Charsets.UTF_8)).doesNotContain("COMPARATOR");
+    assertThat(Files.toString(new File(packageDir, "Item.java"), Charsets.UTF_8)).doesNotContain("COMPARATOR");
+    assertThat(Files.toString(new File(packageDir, "Entry.java"), Charsets.UTF_8))
+        .contains("public final static Comparator<Entry> COMPARATOR = EntryComparator.INSTANCE;")
+        .contains("            if (a.getClass()!= b.getClass()) {\n"
+            + "                return a.getClass().getName().compareTo(b.getClass().getName());\n"
+            + "            }\n"
+            + "            if (a instanceof RankedEntry) {\n"
+            + "                return RankedEntry.COMPARATOR.compare(((RankedEntry) a), ((RankedEntry) b));\n"
+            + "            }\n"
+            + "            return  0;\n");
+    assertThat(Files.toString(new File(packageDir, "RankedEntry.java"), Charsets.UTF_8))
+        .contains("c = Integer.compare(a.rank, b.rank);")
+        .contains("return LabeledEntry.COMPARATOR.compare(((LabeledEntry) a), ((LabeledEntry) b));");
+    assertThat(Files.toString(new File(packageDir, "LabeledEntry.java"), Charsets.UTF_8))
+        .contains("c = a.label.compareTo(b.label);")
+        .contains("return ((a.getClass() == b.getClass())? 0 :a.getClass().getName().compareTo(b.getClass()"
+            + ".getName()));\n");
+  }
+
+  @Test
+  public void testRun_comparatorConsistentWithEquals() throws Exception {
+    final ClassLoader mutable = generateBeans("/mutable.xsd", "-Xguava:comparator");
+    final Class<?> pointClass = mutable.loadClass("com.github.danielwegener.xjcguava.mutable.Point");
+    assertConsistentWithEquals(pointClass, newPoint(pointClass, 1, 2), newPoint(pointClass, 1, 2),
+        newPoint(pointClass, 1, 3), newPoint(pointClass, -1, 2), newPoint(pointClass, Integer.MIN_VALUE, 0));
+
+    final ClassLoader hierarchy = generateBeans("/hierarchy.xsd", "-Xguava:comparator");
+    final Class<?> entryClass = hierarchy.loadClass("com.github.danielwegener.xjcguava.hierarchy.Entry");
+    final Class<?> rankedClass = hierarchy.loadClass("com.github.danielwegener.xjcguava.hierarchy.RankedEntry");
+    final Class<?> labeledClass = hierarchy.loadClass("com.github.danielwegener.xjcguava.hierarchy.LabeledEntry");
+    final List<Object> entries = new ArrayList<Object>();
+    for (String key : Arrays.asList("a", "a", "b")) {
+      for (int rank : new int[]{1, 2}) {
+        for (String label : Arrays.asList("x", "y")) {
+          final Object labeled = labeledClass.newInstance();
+          labeledClass.getMethod("setKey", String.class).invoke(labeled, key);
+          labeledClass.getMethod("setRank", int.class).invoke(labeled, rank);
+          labeledClass.getMethod("setLabel", String.class).invoke(labeled, label);
+          entries.add(labeled);
+        }
+        final Object ranked = rankedClass.newInstance();
+        rankedClass.getMethod("setKey", String.class).invoke(ranked, key);
+        rankedClass.getMethod("setRank", int.class).invoke(ranked, rank);
+        entries.add(ranked);
+      }
+      final Object entry = entryClass.newInstance();
+      entryClass.getMethod("setKey", String.class).invoke(entry, key);
+      entries.add(entry);
+    }
+    assertConsistentWithEquals(entryClass, entries.toArray());
+  }
+
+  @Test
+  public void testExternalizable() throws Exception {
+    final String generated = definedClassToString(TestMode.EXTERNALIZABLE, aClass);
+    assertThat(generated)
+        .contains("public class AClass\n    extends ASuperClass\n    implements Externalizable\n")
+        .contains("    public void writeFields(final DataOutput out)\n"
+                  + "        throws IOException\n"
+                  + "    {\n"
+                  + "        out.writeDouble(this.superClassField);\n"
+                  + "        BeanCodec.writeSignedVarInt(out, this.field);\n"
+                  + "        out.writeBoolean(this.anotherField);\n"
+                  + "    }\n")
+        .contains("        this.superClassField = in.readDouble();\n"
+                  + "        this.field = BeanCodec.readSignedVarInt(in);\n"
+                  + "        this.anotherField = in.readBoolean();\n")
+        .contains("        out.writeLong(SCHEMA_HASH);\n"
+                  + "        writeFields(out);\n")
+        .contains("        BeanCodec.checkSchemaHash(in, SCHEMA_HASH, AClass.class);\n"
+                  + "        readFields(in);\n")
+        .contains("        final int tag = ((type == AClass.class)? 1 : 0);\n")
+        .contains("            case  1 :\n"
+                  + "            {\n"
+                  + "                final AClass bean1 = new AClass();\n"
+                  + "                bean1 .readFields(in);\n"
+                  + "                return bean1;\n")
+        .contains("public final class BeanCodec {\n");
+  }
+
+  @Test
+  public void testExternalizable_nullBitmap() throws Exception {
+    final JDefinedClass clazz = aPackage._class("WithNullableFields");
+    clazz.field(JMod.PROTECTED, String.class, "name");
+    clazz.field(JMod.PROTECTED, aModel.ref(List.class).narrow(Integer.class), "numbers");
+    clazz.field(JMod.PROTECTED, aModel.INT, "count");
+    assertThat(definedClassToString(TestMode.EXTERNALIZABLE, clazz))
+        .contains("        out.writeByte((((this.name == null)? 1 : 0)|((this.numbers == null)? 2 : 0)));\n"
+                  + "        if (this.name!= null) {\n"
+                  + "            BeanCodec.writeString(out, this.name);\n"
+                  + "        }\n")
+        .contains("        final int nulls0 = in.readUnsignedByte();\n"
+                  + "        if ((nulls0 & 1) == 0) {\n"
+                  + "            this.name = BeanCodec.readString(in);\n"
+                  + "        } else {\n"
+                  + "            this.name = null;\n"
+                  + "        }\n")
+        .contains("                list.add((in.readBoolean()?BeanCodec.readSignedVarInt(in):null));\n");
+  }
+
+  @Test
+  public void testExternalizable_enum() throws Exception {
+    final JDefinedClass clazz = aPackage._class("WithEnums");
+    clazz.field(JMod.PROTECTED, TimeUnit.class, "unit");
+    clazz.field(JMod.PROTECTED, aModel.ref(List.class).narrow(TimeUnit.class), "units");
+    // values() is copied once, not on every read
+    assertThat(definedClassToString(TestMode.EXTERNALIZABLE, clazz))
+        .contains("    private final static TimeUnit[] TIME_UNIT_VALUES = TimeUnit.values();\n")
+        .contains("    public static TimeUnit readTimeUnit(final DataInput in)\n"
+                  + "        throws IOException\n"
+                  + "    {\n"
+                  + "        final int ordinal = BeanCodec.readVarInt(in);\n"
+                  + "        if ((ordinal< 0)||(ordinal >= TIME_UNIT_VALUES.length)) {\n"
+                  + "            throw new StreamCorruptedException(((\"Unknown ordinal \"+ ordinal)+\" of TimeUnit\"));\n"
+                  + "        }\n"
+                  + "        return TIME_UNIT_VALUES[ordinal];\n"
+                  + "    }\n")
+        .contains("            this.unit = BeanCodec.readTimeUnit(in);\n")
+        .contains("                list.add((in.readBoolean()?BeanCodec.readTimeUnit(in):null));\n")
+        .doesNotContain("readTimeUnit2");
+  }
+
+  @Test
+  public void testRun_externalizableRoundTrip() throws Exception {
+    final ClassLoader classLoader = generateBeans("/mutable.xsd", "-Xguava:externalizable");
+    final Class<?> taggedClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Tagged");
+    final Class<?> locatedClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Located");
+    final Class<?> pointClass = classLoader.loadClass("com.github.danielwegener.xjcguava.mutable.Point");
+    final Object tagged = taggedClass.newInstance();
+    taggedClass.getMethod("setName", String.class).invoke(tagged, "tagged");
+    getList(tagged, "getTag").addAll(Arrays.asList("a", null, "ä"));
+    final Object point = newPoint(pointClass, 1, -2);
+    final Object located = locatedClass.newInstance();
+    locatedClass.getMethod("setPoint", pointClass).invoke(located, point);
+
+    for (Object bean : new Object[]{tagged, taggedClass.newInstance(), located, locatedClass.newInstance()}) {
+      final Object read = readExternal(bean.getClass(), writeExternal((Externalizable) bean));
+      assertThat(read).isEqualTo(bean).isNotSameAs(bean);
+    }
+  }
+
+  @Test
+  public void testRun_externalizableCorruptStream() throws Exception {
+    final Class<?> taggedClass = generateBeans("/mutable.xsd", "-Xguava:externalizable")
+        .loadClass("com.github.danielwegener.xjcguava.mutable.Tagged");
+    final Object tagged = taggedClass.newInstance();
+    taggedClass.getMethod("setName", String.class).invoke(tagged, "tagged");
+    getList(tagged, "getTag").addAll(Arrays.asList("a", "b"));
+    final byte[] written = writeExternal((Externalizable) tagged);
+    try {
+      readExternal(taggedClass, Arrays.copyOf(written, written.length - 2));
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // the stream ends within the last tag
+    }
+
+    final long schemaHash = taggedClass.getField("SCHEMA_HASH").getLong(null);
+    // a negative length of the name, then the largest positive one as the size of the tags
+    final byte[] negativeLength = {0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+    final byte[] hugeSize = {0, 1, 'n', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+    for (byte[] fields : Arrays.asList(negativeLength, hugeSize)) {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeLong(schemaHash);
+      out.write(fields);
+      out.close();
+      try {
+        readExternal(taggedClass, bytes.toByteArray());
+        failBecauseExceptionWasNotThrown(StreamCorruptedException.class);
+      } catch (StreamCorruptedException e) {
+        assertThat(e.getMessage()).startsWith("Invalid length ");
+      }
+    }
+  }
+
+  @Test
+  public void testGetSchemaHash() throws Exception {
+    final long hash = new XjcGuavaPlugin().getSchemaHash(aModel, aClass);
+    assertThat(new XjcGuavaPlugin().getSchemaHash(aModel, aClass)).isEqualTo(hash);
+    aClass.field(JMod.PRIVATE, aModel.LONG, "addedField");
+    assertThat(new XjcGuavaPlugin().getSchemaHash(aModel, aClass)).isNotEqualTo(hash);
+  }
+
+  @Test
+  public void testCustomizationTagNames() {
+    assertThat(plugin.getCustomizationURIs()).containsExactly("http://danielwegener.github.com/xjcguava");
+    assertThat(plugin.isCustomizationTagName("http://danielwegener.github.com/xjcguava", "ignore")).isTrue();
+    assertThat(plugin.isCustomizationTagName("http://danielwegener.github.com/xjcguava", "skip")).isTrue();
+    assertThat(plugin.isCustomizationTagName("http://danielwegener.github.com/xjcguava", "compare")).isTrue();
+    assertThat(plugin.isCustomizationTagName("http://danielwegener.github.com/xjcguava", "other")).isFalse();
+    assertThat(plugin.isCustomizationTagName("http://java.sun.com/xml/ns/jaxb", "skip")).isFalse();
+  }
+
+  @Test
+  public void testIgnoredField() throws Exception {
+    plugin.ignoreField(aField, Collections.singleton("equals"));
+    plugin.ignoreField(aSuperClassField, Collections.singleton("toString"));
+
+    doTestEquals(aClass, "return ((Double.doubleToLongBits(this.superClassField) == "
+        + "Double.doubleToLongBits(o.superClassField))&&(this.anotherField == o.anotherField));");
+    // left out of hashCode as well, equal objects must have equal hash codes
+    assertThat(definedClassToString(TestMode.HASH_CODE, aClass))
+        .contains("        return Objects.hash(superClassField, anotherField);\n");
+    assertThat(definedClassToString(TestMode.TO_STRING, aClass))
+        .contains(".add(\"field\", field).add(\"anotherField\", anotherField).toString();");
+  }
+
+  @Test
+  public void testRun_customizations() throws Exception {
+    // the JAXB 2.0 runtime parsing the customizations cannot inject accessors on recent JDKs
+    System.setProperty("com.sun.xml.bind.v2.bytecode.ClassTailor.noOptimize", "true");
+    final File customizedXsd = new File(getClass().getResource("/customized.xsd").toURI());
+    final File targetDir = temporaryFolder.getRoot();
+    assertEquals(0, Driver.run(new String[]{"-quiet", "-extension", "-Xguava", "-d", targetDir.getPath(),
+        customizedXsd.getPath()}, System.out, System.out));
+    final File packageDir = new File(targetDir, "com/github/danielwegener/xjcguava/customized");
+
+    final String document = Files.toString(new File(packageDir, "Document.java"), Charsets.UTF_8);
+    assertThat(document)
+        .contains(".add(\"id\", id).add(\"audit\", audit).toString();")
+        .contains("return Objects.hash(id, audit);")
+        .contains("calendarEquals(this.lastModified, o.lastModified)")
+        .doesNotContain("o.payload")
+        .doesNotContain("add(\"payload\"");
+    final String audit = Files.toString(new File(packageDir, "Audit.java"), Charsets.UTF_8);
+    assertThat(audit).doesNotContain("equals").doesNotContain("hashCode").doesNotContain("toString");
+    final String entry = Files.toString(new File(packageDir, "Entry.java"), Charsets.UTF_8);
+    assertThat(entry)
+        .contains("public final static Comparator<Entry> COMPARATOR = EntryComparator.INSTANCE;")
+        .containsSequence("c = Integer.compare(a.rank, b.rank);", "c = a.name.compareTo(b.name);");
+  }
+
   @Ignore("to be implemented")
   @Test
   public void testRun() throws Exception {
@@ -343,6 +1831,164 @@ public class XjcGuavaPluginTest {
                   + "    }");
   }
 
+  @Test
+  public void testToString_jdkOnly() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:jdkOnly"}, 0);
+    final String generated = definedClassToString(TestMode.TO_STRING, aClass);
+    assertThat(generated)
+        .contains("    @Override\n"
+                  + "    public String toString() {\n"
+                  + "        final StringBuilder sb = new StringBuilder(")
+        .contains("        sb.append(getClass().getSimpleName()).append('{');\n"
+                  + "        sb.append(\"superClassField=\").append(this.superClassField);\n"
+                  + "        sb.append(\", field=\").append(this.field);\n"
+                  + "        sb.append(\", anotherField=\").append(this.anotherField);\n"
+                  + "        return sb.append('}').toString();\n"
+                  + "    }")
+        .doesNotContain("MoreObjects");
+  }
+
+  @Test
+  public void testRun_jdkOnlyWithoutGuava() throws Exception {
+    // the plugin is loaded by a class loader that hides Guava and JSR-305, as if XJC ran without them
+    final ClassLoader classLoader = new GuavaHidingClassLoader(
+        XjcGuavaPlugin.class.getProtectionDomain().getCodeSource().getLocation(), getClass().getClassLoader());
+    final Plugin hidingPlugin = (Plugin) classLoader.loadClass(XjcGuavaPlugin.class.getName()).newInstance();
+    assertThat(hidingPlugin.getClass().getClassLoader()).isSameAs(classLoader);
+    try {
+      classLoader.loadClass(MoreObjects.class.getName());
+      failBecauseExceptionWasNotThrown(ClassNotFoundException.class);
+    } catch (ClassNotFoundException e) {
+      // Guava is hidden
+    }
+
+    final Options options = new Options();
+    options.addGrammar(new File(getClass().getResource("/mutable.xsd").toURI()));
+    final String[] arguments = {"-Xguava:jdkOnly", "-Xguava:cacheHashCode", "-Xguava:copy", "-Xguava:fieldVisitor",
+        "-Xguava:comparator", "-Xguava:externalizable", "-Xguava:diff", "-Xguava:instrument", "-Xguava:nullAsEmpty"};
+    for (int i = 0; i < arguments.length; i++) {
+      assertEquals(1, hidingPlugin.parseArgument(options, arguments, i));
+    }
+    final ErrorReceiverFilter errorReceiver = new ErrorReceiverFilter();
+    final Model model = ModelLoader.load(options, new JCodeModel(), errorReceiver);
+    final Outline outline = model.generateCode(options, errorReceiver);
+    assertEquals(true, hidingPlugin.run(outline, options, errorReceiver));
+    assertEquals(false, errorReceiver.hadError());
+
+    final File targetDir = temporaryFolder.getRoot();
+    outline.getCodeModel().build(targetDir, (PrintStream) null);
+    final List<String> sources = new ArrayList<String>();
+    addSources(targetDir, sources);
+    for (String source : sources) {
+      assertThat(Files.toString(new File(source), Charsets.UTF_8))
+          .doesNotContain("com.google")
+          .doesNotContain("javax.annotation.Nullable");
+    }
+  }
+
+  @Test
+  public void testEquals_jdkOnly() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:jdkOnly"}, 0);
+    assertThat(definedClassToString(TestMode.EQUALS, aClass))
+        .contains("    public boolean equals(Object other) {\n")
+        .doesNotContain("Nullable");
+  }
+
+  @Test
+  public void testToString_appendTo() throws Exception {
+    plugin.parseArgument(null, new String[]{"-Xguava:appendToString"}, 0);
+    plugin.generateAppendToMethod(aModel, aSuperClass);
+    JDefinedClass clazz = aPackage._class("WithNestedBeans");
+    clazz.field(JMod.PRIVATE, aModel.INT, "count");
+    clazz.field(JMod.PRIVATE, aSuperClass, "bean");
+    clazz.field(JMod.PRIVATE, aModel.ref(List.class).narrow(aSuperClass), "beans");
+    plugin.generateAppendToMethod(aModel, clazz);
+
+    assertThat(definedClassToString(TestMode.TO_STRING, clazz))
+        .contains("    public void appendTo(final StringBuilder sb) {\n"
+                  + "        sb.append(getClass().getSimpleName()).append('{');\n"
+                  + "        sb.append(\"count=\").append(this.count);\n"
+                  + "        sb.append(\", bean=\");\n"
+                  + "        if (this.bean == null) {\n"
+                  + "            sb.append(\"null\");\n"
+                  + "        } else {\n"
+                  + "            this.bean.appendTo(sb);\n"
+                  + "        }\n"
+                  + "        sb.append(\", beans=\");\n"
+                  + "        if (this.beans == null) {\n"
+                  + "            sb.append(\"null\");\n"
+                  + "        } else {\n"
+                  + "            sb.append('[');\n"
+                  + "            for (int i = 0; (i<this.beans.size()); i ++) {\n"
+                  + "                if (i > 0) {\n"
+                  + "                    sb.append(\", \");\n"
+                  + "                }\n"
+                  + "                final ASuperClass e = this.beans.get(i);\n"
+                  + "                if (e == null) {\n"
+                  + "                    sb.append(\"null\");\n"
+                  + "                } else {\n"
+                  + "                    e.appendTo(sb);\n"
+                  + "                }\n"
+                  + "            }\n"
+                  + "            sb.append(']');\n"
+                  + "        }\n"
+                  + "        sb.append('}');\n"
+                  + "    }")
+        .contains("    @Override\n"
+                  + "    public String toString() {\n"
+                  + "        final StringBuilder sb = new StringBuilder(79);\n"
+                  + "        appendTo(sb);\n"
+                  + "        return sb.toString();\n"
+                  + "    }");
+  }
+
+  @Test
+  public void testToString_bounded() throws Exception {
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:toStringMaxElements=10"}, 0));
+    assertEquals(1, plugin.parseArgument(null, new String[]{"-Xguava:toStringMaxDepth=3"}, 0));
+    assertThat(plugin.getToStringMaxElements()).isEqualTo(10);
+    assertThat(plugin.getToStringMaxDepth()).isEqualTo(3);
+    assertThat(plugin.isAppendToStringEnabled()).isTrue();
+
+    JDefinedClass clazz = aPackage._class("Bounded");
+    clazz.field(JMod.PRIVATE, clazz, "parent");
+    clazz.field(JMod.PRIVATE, aModel.ref(List.class).narrow(String.class), "names");
+    plugin.generateAppendToMethod(aModel, clazz);
+
+    assertThat(definedClassToString(TestMode.TO_STRING, clazz))
+        .contains("    public void appendTo(final StringBuilder sb) {\n"
+                  + "        appendTo(sb, new Object[ 3 ] , 0);\n"
+                  + "    }")
+        .contains("    public void appendTo(final StringBuilder sb, Object[] path, final int depth) {\n"
+                  + "        sb.append(getClass().getSimpleName()).append('{');\n"
+                  + "        if (depth >= 3) {\n"
+                  + "            sb.append(\"...}\");\n"
+                  + "            return ;\n"
+                  + "        }\n"
+                  + "        for (int i = 0; (i<depth); i ++) {\n"
+                  + "            if (path[i] == this) {\n"
+                  + "                sb.append(\"(cycle)}\");\n"
+                  + "                return ;\n"
+                  + "            }\n"
+                  + "        }\n")
+        .contains("            this.parent.appendTo(sb, path, (depth + 1));\n")
+        .contains("            final int size = this.names.size();\n"
+                  + "            for (int i = 0; ((i<size)&&(i< 10)); i ++) {\n")
+        .contains("            if (size > 10) {\n"
+                  + "                sb.append(\", ...(\").append((size- 10)).append(\" more)\");\n"
+                  + "            }\n");
+  }
+
+  @Test
+  public void testParseArgument_invalidToStringBound() throws Exception {
+    try {
+      plugin.parseArgument(null, new String[]{"-Xguava:toStringMaxDepth=deep"}, 0);
+      failBecauseExceptionWasNotThrown(BadCommandLineException.class);
+    } catch (BadCommandLineException e) {
+      assertThat(e).hasMessage("-Xguava:toStringMaxDepth expects a non-negative number but was: deep");
+    }
+  }
+
   @Test
   public void testGetOptionName() throws Exception {
     assertThat(plugin.getOptionName()).isEqualTo("Xguava");
@@ -356,6 +2002,173 @@ public class XjcGuavaPluginTest {
     return new String(baos.toByteArray(), Charsets.UTF_8);
   }
 
+  /**
+   * Compiles the generated sources next to them and returns a class loader loading the compiled classes.
+   */
+  private ClassLoader compile(File sourceDir) throws Exception {
+    // the annotations and Guava classes the generated code refers to might not be on the system class path
+    final StringBuilder classPath = new StringBuilder(System.getProperty("java.class.path"));
+    for (Class<?> dependency : new Class<?>[]{Nullable.class, MoreObjects.class, XmlElement.class}) {
+      final CodeSource codeSource = dependency.getProtectionDomain().getCodeSource();
+      if (codeSource != null) {
+        classPath.append(File.pathSeparator).append(new File(codeSource.getLocation().toURI()).getPath());
+      }
+    }
+    final List<String> arguments = new ArrayList<String>(Arrays.asList("-nowarn", "-classpath", classPath.toString(),
+        "-d", sourceDir.getPath()));
+    addSources(sourceDir, arguments);
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assertEquals(0, compiler.run(null, System.out, System.err, arguments.toArray(new String[arguments.size()])));
+    return new URLClassLoader(new URL[]{sourceDir.toURI().toURL()}, getClass().getClassLoader());
+  }
+
+  /**
+   * Generates the beans of the given schema with the given options into a new folder and compiles them.
+   */
+  private ClassLoader generateBeans(String schema, String... options) throws Exception {
+    final File xsd = new File(getClass().getResource(schema).toURI());
+    final File targetDir = temporaryFolder.newFolder();
+    final List<String> arguments = new ArrayList<String>(Arrays.asList("-quiet", "-extension", "-Xguava"));
+    arguments.addAll(Arrays.asList(options));
+    arguments.addAll(Arrays.asList("-d", targetDir.getPath(), xsd.getPath()));
+    assertEquals(0, Driver.run(arguments.toArray(new String[arguments.size()]), System.out, System.out));
+    return compile(targetDir);
+  }
+
+  private static Object newPoint(Class<?> pointClass, int x, int y) throws Exception {
+    final Object point = pointClass.newInstance();
+    pointClass.getMethod("setX", int.class).invoke(point, x);
+    pointClass.getMethod("setY", int.class).invoke(point, y);
+    return point;
+  }
+
+  /**
+   * Asserts that the COMPARATOR of the given class orders each pair of the beans consistently with equals.
+   */
+  @SuppressWarnings("unchecked")
+  private static void assertConsistentWithEquals(Class<?> beanClass, Object... beans) throws Exception {
+    final Comparator<Object> comparator = (Comparator<Object>) beanClass.getField("COMPARATOR").get(null);
+    for (Object a : beans) {
+      for (Object b : beans) {
+        final int c = comparator.compare(a, b);
+        assertEquals(a + " and " + b, a.equals(b), c == 0);
+        assertEquals(a + " and " + b, Integer.signum(c), -Integer.signum(comparator.compare(b, a)));
+      }
+    }
+  }
+
+  private static void assertMutationFails(Class<? extends Exception> expected, Method mutator, Object target,
+      Object... args) throws Exception {
+    try {
+      mutator.invoke(target, args);
+      failBecauseExceptionWasNotThrown(expected);
+    } catch (InvocationTargetException e) {
+      assertThat(e.getCause()).isInstanceOf(expected);
+    }
+  }
+
+  private static byte[] writeExternal(Externalizable bean) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final ObjectOutputStream out = new ObjectOutputStream(bytes);
+    bean.writeExternal(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static Object readExternal(Class<?> beanClass, byte[] bytes) throws Exception {
+    final Externalizable bean = (Externalizable) beanClass.newInstance();
+    bean.readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes)));
+    return bean;
+  }
+
+  private static List<String> diff(Class<?> diffSinkClass, Object left, Object right) throws Exception {
+    final DiffRecorder recorder = new DiffRecorder();
+    final Object sink = Proxy.newProxyInstance(diffSinkClass.getClassLoader(), new Class<?>[]{diffSinkClass}, recorder);
+    left.getClass().getMethod("diff", Object.class, diffSinkClass).invoke(left, right, sink);
+    assertThat(recorder.path).isEmpty();
+    return recorder.changes;
+  }
+
+  /**
+   * Records the changes a generated DiffSink receives as "path: left -> right".
+   */
+  private static final class DiffRecorder implements InvocationHandler {
+
+    final List<String> path = new ArrayList<String>();
+    final List<String> changes = new ArrayList<String>();
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      final String name = method.getName();
+      if ("enterField".equals(name)) {
+        path.add((path.isEmpty() ? "" : ".") + args[1]);
+      } else if ("enterElement".equals(name)) {
+        path.add("[" + args[0] + "]");
+      } else if ("exit".equals(name)) {
+        path.remove(path.size() - 1);
+      } else if ("changed".equals(name)) {
+        record("", args[0], args[1]);
+      } else if ("changedField".equals(name)) {
+        record((path.isEmpty() ? "" : ".") + args[1], args[2], args[3]);
+      } else if ("changedElement".equals(name)) {
+        record("[" + args[0] + "]", args[1], args[2]);
+      }
+      return null;
+    }
+
+    private void record(String last, Object left, Object right) {
+      final StringBuilder change = new StringBuilder();
+      for (String element : path) {
+        change.append(element);
+      }
+      changes.add(change.append(last).append(": ").append(left).append(" -> ").append(right).toString());
+    }
+  }
+
+  private static void addSources(File dir, List<String> sources) {
+    for (File file : dir.listFiles()) {
+      if (file.isDirectory()) {
+        addSources(file, sources);
+      } else if (file.getName().endsWith(".java")) {
+        sources.add(file.getPath());
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Object> getList(Object bean, String getter) throws Exception {
+    return (List<Object>) bean.getClass().getMethod(getter).invoke(bean);
+  }
+
+  /**
+   * Loads the plugin classes itself and fails to load any Guava or JSR-305 class.
+   */
+  private static final class GuavaHidingClassLoader extends URLClassLoader {
+
+    GuavaHidingClassLoader(URL pluginClasses, ClassLoader parent) {
+      super(new URL[]{pluginClasses}, parent);
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (name.startsWith("com.google.") || name.startsWith("javax.annotation.Nullable")
+          || name.startsWith("javax.annotation.Nonnull") || name.startsWith("javax.annotation.meta.")) {
+        throw new ClassNotFoundException(name);
+      }
+      if (!name.startsWith(XjcGuavaPlugin.class.getName())) {
+        return super.loadClass(name, resolve);
+      }
+      Class<?> loaded = findLoadedClass(name);
+      if (loaded == null) {
+        loaded = findClass(name);
+      }
+      if (resolve) {
+        resolveClass(loaded);
+      }
+      return loaded;
+    }
+  }
+
   private void doTestEquals(JDefinedClass clazz, String expectedEqualsMethod) throws IOException {
     assertThat(definedClassToString(TestMode.EQUALS, clazz)).contains(expectedEqualsMethod);
   }